@@ -0,0 +1,40 @@
+package build.pluto.buildjava;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Merges the source files, source paths, and class paths of the inputs of a
+ * {@link JavaCompiler} cycle. Each is kept in the order of first occurrence
+ * without duplicates. Merging and membership tests take linear and constant
+ * time, respectively, such that cycles with thousands of members stay cheap.
+ */
+class CycleInputs {
+
+	private final Set<File> sourceFiles = new LinkedHashSet<>();
+	private final Set<File> sourcePath = new LinkedHashSet<>();
+	private final Set<File> classPath = new LinkedHashSet<>();
+
+	CycleInputs(Collection<JavaCompilerInput> inputs) {
+		for (JavaCompilerInput input : inputs) {
+			sourceFiles.addAll(input.sourceFiles);
+			sourcePath.addAll(input.sourcePath);
+			classPath.addAll(input.classPath);
+		}
+	}
+
+	Set<File> getSourceFiles() {
+		return Collections.unmodifiableSet(sourceFiles);
+	}
+
+	Set<File> getSourcePath() {
+		return Collections.unmodifiableSet(sourcePath);
+	}
+
+	Set<File> getClassPath() {
+		return Collections.unmodifiableSet(classPath);
+	}
+}
@@ -0,0 +1,287 @@
+package build.pluto.buildjava;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.sugarj.common.FileCommands;
+import org.sugarj.common.Log;
+
+import build.pluto.buildjava.compiler.JavaCompilerResult;
+import build.pluto.buildjava.compiler.JavaCompilerResultFile;
+import build.pluto.buildjava.stamp.CachedFileHashStamper;
+import build.pluto.buildjava.stamp.ClassAbiStamper;
+import build.pluto.buildjava.stamp.JarAbiStamper;
+import build.pluto.buildjava.stamp.JavaPlatformStamper;
+import build.pluto.buildjava.util.ClassReferences;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+/**
+ * Recompiles only the changed source files of a {@link JavaBulkCompiler},
+ * based on the file stamps and source dependencies recorded in the result of
+ * the previous build.
+ *
+ * Changed and new source files are compiled first. Whenever the ABI of a
+ * compiled source file changed (see {@link ClassAbiStamper}), the source files
+ * that depend on it are compiled in a further round, until no more ABIs
+ * change. This includes source files compiled in an earlier round, such that
+ * changes propagate around dependency cycles, and source files that use a
+ * constant of the changed file, which the compiler inlined. The class files of removed source files are deleted and their
+ * dependents compiled. Since a new class may shadow a class of the same simple
+ * name, the source files referring to such a class are compiled as well.
+ *
+ * If a class file or jar used from the class path changed, all source files
+ * are compiled.
+ */
+class IncrementalCompilation {
+
+	private final JavaCompilerInput input;
+	private final JavaCompilerResultFile previous;
+
+	IncrementalCompilation(JavaCompilerInput input, JavaCompilerResultFile previous) {
+		this.input = input;
+		this.previous = previous;
+	}
+
+	/**
+	 * @return the result for all source files, including recorded source
+	 *         dependencies and file stamps, or <code>null</code> if all source
+	 *         files need to be compiled.
+	 */
+	JavaCompilerResult compile() throws Exception {
+		if (!previous.hasFileStamps())
+			return null;
+
+		Map<File, Collection<String>> previousZipped = previous.getLoadedFromZippedFile();
+		Set<File> classPathFiles = new HashSet<>(previous.getLoadedClassFiles());
+		classPathFiles.addAll(previousZipped.keySet());
+		for (File file : classPathFiles)
+			if (!Objects.equals(previous.getFileStamp(file), classPathStamp(file, previousZipped))) {
+				Log.log.log("Class path file " + file + " changed, compile all source files", Log.DETAIL);
+				return null;
+			}
+
+		Set<File> sources = new LinkedHashSet<>(input.sourceFiles);
+		Map<File, String> sourceStamps = new HashMap<>();
+		Set<File> toCompile = new LinkedHashSet<>();
+		Set<String> added = new HashSet<>();
+		for (File source : sources) {
+			String stamp = sourceStamp(source);
+			sourceStamps.put(source, stamp);
+			Collection<File> gens = previous.getGeneratedFiles(source);
+			boolean known = previous.hasFileStamp(source);
+			if (!known)
+				added.add(FileCommands.dropExtension(source.getName()));
+			if (!known || !Objects.equals(stamp, previous.getFileStamp(source)) || (gens != null && !allExist(gens)))
+				toCompile.add(source);
+		}
+
+		for (File source : previous.getSourceFiles())
+			if (!sources.contains(source)) {
+				deleteAll(previous.getGeneratedFiles(source));
+				addDependents(source, sources, toCompile);
+			}
+		if (!added.isEmpty())
+			addReferencing(added, sources, toCompile);
+
+		JavaCompilerResult result = new JavaCompilerResult();
+		Set<File> compiled = new HashSet<>();
+		// the generated files of the sources compiled by this build, which replace those of the previous build
+		Map<File, Collection<File>> compiledGens = new HashMap<>();
+		while (!toCompile.isEmpty()) {
+			Log.log.log("Incrementally compile " + toCompile.size() + " of " + sources.size() + " source files", Log.DETAIL);
+			Map<File, String> oldAbis = new HashMap<>();
+			for (File source : toCompile) {
+				Collection<File> gens = compiled.contains(source) ? compiledGens.get(source) : previous.getGeneratedFiles(source);
+				if (gens != null) {
+					oldAbis.put(source, sourceAbi(gens));
+					deleteAll(gens);
+				}
+			}
+
+			JavaCompilerResult round = input.compiler.compile(
+					new ArrayList<>(toCompile),
+					input.targetDir,
+					input.sourcePath,
+					classPath(),
+					input.sourceRelease,
+					input.targetRelease,
+					input.additionalArgs);
+			compiled.addAll(toCompile);
+
+			// sources compiled in an earlier round are compiled again when
+			// their dependencies change, such that ABI changes propagate
+			// around cycles
+			Set<File> next = new LinkedHashSet<>();
+			for (Entry<File, Collection<File>> e : round.getSourceTargetFiles().entrySet()) {
+				File source = e.getKey();
+				compiled.add(source);
+				compiledGens.put(source, e.getValue());
+				if (!oldAbis.containsKey(source) || !oldAbis.get(source).equals(sourceAbi(e.getValue())))
+					addDependents(source, sources, next);
+			}
+			for (File loaded : round.getLoadedClassFiles())
+				result.addLoadedClassFile(loaded);
+			for (Entry<File, Collection<String>> e : round.getLoadedFromZippedFile().entrySet())
+				for (String entry : e.getValue())
+					result.addLoadedFromZippedFile(e.getKey(), entry);
+			toCompile = next;
+		}
+
+		for (Entry<File, Collection<File>> e : compiledGens.entrySet()) {
+			result.addSourceFile(e.getKey());
+			for (File gen : e.getValue())
+				result.addGeneratedFile(e.getKey(), gen);
+		}
+		for (File source : sources)
+			if (!compiled.contains(source)) {
+				Collection<File> gens = previous.getGeneratedFiles(source);
+				if (gens != null)
+					for (File gen : gens)
+						result.addGeneratedFile(source, gen);
+				Collection<File> deps = previous.getSourceDependencies(source);
+				if (deps != null)
+					for (File dep : deps)
+						if (sources.contains(dep))
+							result.addSourceDependency(source, dep);
+			}
+		for (File loaded : previous.getLoadedClassFiles())
+			result.addLoadedClassFile(loaded);
+		for (Entry<File, Collection<String>> e : previousZipped.entrySet())
+			for (String entry : e.getValue())
+				result.addLoadedFromZippedFile(e.getKey(), entry);
+
+		// classes of the bulk are generated, not loaded
+		Set<File> generated = new HashSet<>();
+		for (Collection<File> gens : result.getSourceTargetFiles().values())
+			generated.addAll(gens);
+		for (File loaded : new ArrayList<>(result.getLoadedClassFiles()))
+			if (generated.contains(loaded) || !FileCommands.exists(loaded))
+				result.removeLoadedClassFile(loaded);
+
+		ParallelCompilation.recordSourceDependencies(result, input.targetDir, compiled);
+		for (Entry<File, String> e : sourceStamps.entrySet())
+			result.addFileStamp(e.getKey(), e.getValue());
+		recordClassPathStamps(result);
+		return result;
+	}
+
+	/**
+	 * Records the stamps of all source files and used class path files, on
+	 * which the next incremental compilation is based.
+	 */
+	static void recordFileStamps(JavaCompilerResult result, JavaCompilerInput input) throws IOException {
+		for (File source : input.sourceFiles)
+			result.addFileStamp(source, sourceStamp(source));
+		recordClassPathStamps(result);
+	}
+
+	private static void recordClassPathStamps(JavaCompilerResult result) throws IOException {
+		for (File loaded : result.getLoadedClassFiles())
+			result.addFileStamp(loaded, classPathStamp(loaded, result.getLoadedFromZippedFile()));
+		for (File zip : result.getLoadedFromZippedFile().keySet())
+			result.addFileStamp(zip, classPathStamp(zip, result.getLoadedFromZippedFile()));
+	}
+
+	static String classPathStamp(File file, Map<File, Collection<String>> loadedFromZippedFile) throws IOException {
+		if (!loadedFromZippedFile.containsKey(file))
+			return contentStamp(file);
+		Collection<String> entries = loadedFromZippedFile.get(file);
+		Stamper stamper;
+		if (JavaPlatformStamper.isPlatformArchive(file))
+			stamper = JavaPlatformStamper.instance;
+		else
+			stamper = entries == null ? JarAbiStamper.instance : JarAbiStamper.forEntries(entries);
+		Object val = ((ValueStamp<?>) stamper.stampOf(file)).val;
+		return val == null ? null : val.toString();
+	}
+
+	/**
+	 * @return the content digest of a source file, which is cached across
+	 *         builds, or <code>null</code> if the file does not exist.
+	 */
+	static String sourceStamp(File source) throws IOException {
+		if (!FileCommands.exists(source))
+			return null;
+		return CachedFileHashStamper.digest(source);
+	}
+
+	/**
+	 * @return the ABI digest of a class file, the content digest of any other
+	 *         file, or <code>null</code> if the file does not exist.
+	 */
+	static String contentStamp(File file) throws IOException {
+		if (!FileCommands.exists(file))
+			return null;
+		return ClassAbiStamper.digest(Files.readAllBytes(file.toPath()));
+	}
+
+	private static String sourceAbi(Collection<File> gens) throws IOException {
+		Map<String, String> abis = new TreeMap<>();
+		for (File gen : gens)
+			if (gen.getName().endsWith(".class"))
+				abis.put(gen.getPath(), contentStamp(gen));
+		return abis.toString();
+	}
+
+	private static boolean allExist(Collection<File> files) {
+		for (File file : files)
+			if (!FileCommands.exists(file))
+				return false;
+		return true;
+	}
+
+	private static void deleteAll(Collection<File> files) {
+		for (File file : files)
+			file.delete();
+	}
+
+	private void addDependents(File source, Set<File> sources, Set<File> toCompile) {
+		for (File d : previous.getSourceDependents(source))
+			if (sources.contains(d))
+				toCompile.add(d);
+	}
+
+	/**
+	 * Adds the unchanged source files whose classes refer to a class with one
+	 * of the given simple names.
+	 */
+	private void addReferencing(Set<String> simpleNames, Set<File> sources, Set<File> toCompile) throws IOException {
+		for (File source : previous.getSourceFiles()) {
+			if (!sources.contains(source) || toCompile.contains(source))
+				continue;
+			search: for (File gen : previous.getGeneratedFiles(source))
+				if (gen.getName().endsWith(".class") && FileCommands.exists(gen))
+					for (String referenced : ClassReferences.of(Files.readAllBytes(gen.toPath())))
+						if (simpleNames.contains(referenced.substring(referenced.lastIndexOf('/') + 1))) {
+							toCompile.add(source);
+							break search;
+						}
+		}
+	}
+
+	/**
+	 * The unchanged classes are read from the target directory.
+	 */
+	private List<File> classPath() {
+		List<File> classPath = new ArrayList<>();
+		classPath.add(input.targetDir);
+		for (File cp : input.classPath)
+			if (!cp.equals(input.targetDir))
+				classPath.add(cp);
+		return classPath;
+	}
+}
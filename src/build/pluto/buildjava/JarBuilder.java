@@ -1,19 +1,17 @@
 package build.pluto.buildjava;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.Serializable;
-import java.nio.file.Files;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 
 import org.sugarj.common.FileCommands;
+import org.sugarj.common.Log;
 
 import build.pluto.builder.Builder;
 import build.pluto.builder.factory.BuilderFactory;
 import build.pluto.builder.factory.BuilderFactoryFactory;
+import build.pluto.buildjava.util.JarWriter;
 import build.pluto.dependency.Origin;
 import build.pluto.output.None;
 
@@ -80,11 +78,22 @@ public class JarBuilder extends Builder<JarBuilder.Input, None> {
          */
         public final File depPath;
 
-        public Input(File jarPath, Iterable<Entry> files, Origin origin, File depPath) {
+        /**
+         * Whether the jar only depends on the paths and contents of the files: entries are sorted by path and get a
+         * fixed time instead of the modification time of their file.
+         */
+        public final boolean reproducible;
+
+        public Input(File jarPath, Iterable<Entry> files, Origin origin, File depPath, boolean reproducible) {
             this.jarPath = jarPath;
             this.origin = origin;
             this.files = files;
             this.depPath = depPath;
+            this.reproducible = reproducible;
+        }
+
+        public Input(File jarPath, Iterable<Entry> files, Origin origin, File depPath) {
+            this(jarPath, files, origin, depPath, false);
         }
 
         public Input(File jarPath, Iterable<Entry> files, Origin origin) {
@@ -115,22 +124,23 @@ public class JarBuilder extends Builder<JarBuilder.Input, None> {
 
         final Manifest manifest = new Manifest();
         manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
-        try(final JarOutputStream jar = new JarOutputStream(new FileOutputStream(input.jarPath), manifest)) {
-            for(Entry entry : input.files) {
-                final String classpath = entry.classpath;
-                final File file = entry.file;
-
-                if(file.isFile()) {
-                    require(file);
-                    final JarEntry jarEntry = new JarEntry(classpath);
-                    final long modified = file.lastModified();
-                    if(modified != 0L) {
-                        jarEntry.setTime(modified);
-                    }
-                    jar.putNextEntry(jarEntry);
-                    Files.copy(file.toPath(), jar);
-                    jar.closeEntry();
-                }
+        final JarWriter jar = new JarWriter();
+        // unchanged files are copied from the previous jar without recompressing them
+        jar.setStampsFile(FileCommands.addExtension(persistentPath(input), "stamps"));
+        jar.setReproducible(input.reproducible);
+        jar.addManifest(manifest, System.currentTimeMillis());
+        for(Entry entry : input.files) {
+            final File file = entry.file;
+            if(file.isFile()) {
+                require(file);
+                jar.add(entry.classpath, file, file.lastModified());
+            }
+        }
+
+        try {
+            jar.write(input.jarPath);
+            if(jar.isUnchanged()) {
+                Log.log.log("JAR file " + input.jarPath + " is unchanged", Log.DETAIL);
             }
         } finally {
             provide(input.jarPath);
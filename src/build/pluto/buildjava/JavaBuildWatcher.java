@@ -0,0 +1,357 @@
+package build.pluto.buildjava;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.sugarj.common.Log;
+
+import build.pluto.builder.BuildManagers;
+import build.pluto.builder.BuildRequest;
+
+/**
+ * Rebuilds Java compilations continuously while their inputs change, for the
+ * edit-compile loop.
+ *
+ * Each watched compilation is registered with a {@link WatchService} on all
+ * directories of its source path and class path, and on the directories
+ * containing its class path jars. Changes are collected until no further
+ * change arrives within the debounce interval, and only the compilations
+ * watching a changed file are rebuilt. A rebuild in progress is cancelled by
+ * interrupting it when a newer change arrives, and is repeated together with
+ * the compilations affected by the newer change.
+ *
+ * Changes within the target directory of a compilation do not trigger its
+ * own rebuild, but do trigger the rebuild of compilations that have the
+ * target directory on their class path.
+ *
+ * All compilations are watched before the watcher runs. Afterwards, the
+ * watched directories are only accessed by the thread running the watcher.
+ */
+public class JavaBuildWatcher implements Closeable {
+
+	public static final long DEFAULT_DEBOUNCE = 200;
+
+	private final WatchService watchService;
+	private final long debounce;
+
+	private final List<Unit> units = new ArrayList<>();
+	private final Map<WatchKey, Path> dirs = new HashMap<>();
+	private final Map<WatchKey, Map<Unit, Watch>> watches = new HashMap<>();
+
+	/**
+	 * Set when the watcher starts running, after which no compilations can be
+	 * watched. Guarded by {@link #units}.
+	 */
+	private boolean running;
+
+	/**
+	 * Maps the compilations to rebuild to the number of the last change that
+	 * affected them, in the order they were watched.
+	 */
+	private final Map<Unit, Long> pending = new LinkedHashMap<>();
+	private long changes;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private volatile boolean closed;
+
+	public JavaBuildWatcher() throws IOException {
+		this(DEFAULT_DEBOUNCE);
+	}
+
+	/**
+	 * @param debounce
+	 *            the time in milliseconds without further changes after which
+	 *            a rebuild starts.
+	 */
+	public JavaBuildWatcher(long debounce) throws IOException {
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.debounce = debounce;
+	}
+
+	/**
+	 * Watches a {@link JavaCompiler} compilation.
+	 */
+	public void watch(JavaCompilerInput input) throws IOException {
+		watch(JavaCompiler.request(input), input);
+	}
+
+	/**
+	 * Rebuilds the given request whenever the source path or class path of the
+	 * given input changes.
+	 *
+	 * @throws IllegalStateException
+	 *             if the watcher already runs.
+	 */
+	public void watch(BuildRequest<?, ?, ?, ?> request, JavaCompilerInput input) throws IOException {
+		synchronized (units) {
+			if (running)
+				throw new IllegalStateException("Cannot watch a compilation while the watcher runs");
+			Unit unit = new Unit(request, input.targetDir.toPath());
+			units.add(unit);
+			for (File dir : input.sourcePath)
+				registerTree(dir.toPath().toAbsolutePath(), unit, new Watch(".java", null));
+			for (File cp : input.classPath) {
+				Path path = cp.toPath().toAbsolutePath();
+				if (path.equals(unit.targetDir))
+					continue;
+				if (Files.isDirectory(path))
+					registerTree(path, unit, new Watch(".class", null));
+				else if (path.getParent() != null && Files.isDirectory(path.getParent()))
+					register(path.getParent(), unit, new Watch(null, Collections.singleton(path.getFileName().toString())));
+			}
+		}
+	}
+
+	/**
+	 * Builds all watched compilations and then rebuilds them on changes until
+	 * the watcher is closed or the calling thread is interrupted. The watcher
+	 * runs at most once.
+	 *
+	 * @throws IllegalStateException
+	 *             if the watcher already runs.
+	 */
+	public void run() throws InterruptedException {
+		synchronized (units) {
+			if (running)
+				throw new IllegalStateException("Watcher already runs");
+			running = true;
+		}
+		synchronized (pending) {
+			changes++;
+			for (Unit unit : units)
+				pending.put(unit, changes);
+		}
+		Future<?> build = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				buildPending();
+			}
+		});
+
+		try {
+			while (!closed) {
+				Set<Unit> affected = new LinkedHashSet<>();
+				collect(watchService.take(), affected);
+				WatchKey key;
+				while ((key = watchService.poll(debounce, TimeUnit.MILLISECONDS)) != null)
+					collect(key, affected);
+				if (affected.isEmpty())
+					continue;
+
+				synchronized (pending) {
+					changes++;
+					for (Unit unit : affected)
+						pending.put(unit, changes);
+				}
+				if (!build.isDone()) {
+					Log.log.log("Cancel build, files changed", Log.CORE);
+					build.cancel(true);
+				}
+				build = executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						buildPending();
+					}
+				});
+			}
+		} catch (ClosedWatchServiceException e) {
+			// closed
+		} finally {
+			build.cancel(true);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		executor.shutdownNow();
+		watchService.close();
+	}
+
+	/**
+	 * Builds the pending compilations one after the other. A compilation stays
+	 * pending if its build is interrupted or if it changed again while it was
+	 * built. Failed builds are reported and wait for the next change.
+	 */
+	private void buildPending() {
+		while (!Thread.currentThread().isInterrupted()) {
+			Unit unit;
+			long change;
+			synchronized (pending) {
+				if (pending.isEmpty())
+					return;
+				Entry<Unit, Long> next = pending.entrySet().iterator().next();
+				unit = next.getKey();
+				change = next.getValue();
+			}
+
+			boolean done = true;
+			try {
+				BuildManagers.build(unit.request);
+			} catch (Throwable e) {
+				if (Thread.currentThread().isInterrupted() || isInterruption(e)) {
+					// blocking calls clear the interrupt status when they throw
+					Thread.currentThread().interrupt();
+					done = false;
+				}
+				else
+					Log.log.logErr("Build failed: " + e.getMessage(), Log.CORE);
+			}
+
+			synchronized (pending) {
+				if (done && Long.valueOf(change).equals(pending.get(unit)))
+					pending.remove(unit);
+			}
+		}
+	}
+
+	private static boolean isInterruption(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause())
+			if (t instanceof InterruptedException || t instanceof InterruptedIOException || t instanceof ClosedByInterruptException)
+				return true;
+		return false;
+	}
+
+	private void collect(WatchKey key, Set<Unit> affected) {
+		Path dir = dirs.get(key);
+		Map<Unit, Watch> watching = watches.get(key);
+		if (dir == null || watching == null) {
+			key.cancel();
+			return;
+		}
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				affected.addAll(watching.keySet());
+				continue;
+			}
+			Path child = dir.resolve((Path) event.context());
+			boolean isDir = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+			for (Entry<Unit, Watch> e : new ArrayList<>(watching.entrySet())) {
+				Unit unit = e.getKey();
+				Watch watch = e.getValue();
+				if (child.startsWith(unit.targetDir) || !watch.matches(child, isDir))
+					continue;
+				affected.add(unit);
+				if (isDir && event.kind() == ENTRY_CREATE && watch.names == null)
+					try {
+						registerTree(child, unit, watch);
+					} catch (IOException ex) {
+						Log.log.logErr("Cannot watch " + child + ": " + ex.getMessage(), Log.CORE);
+					}
+			}
+		}
+
+		if (!key.reset()) {
+			dirs.remove(key);
+			watches.remove(key);
+		}
+	}
+
+	private void registerTree(Path root, final Unit unit, final Watch watch) throws IOException {
+		if (!Files.isDirectory(root))
+			return;
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (dir.equals(unit.targetDir))
+					return FileVisitResult.SKIP_SUBTREE;
+				register(dir, unit, watch);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void register(Path dir, Unit unit, Watch watch) throws IOException {
+		WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+		dirs.put(key, dir);
+		Map<Unit, Watch> watching = watches.get(key);
+		if (watching == null) {
+			watching = new HashMap<>();
+			watches.put(key, watching);
+		}
+		Watch previous = watching.get(unit);
+		watching.put(unit, previous == null ? watch : previous.merge(watch));
+	}
+
+	/**
+	 * A watched build request.
+	 */
+	private static class Unit {
+		final BuildRequest<?, ?, ?, ?> request;
+		final Path targetDir;
+
+		Unit(BuildRequest<?, ?, ?, ?> request, Path targetDir) {
+			this.request = request;
+			this.targetDir = targetDir.toAbsolutePath();
+		}
+	}
+
+	/**
+	 * The files of a directory a compilation depends on: either the files with
+	 * a suffix (or all files if the suffix is <code>null</code>) and all
+	 * subdirectories, or the files with the given names.
+	 */
+	private static class Watch {
+		final String suffix;
+		final Set<String> names;
+
+		Watch(String suffix, Set<String> names) {
+			this.suffix = suffix;
+			this.names = names;
+		}
+
+		boolean matches(Path file, boolean isDir) {
+			String name = file.getFileName().toString();
+			if (names != null)
+				return names.contains(name);
+			// deleted directories cannot be told from deleted files
+			return isDir || suffix == null || name.endsWith(suffix) || !Files.exists(file, LinkOption.NOFOLLOW_LINKS);
+		}
+
+		Watch merge(Watch other) {
+			if (names == null && other.names == null)
+				return suffix != null && suffix.equals(other.suffix) ? this : new Watch(null, null);
+			if (names == null)
+				return this;
+			if (other.names == null)
+				return other;
+			Set<String> merged = new HashSet<>(names);
+			merged.addAll(other.names);
+			return new Watch(null, merged);
+		}
+	}
+}
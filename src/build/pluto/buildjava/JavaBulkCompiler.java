@@ -2,26 +2,40 @@ package build.pluto.buildjava;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 
 import org.sugarj.common.FileCommands;
+import org.sugarj.common.Log;
 
 import build.pluto.builder.Builder;
 import build.pluto.builder.factory.BuilderFactory;
 import build.pluto.builder.factory.BuilderFactoryFactory;
 import build.pluto.buildjava.compiler.JavaCompilerResult;
+import build.pluto.buildjava.compiler.JavaCompilerResultFile;
+import build.pluto.buildjava.stamp.CachedFileHashStamper;
+import build.pluto.buildjava.stamp.ClassAbiStamper;
+import build.pluto.buildjava.stamp.JarAbiStamper;
+import build.pluto.buildjava.stamp.JavaPlatformStamper;
+import build.pluto.buildjava.stamp.PackageListingStamper;
+import build.pluto.buildjava.util.PathIndex;
 import build.pluto.output.None;
-import build.pluto.stamp.FileExistsStamper;
-import build.pluto.stamp.FileHashStamper;
 import build.pluto.stamp.LastModifiedStamper;
 
 public class JavaBulkCompiler extends Builder<JavaCompilerInput, None> {
 
+	/**
+	 * Answers the file system queries for installing dependencies.
+	 */
+	private final PathIndex index = new PathIndex();
+
 	public JavaBulkCompiler(JavaCompilerInput input) {
 		super(input);
 	}
@@ -38,16 +52,59 @@ public class JavaBulkCompiler extends Builder<JavaCompilerInput, None> {
 		return new File(input.targetDir, "compile.java." + input.sourceFiles.hashCode() + ".dep");
 	}
 
+	/**
+	 * The result of the previous build, which provides the source dependencies
+	 * for parallel and incremental compilation. The result is identified by the
+	 * compiler options but not by the source files, such that it survives the
+	 * addition and removal of source files.
+	 */
+	private static File resultPath(JavaCompilerInput input) {
+		int options = Objects.hash(input.sourcePath, input.classPath, input.additionalArgs, input.sourceRelease, input.targetRelease, input.compiler.getClass().getName());
+		return new File(input.targetDir, "compile.java." + options + ".result");
+	}
+
 	@Override
 	protected None build(JavaCompilerInput input) throws Exception {
 		requireBuild(input.sourceOrigin);
 		requireBuild(input.classOrigin);
 		
+		CachedFileHashStamper.prefetch(input.sourceFiles);
 		for (File f : input.sourceFiles)
-			require(f, FileHashStamper.instance);
+			require(f, CachedFileHashStamper.instance);
+		CachedFileHashStamper.flush();
 
 		FileCommands.createDir(input.targetDir);
-		JavaCompilerResult compilerResult =
+		boolean recordResult = input.incremental || input.parallelism > 1;
+		JavaCompilerResultFile previous = null;
+		if (recordResult) {
+			previous = readPreviousResult(input);
+			// a failed build must not leave a result that does not match the target directory
+			resultPath(input).delete();
+		}
+
+		OutputCache cache = input.cacheDir == null ? null : OutputCache.get(input.cacheDir);
+		String cacheKey = null;
+		JavaCompilerResult compilerResult = null;
+		if (cache != null) {
+			cacheKey = OutputCache.key(input.sourceFiles, input.targetDir, input.sourcePath, input.classPath, input.sourceRelease, input.targetRelease, input.additionalArgs, input.compiler);
+			compilerResult = cache.restore(cacheKey);
+			if (compilerResult != null)
+				Log.log.log("Restored compiler outputs from " + cache, Log.DETAIL);
+		}
+		boolean restored = compilerResult != null;
+
+		boolean compiledIncrementally = false;
+		if (compilerResult == null && input.incremental && previous != null) {
+			compilerResult = new IncrementalCompilation(input, previous).compile();
+			compiledIncrementally = compilerResult != null;
+		}
+		ParallelCompilation parallel = null;
+		if (compilerResult == null && input.parallelism > 1 && previous != null) {
+			parallel = new ParallelCompilation(input, previous);
+			compilerResult = parallel.compile();
+		}
+		if (compilerResult == null)
+			compilerResult =
 				input.compiler.compile(
 					input.sourceFiles,
 					input.targetDir,
@@ -56,88 +113,114 @@ public class JavaBulkCompiler extends Builder<JavaCompilerInput, None> {
 					input.sourceRelease,
 					input.targetRelease, 
 					input.additionalArgs);
+		if (cache != null && !restored)
+			cache.store(cacheKey, compilerResult);
 
+		if (recordResult) {
+			if (!compiledIncrementally) {
+				ParallelCompilation.recordSourceDependencies(compilerResult, input.targetDir, compilerResult.getSourceTargetFiles().keySet());
+				if (parallel != null)
+					for (Entry<File, Collection<File>> violation : parallel.getViolations().entrySet())
+						for (File dep : violation.getValue())
+							compilerResult.addSourceDependency(violation.getKey(), dep);
+				if (input.incremental)
+					IncrementalCompilation.recordFileStamps(compilerResult, input);
+			}
+			JavaCompilerResultFile.write(compilerResult, resultPath(input));
+		}
 
 		for (Collection<File> gens : compilerResult.getSourceTargetFiles().values())
 			for (File gen : gens)
 				provide(gen, LastModifiedStamper.instance);
 		
+		// maps required jars to the entries that were used from them or that would shadow used classes
+		Map<File, Set<String>> requiredJars = new HashMap<>();
+		// maps package directories to the names of files that would shadow used classes
+		Map<File, Set<String>> requiredPackages = new HashMap<>();
+
 		for (File source : compilerResult.getSourceTargetFiles().keySet()) {
 			// install shadow dependencies for source files
-			String relSource = findRelativePath(source, input.sourcePath);
+			String relSource = index.findRelativePath(source, input.sourcePath);
 			if (relSource == null)
 				throw new IllegalStateException("Cannot find source file " + source + " in sourcepath " + input.sourcePath);
-			installSourceDep(relSource, input.sourcePath);
+			installSourceDep(relSource, input.sourcePath, requiredPackages);
 			require(source);
 		}
 		
-		Set<File> requiredJars = new HashSet<>();
-		
 		for (File p : compilerResult.getLoadedClassFiles()) {
-			Path rel = FileCommands.getRelativePath(input.targetDir, p);
+			String rel = PathIndex.getRelativePath(input.targetDir, p);
 			// if class file is in target dir
 			if (rel != null) {
-				Path relClassSource = FileCommands.replaceExtension(rel, "java");
-				installSourceDep(relClassSource.toString(), input.sourcePath);
-				require(p);
+				String relClassSource = FileCommands.dropExtension(rel) + ".java";
+				installSourceDep(relClassSource, input.sourcePath, requiredPackages);
+				require(p, ClassAbiStamper.instance);
 			}
 			else {
-				String relClass = findRelativePath(p, input.classPath);
-				installBinaryDep(relClass, input.classPath, requiredJars);
+				String relClass = index.findRelativePath(p, input.classPath);
+				installBinaryDep(relClass, input.classPath, requiredJars, requiredPackages);
 			}
 		}
 
 		for (Entry<File, Collection<String>> zipped : compilerResult.getLoadedFromZippedFile().entrySet())
-			installZipBinaryDep(zipped.getKey(), zipped.getValue(), input.classPath, input.sourcePath, input.targetDir, requiredJars);
+			installZipBinaryDep(zipped.getKey(), zipped.getValue(), input.classPath, input.sourcePath, input.targetDir, requiredJars, requiredPackages);
 
-		for (File jar : requiredJars)
-			require(jar);
+		for (Entry<File, Set<String>> jar : requiredJars.entrySet())
+			require(jar.getKey(), JarAbiStamper.forEntries(jar.getValue()));
+		for (Entry<File, Set<String>> pkg : requiredPackages.entrySet())
+			require(pkg.getKey(), PackageListingStamper.forNames(pkg.getValue()));
 
 		return null;
 	}
 	
 	
-	private Set<File> installBinaryDep(String relClass, List<File> classPath, Set<File> requiredJars) {
+	private Map<File, Set<String>> installBinaryDep(String relClass, List<File> classPath, Map<File, Set<String>> requiredJars, Map<File, Set<String>> requiredPackages) {
 		if (relClass == null)
 			return requiredJars;
 		for (File cp : classPath) {
-			if (cp.isFile())
-				requiredJars.add(cp);
+			if (index.isFile(cp))
+				requireJarEntries(cp, Collections.singleton(relClass.replace(File.separatorChar, '/')), requiredJars);
 			else {
 				File classFile = new File(cp, relClass);
-				if (FileCommands.exists(classFile)) {
-					require(classFile);
+				if (index.exists(classFile)) {
+					require(classFile, ClassAbiStamper.instance);
 					break; // rest of classpath is irrelevant
 				} else
-					require(classFile, FileExistsStamper.instance);
+					PackageListingStamper.addFile(classFile, requiredPackages);
 			}
 		}
 		return requiredJars;
 	}
 	
-	private void installZipBinaryDep(File zip, Collection<String> zipped, List<File> classPath, Collection<File> sourcePaths, File targetDir, Set<File> requiredJars) {
-		requiredJars.add(zip);
+	private void installZipBinaryDep(File zip, Collection<String> zipped, List<File> classPath, Collection<File> sourcePaths, File targetDir, Map<File, Set<String>> requiredJars, Map<File, Set<String>> requiredPackages) {
+		// platform classes are covered by the JDK version and found before the class path
+		boolean platform = JavaPlatformStamper.isPlatformArchive(zip);
+		if (platform)
+			require(zip, JavaPlatformStamper.instance);
+		else
+			requireJarEntries(zip, zipped, requiredJars);
 
 		for (File cp : classPath) {
 			if (cp.equals(zip))
 				break;
 			
-			if (cp.isFile())
-				requiredJars.add(cp);
+			if (index.isFile(cp)) {
+				if (!platform)
+					requireJarEntries(cp, zipped, requiredJars);
+			}
 			else {
 				boolean isTarget = cp.equals(targetDir);
 				for (String rel : zipped) {
 					if (rel.startsWith("java/lang/")) {
 						rel = rel.substring("java/lang/".length());
 					}
-					else if (rel.startsWith("java/"))
+					else if (platform || rel.startsWith("java/"))
 						continue;
 					
-					require(new File(cp, rel), FileExistsStamper.instance);
+					PackageListingStamper.addFile(new File(cp, rel), requiredPackages);
 					if (isTarget) {
 						for (File sourcePath : sourcePaths) {
 							File relClassSource = FileCommands.replaceExtension(new File(sourcePath, rel), "java");
-							require(relClassSource, FileExistsStamper.instance);
+							PackageListingStamper.addFile(relClassSource, requiredPackages);
 						}
 					}
 				}
@@ -145,23 +228,35 @@ public class JavaBulkCompiler extends Builder<JavaCompilerInput, None> {
 		}
 	}
 
-	private void installSourceDep(String rel, List<File> sourcePaths)
+	private static void requireJarEntries(File jar, Collection<String> entries, Map<File, Set<String>> requiredJars) {
+		Set<String> required = requiredJars.get(jar);
+		if (required == null) {
+			required = new HashSet<>();
+			requiredJars.put(jar, required);
+		}
+		required.addAll(entries);
+	}
+
+	private void installSourceDep(String rel, List<File> sourcePaths, Map<File, Set<String>> requiredPackages)
 			throws IOException {
 		for (File sourcePath : sourcePaths) {
 			File sourceFile = new File(sourcePath, rel);
-			if (FileCommands.exists(sourceFile))
+			if (index.exists(sourceFile))
 				break; // rest of sourcepaths are irrelevant
 			else
-				require(sourceFile, FileExistsStamper.instance);
+				PackageListingStamper.addFile(sourceFile, requiredPackages);
 		}
 	}
 
-	private String findRelativePath(File full, Collection<File> bases) {
-		for (File base : bases) {
-			Path rel = FileCommands.getRelativePath(base, full);
-			if (rel != null)
-				return rel.toString();
+	private static JavaCompilerResultFile readPreviousResult(JavaCompilerInput input) {
+		File file = resultPath(input);
+		if (!file.exists())
+			return null;
+		try {
+			return JavaCompilerResultFile.read(file);
+		} catch (IOException e) {
+			Log.log.log("Cannot read previous compilation result " + file + ": " + e.getMessage(), Log.DETAIL);
+			return null;
 		}
-		return null;
 	}
 }
@@ -3,11 +3,13 @@ package build.pluto.buildjava;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
-import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -21,11 +23,15 @@ import build.pluto.builder.CycleHandlerFactory;
 import build.pluto.builder.factory.BuilderFactory;
 import build.pluto.buildjava.compiler.IJavaCompiler;
 import build.pluto.buildjava.compiler.JavaCompilerResult;
+import build.pluto.buildjava.stamp.CachedFileHashStamper;
+import build.pluto.buildjava.stamp.ClassAbiStamper;
+import build.pluto.buildjava.stamp.JarAbiStamper;
+import build.pluto.buildjava.stamp.JavaPlatformStamper;
+import build.pluto.buildjava.stamp.PackageListingStamper;
+import build.pluto.buildjava.util.PathIndex;
 import build.pluto.dependency.Origin;
 import build.pluto.executor.InputParser;
 import build.pluto.output.None;
-import build.pluto.stamp.FileExistsStamper;
-import build.pluto.stamp.FileHashStamper;
 import build.pluto.stamp.LastModifiedStamper;
 import build.pluto.stamp.Stamper;
 
@@ -92,32 +98,38 @@ public class JavaCompiler extends BuildCycleAtOnceBuilder<JavaCompilerInput, Non
 		return javaCycleSupportFactory;
 	}
 
-	private Set<File> requiredJars = new HashSet<>();
+	/**
+	 * Maps required jars to the entries that were used from them or that
+	 * would shadow used classes.
+	 */
+	private Map<File, Set<String>> requiredJars = new HashMap<>();
+
+	/**
+	 * Maps package directories to the names of files that would shadow used
+	 * classes.
+	 */
+	private Map<File, Set<String>> requiredPackages = new HashMap<>();
+
+	/**
+	 * Answers the file system queries for installing dependencies.
+	 */
+	private final PathIndex index = new PathIndex();
 	
 	@Override
 	public List<None> buildAll(ArrayList<JavaCompilerInput> inputs) throws Throwable {
-		List<File> inputFiles = new ArrayList<>();
-		List<File> sourcePaths = new ArrayList<>();
+		CycleInputs merged = new CycleInputs(inputs);
+		Set<File> inputFiles = merged.getSourceFiles();
+		Set<File> sourcePaths = merged.getSourcePath();
+		Set<File> classPath = merged.getClassPath();
 		Origin.Builder sourceOriginBuilder = Origin.Builder();
 		Origin.Builder classOriginBuilder = Origin.Builder();
 		File targetDir = inputs.get(0).targetDir;
 		Collection<String> additionalArgs = inputs.get(0).additionalArgs;
-		List<File> classPath = new ArrayList<>();
 		String sourceRelease = inputs.get(0).sourceRelease;
 		String targetRelease = inputs.get(0).targetRelease;
 		IJavaCompiler compiler = inputs.get(0).compiler;
 		
 		for (JavaCompilerInput input : inputs) {
-			for (File p : input.sourceFiles)
-				if (!inputFiles.contains(p)) {
-					inputFiles.add(p);
-				}
-			for (File p : input.sourcePath)
-				if (!sourcePaths.contains(p))
-					sourcePaths.add(p);
-			for (File p : input.classPath)
-				if (!classPath.contains(p))
-					classPath.add(p);
 			sourceOriginBuilder.add(input.sourceOrigin);
 			classOriginBuilder.add(input.classOrigin);
 		}
@@ -127,11 +139,25 @@ public class JavaCompiler extends BuildCycleAtOnceBuilder<JavaCompilerInput, Non
 		requireBuild(sourceOrigin);
 		requireBuild(classOrigin);
 		
+		CachedFileHashStamper.prefetch(inputFiles);
 		for (File p : inputFiles)
-			require(p, FileHashStamper.instance);
+			require(p, CachedFileHashStamper.instance);
+		CachedFileHashStamper.flush();
 		
 		FileCommands.createDir(targetDir);
-		JavaCompilerResult compilerResult = compiler.compile(inputFiles, targetDir, sourcePaths, classPath, sourceRelease, targetRelease, additionalArgs);
+		File cacheDir = inputs.get(0).cacheDir;
+		OutputCache cache = cacheDir == null ? null : OutputCache.get(cacheDir);
+		String cacheKey = null;
+		JavaCompilerResult compilerResult = null;
+		if (cache != null) {
+			cacheKey = OutputCache.key(inputFiles, targetDir, sourcePaths, classPath, sourceRelease, targetRelease, additionalArgs, compiler);
+			compilerResult = cache.restore(cacheKey);
+		}
+		if (compilerResult == null) {
+			compilerResult = compiler.compile(inputFiles, targetDir, sourcePaths, classPath, sourceRelease, targetRelease, additionalArgs);
+			if (cache != null)
+				cache.store(cacheKey, compilerResult);
+		}
 
 		// TODO Dont register all generated files for first input
 		for (Collection<File> gens : compilerResult.getSourceTargetFiles().values())
@@ -140,23 +166,23 @@ public class JavaCompiler extends BuildCycleAtOnceBuilder<JavaCompilerInput, Non
 		
 		for (File source : compilerResult.getSourceTargetFiles().keySet()) {
 			// install source dependency
-			String relSource = findRelativePath(source, sourcePaths);
+			String relSource = index.findRelativePath(source, sourcePaths);
 			if (relSource == null)
 				throw new IllegalStateException("Cannot find source file " + source + " in sourcepath " + sourcePaths.toString());
-			installSourceDep(relSource, inputFiles, sourcePaths, sourceOrigin, classOrigin, targetDir, additionalArgs, classPath, sourceRelease, targetRelease, compiler);
+			installSourceDep(relSource, inputFiles, sourcePaths, sourceOrigin, classOrigin, targetDir, additionalArgs, classPath, sourceRelease, targetRelease, compiler, cacheDir);
 			require(source);
 		}
 		
 		for (File p : compilerResult.getLoadedClassFiles()) {
-			Path rel = FileCommands.getRelativePath(targetDir, p);
+			String rel = PathIndex.getRelativePath(targetDir, p);
 			// if class file is in target dir
 			if (rel != null) {
-				Path relClassSource = FileCommands.replaceExtension(rel, "java");
-				installSourceDep(relClassSource.toString(), inputFiles, sourcePaths, sourceOrigin, classOrigin, targetDir, additionalArgs, classPath, sourceRelease, targetRelease, compiler);
-				require(p);
+				String relClassSource = FileCommands.dropExtension(rel) + ".java";
+				installSourceDep(relClassSource, inputFiles, sourcePaths, sourceOrigin, classOrigin, targetDir, additionalArgs, classPath, sourceRelease, targetRelease, compiler, cacheDir);
+				require(p, ClassAbiStamper.instance);
 			}
 			else {
-				String relClass = findRelativePath(p, classPath);
+				String relClass = index.findRelativePath(p, classPath);
 				installBinaryDep(relClass, classPath);
 			}
 		}
@@ -164,8 +190,10 @@ public class JavaCompiler extends BuildCycleAtOnceBuilder<JavaCompilerInput, Non
 		for (Entry<File, Collection<String>> zipped : compilerResult.getLoadedFromZippedFile().entrySet())
 			installZipBinaryDep(zipped.getKey(), zipped.getValue(), classPath, sourcePaths, targetDir);
 
-		for (File jar : requiredJars)
-			require(jar);
+		for (Entry<File, Set<String>> jar : requiredJars.entrySet())
+			require(jar.getKey(), JarAbiStamper.forEntries(jar.getValue()));
+		for (Entry<File, Set<String>> pkg : requiredPackages.entrySet())
+			require(pkg.getKey(), PackageListingStamper.forNames(pkg.getValue()));
 
 		List<None> result = new ArrayList<>(inputs.size());
 		for (int i = 0; i < inputs.size(); i++)
@@ -173,68 +201,85 @@ public class JavaCompiler extends BuildCycleAtOnceBuilder<JavaCompilerInput, Non
 		return result;
 	}
 
-	private void installZipBinaryDep(File zip, Collection<String> zipped, List<File> classPath, Collection<File> sourcePaths, File targetDir) {
-		requiredJars.add(zip);
+	private void installZipBinaryDep(File zip, Collection<String> zipped, Collection<File> classPath, Collection<File> sourcePaths, File targetDir) {
+		// platform classes are covered by the JDK version and found before the class path
+		boolean platform = JavaPlatformStamper.isPlatformArchive(zip);
+		if (platform)
+			require(zip, JavaPlatformStamper.instance);
+		else
+			requireJarEntries(zip, zipped);
 		for (File cp : classPath) {
 			if (cp.equals(zip))
 				break;
 			
 			boolean isTarget = cp.equals(targetDir);
 			
-			if (cp.isFile())
-				requiredJars.add(cp);
+			if (index.isFile(cp)) {
+				if (!platform)
+					requireJarEntries(cp, zipped);
+			}
 			else
 				for (String rel : zipped) {
 					if (rel.startsWith("java/lang/")) {
 						rel = rel.substring("java/lang/".length());
 					}
-					else if (rel.startsWith("java/"))
+					else if (platform || rel.startsWith("java/"))
 						continue;
 					
-					require(new File(cp, rel), FileExistsStamper.instance);
+					PackageListingStamper.addFile(new File(cp, rel), requiredPackages);
 					if (isTarget) {
 						for (File sourcePath : sourcePaths) {
 							File relClassSource = FileCommands.replaceExtension(new File(sourcePath, rel), "java");
-							require(relClassSource, FileExistsStamper.instance);
+							PackageListingStamper.addFile(relClassSource, requiredPackages);
 						}
 					}
 				}
 		}
 	}
 
-	private void installBinaryDep(String relClass, List<File> classPath) {
+	private void installBinaryDep(String relClass, Collection<File> classPath) {
 		if (relClass == null)
 			return;
 		for (File cp : classPath) {
-			if (cp.isFile())
-				requiredJars.add(cp);
+			if (index.isFile(cp))
+				requireJarEntries(cp, Collections.singleton(relClass.replace(File.separatorChar, '/')));
 			else {
 				File classFile = new File(cp, relClass);
-				if (FileCommands.exists(classFile)) {
-					require(classFile);
+				if (index.exists(classFile)) {
+					require(classFile, ClassAbiStamper.instance);
 					break; // rest of classpath is irrelevant
 				}
 				else 
-					require(classFile, FileExistsStamper.instance);
+					PackageListingStamper.addFile(classFile, requiredPackages);
 			}
 		}
 	}
 
+	private void requireJarEntries(File jar, Collection<String> entries) {
+		Set<String> required = requiredJars.get(jar);
+		if (required == null) {
+			required = new HashSet<>();
+			requiredJars.put(jar, required);
+		}
+		required.addAll(entries);
+	}
+
 	private void installSourceDep(
 			String rel, 
-			List<File> inputFiles,
-			List<File> sourcePaths,
+			Set<File> inputFiles,
+			Collection<File> sourcePaths,
 			Origin sourceOrigin,
 			Origin classOrigin,
 			File targetDir, 
 			Collection<String> additionalArgs,
-			List<File> classPath,
+			Collection<File> classPath,
 			String sourceRelease, 
 			String targetRelease, 
-			IJavaCompiler compiler) throws IOException {
+			IJavaCompiler compiler,
+			File cacheDir) throws IOException {
 	for (File sourcePath : sourcePaths) {
 			File sourceFile = new File(sourcePath, rel);
-			if (FileCommands.exists(sourceFile)) {
+			if (index.exists(sourceFile)) {
 				if (!inputFiles.contains(sourceFile)) {
 					JavaCompilerInput input = new JavaCompilerInput
 							.Builder()
@@ -248,22 +293,14 @@ public class JavaCompiler extends BuildCycleAtOnceBuilder<JavaCompilerInput, Non
 							.setSourceRelease(sourceRelease)
 							.setTargetRelease(targetRelease)
 							.setCompiler(compiler)
+							.setCacheDir(cacheDir)
 							.get();
 					requireBuild(JavaCompiler.factory, BuildCycleAtOnceBuilder.singletonArrayList(input));
 				}
 				break; // rest of sourcepaths are irrelevant
 			}
 			else
-				require(sourceFile, FileExistsStamper.instance);
-		}
-	}
-
-	private String findRelativePath(File full, Collection<File> bases) {
-		for (File base : bases) {
-			Path rel = FileCommands.getRelativePath(base, full);
-			if (rel != null)
-				return rel.toString();
+				PackageListingStamper.addFile(sourceFile, requiredPackages);
 		}
-		return null;
 	}
 }
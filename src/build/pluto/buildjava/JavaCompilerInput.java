@@ -7,11 +7,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
-import org.apache.commons.io.filefilter.SuffixFileFilter;
-import org.sugarj.common.FileCommands;
-
 import build.pluto.buildjava.compiler.IJavaCompiler;
 import build.pluto.buildjava.compiler.JavacCompiler;
+import build.pluto.buildjava.util.SourceDiscovery;
 import build.pluto.dependency.IMetaBuildingEnabled;
 import build.pluto.dependency.Origin;
 
@@ -28,6 +26,22 @@ public class JavaCompilerInput implements Serializable, IMetaBuildingEnabled {
 	public final Origin sourceOrigin;
 	public final Origin classOrigin;
 	public final IJavaCompiler compiler;
+	/**
+	 * The maximal number of concurrent compiler invocations of a
+	 * {@link JavaBulkCompiler}. Values below 2 disable parallel compilation.
+	 */
+	public final int parallelism;
+	/**
+	 * Whether a {@link JavaBulkCompiler} only recompiles the changed source
+	 * files and the source files affected by their changes.
+	 */
+	public final boolean incremental;
+	/**
+	 * The directory of the {@link OutputCache} from which the compiler outputs
+	 * are restored if the same compilation was done before, or
+	 * <code>null</code> if no cache is used.
+	 */
+	public final File cacheDir;
 
 	private JavaCompilerInput(Builder builder) {
 		if (builder.sourcePath == null || builder.sourcePath.isEmpty()) {
@@ -44,7 +58,7 @@ public class JavaCompilerInput implements Serializable, IMetaBuildingEnabled {
 		else {
 			absoluteInputFiles = new ArrayList<>();
 			for (File srcPath : sourcePath)
-				absoluteInputFiles.addAll(FileCommands.listFilesRecursive(srcPath, new SuffixFileFilter(".java")));
+				absoluteInputFiles.addAll(SourceDiscovery.instance.listFiles(srcPath, ".java"));
 		}
 		this.sourceFiles = Collections.unmodifiableList(absoluteInputFiles);
 		
@@ -56,6 +70,9 @@ public class JavaCompilerInput implements Serializable, IMetaBuildingEnabled {
 		this.sourceOrigin = builder.sourceOrigin;
 		this.classOrigin = builder.classOrigin;
 		this.compiler = builder.compiler == null ? JavacCompiler.instance : builder.compiler;
+		this.parallelism = builder.parallelism;
+		this.incremental = builder.incremental;
+		this.cacheDir = builder.cacheDir == null ? null : builder.cacheDir.getAbsoluteFile();
 	}
 
 	@Override
@@ -84,6 +101,9 @@ public class JavaCompilerInput implements Serializable, IMetaBuildingEnabled {
 		private IJavaCompiler compiler;
 		private Origin sourceOrigin;
 		private Origin classOrigin;
+		private int parallelism = 1;
+		private boolean incremental;
+		private File cacheDir;
 		
 		public JavaCompilerInput get() { 
 			return new JavaCompilerInput(this);
@@ -162,5 +182,20 @@ public class JavaCompilerInput implements Serializable, IMetaBuildingEnabled {
 			this.classOrigin = classOrigin;
 			return this;
 		}
+		
+		public Builder setParallelism(int parallelism) {
+			this.parallelism = parallelism;
+			return this;
+		}
+		
+		public Builder setIncremental(boolean incremental) {
+			this.incremental = incremental;
+			return this;
+		}
+		
+		public Builder setCacheDir(File cacheDir) {
+			this.cacheDir = cacheDir;
+			return this;
+		}
 	}
 }
\ No newline at end of file
@@ -1,20 +1,35 @@
 package build.pluto.buildjava;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipException;
 
-import org.sugarj.common.Exec;
 import org.sugarj.common.FileCommands;
-import org.sugarj.common.StringCommands;
+import org.sugarj.common.Log;
 
 import build.pluto.builder.Builder;
 import build.pluto.builder.factory.BuilderFactory;
 import build.pluto.builder.factory.BuilderFactoryFactory;
+import build.pluto.buildjava.stamp.JarContentStamper;
+import build.pluto.buildjava.util.JarExtractor;
+import build.pluto.buildjava.util.JarWriter;
+import build.pluto.buildjava.util.ZipIndex;
 import build.pluto.dependency.Origin;
 import build.pluto.output.None;
 import build.pluto.stamp.LastModifiedStamper;
@@ -24,6 +39,9 @@ public class JavaJar extends Builder<JavaJar.Input, None> {
 
 	public static BuilderFactory<Input, None, JavaJar> factory = BuilderFactoryFactory.of(JavaJar.class, Input.class);
 
+	private static final String META_INF = "META-INF/";
+	private static final String INDEX_NAME = "META-INF/INDEX.LIST";
+
 	public static enum Mode {
 		Create, List, Extract, Update, GenIndex, CreateOrUpdate;
 
@@ -47,25 +65,6 @@ public class JavaJar extends Builder<JavaJar.Input, None> {
 		}
 	}
 
-	public String option(Mode m, Input input) {
-		switch (m) {
-		case Create:
-			return "c";
-		case List:
-			return "t";
-		case Extract:
-			return "x";
-		case Update:
-			return "u";
-		case GenIndex:
-			return "i";
-		case CreateOrUpdate:
-			return FileCommands.fileExists(input.jarPath) ? option(Mode.Update, input) : option(Mode.Create, input);
-		default:
-			return "";
-		}
-	}
-
 	public static class Input implements Serializable {
 		private static final long serialVersionUID = -6951002448963322561L;
 		public final Mode mode;
@@ -76,13 +75,24 @@ public class JavaJar extends Builder<JavaJar.Input, None> {
 		 */
 		public final Map<File, Set<File>> files;
 		public final Origin filesOrigin;
+		/**
+		 * Whether generated jar files only depend on the paths and contents of
+		 * the files: entries are sorted, get a fixed time, and the manifest
+		 * does not name the JDK.
+		 */
+		public final boolean reproducible;
 
-		public Input(Mode mode, File jarPath, File manifestPath, Map<File, Set<File>> files, Origin filesOrigin) {
+		public Input(Mode mode, File jarPath, File manifestPath, Map<File, Set<File>> files, Origin filesOrigin, boolean reproducible) {
 			this.mode = mode;
 			this.jarPath = jarPath;
 			this.manifestPath = manifestPath;
 			this.files = files;
 			this.filesOrigin = filesOrigin;
+			this.reproducible = reproducible;
+		}
+
+		public Input(Mode mode, File jarPath, File manifestPath, Map<File, Set<File>> files, Origin filesOrigin) {
+			this(mode, jarPath, manifestPath, files, filesOrigin, false);
 		}
 	}
 
@@ -137,50 +147,255 @@ public class JavaJar extends Builder<JavaJar.Input, None> {
 	@Override
 	protected None build(Input input) throws IOException {
 		requireBuild(input.filesOrigin);
+		if (input.jarPath == null)
+			throw new IllegalArgumentException("No jar file given for " + input.mode);
 
-		List<String> flags = new ArrayList<>();
-		List<String> args = new ArrayList<>();
-
-		flags.add(option(input.mode, input));
+		switch (input.mode) {
+		case Create:
+			generate(input, null);
+			break;
+		case Update:
+			generate(input, ZipIndex.read(input.jarPath));
+			break;
+		case CreateOrUpdate:
+			generate(input, FileCommands.fileExists(input.jarPath) ? ZipIndex.read(input.jarPath) : null);
+			break;
+		case List:
+			list(input);
+			break;
+		case Extract:
+			extract(input);
+			break;
+		case GenIndex:
+			genIndex(input);
+			break;
+		}
+		return None.val;
+	}
 
+	/**
+	 * Creates the jar file, or updates the given existing jar file as the
+	 * <code>jar</code> tool does: entries are replaced in place by files with
+	 * the same name, other entries are copied without recompressing them, and
+	 * the manifest file is merged into the existing manifest.
+	 */
+	private void generate(Input input, ZipIndex existing) throws IOException {
+		Manifest manifest = new Manifest();
+		if (existing != null && existing.contains(JarFile.MANIFEST_NAME))
+			manifest.read(new ByteArrayInputStream(existing.read(JarFile.MANIFEST_NAME)));
 		if (input.manifestPath != null) {
 			require(input.manifestPath);
-			flags.add("m");
-			args.add(input.manifestPath.getAbsolutePath());
+			try (InputStream in = new FileInputStream(input.manifestPath)) {
+				Manifest added = new Manifest(in);
+				manifest.getMainAttributes().putAll(added.getMainAttributes());
+				for (Map.Entry<String, Attributes> section : added.getEntries().entrySet()) {
+					Attributes attributes = manifest.getAttributes(section.getKey());
+					if (attributes == null)
+						manifest.getEntries().put(section.getKey(), section.getValue());
+					else
+						attributes.putAll(section.getValue());
+				}
+			}
+		}
+		Attributes main = manifest.getMainAttributes();
+		if (main.getValue(Attributes.Name.MANIFEST_VERSION) == null)
+			main.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		if (!input.reproducible && main.getValue("Created-By") == null)
+			main.putValue("Created-By", System.getProperty("java.version") + " (" + System.getProperty("java.vendor") + ")");
+
+		Map<String, File> files = new LinkedHashMap<>();
+		for (File classpath : input.files.keySet())
+			for (File f : input.files.get(classpath))
+				collectFiles(entryName(classpath, f), f, files);
+
+		JarWriter jar = new JarWriter();
+		// unchanged files are copied from the previous jar without recompressing them
+		jar.setStampsFile(FileCommands.addExtension(persistentPath(input), "stamps"));
+		jar.setReproducible(input.reproducible);
+		long now = System.currentTimeMillis();
+		jar.add(META_INF, new byte[0], now);
+		jar.addManifest(manifest, now);
+		if (existing != null)
+			for (String name : existing.getEntryNamesInOrder()) {
+				if (jar.contains(name))
+					continue;
+				File f = files.remove(name);
+				if (f == null)
+					jar.addFrom(existing, name);
+				else
+					addFile(jar, name, f);
+			}
+		for (Map.Entry<String, File> file : files.entrySet())
+			addFile(jar, file.getKey(), file.getValue());
+
+		write(jar, input.jarPath);
+	}
+
+	/**
+	 * Writes the jar file, which keeps its modification time if its content
+	 * does not change.
+	 */
+	private void write(JarWriter jar, File jarPath) throws IOException {
+		try {
+			jar.write(jarPath);
+			if (jar.isUnchanged())
+				Log.log.log("JAR file " + jarPath + " is unchanged", Log.DETAIL);
+		} finally {
+			provide(jarPath);
 		}
+	}
 
-		if (input.jarPath != null) {
-			flags.add("f");
-			args.add(input.jarPath.getAbsolutePath());
+	/**
+	 * Collects the given file, and the files of the given directory
+	 * recursively, by their entry names.
+	 */
+	private void collectFiles(String name, File f, Map<String, File> files) {
+		require(f);
+		if (f.isDirectory()) {
+			if (!name.isEmpty() && !name.endsWith("/"))
+				name = name + "/";
+			if (!name.isEmpty() && !files.containsKey(name))
+				files.put(name, f);
+			String[] children = f.list();
+			if (children != null) {
+				Arrays.sort(children);
+				for (String child : children)
+					collectFiles(name + child, new File(f, child), files);
+			}
 		}
+		else if (f.isFile() && !files.containsKey(name))
+			files.put(name, f);
+	}
+
+	private static void addFile(JarWriter jar, String name, File f) throws IOException {
+		if (jar.contains(name))
+			return;
+		if (f.isDirectory())
+			jar.add(name, new byte[0], f.lastModified());
+		else
+			jar.add(name, f, f.lastModified());
+	}
+
+	/**
+	 * Logs the names of the entries of the jar file, or of those entries that
+	 * correspond to the given files.
+	 */
+	private void list(Input input) throws IOException {
+		require(input.jarPath);
+		ZipIndex jar = ZipIndex.read(input.jarPath);
+		Set<String> selected = new HashSet<>();
+		for (File classpath : input.files.keySet())
+			selected.addAll(entryNames(classpath, input.files.get(classpath)));
+		for (String name : jar.getEntryNamesInOrder())
+			if (selected.isEmpty() || isSelected(name, selected))
+				Log.log.log(name, Log.CORE);
+	}
 
+	/**
+	 * Extracts the entries of the jar file that correspond to the given files
+	 * into their class path directories. A class path directory without files
+	 * receives all entries. Entries are inflated in parallel, and files that
+	 * are unchanged since the previous extraction are not written again.
+	 */
+	private void extract(Input input) throws IOException {
+		require(input.jarPath);
+		ZipIndex jar = ZipIndex.read(input.jarPath);
+		JarExtractor extractor = new JarExtractor(jar);
+		extractor.setStampsFile(FileCommands.addExtension(persistentPath(input), "stamps"));
+		List<String> names = jar.getEntryNamesInOrder();
 		for (File classpath : input.files.keySet()) {
-			Set<File> files = input.files.get(classpath);
-			if (!files.isEmpty()) {
-				for (File f : files) {
-					args.add("-C");
-					args.add(classpath.getAbsolutePath());
-					require(f);
-					args.add(FileCommands.getRelativePath(classpath, f).toString());
-				}
+			Path dir = classpath.getAbsoluteFile().toPath().normalize();
+			Set<String> selected = entryNames(classpath, input.files.get(classpath));
+			for (String name : names) {
+				if (!selected.isEmpty() && !isSelected(name, selected))
+					continue;
+				Path target = dir.resolve(name).normalize();
+				if (!target.startsWith(dir) || target.equals(dir))
+					throw new ZipException("Entry " + name + " of " + input.jarPath + " is outside of " + classpath);
+				extractor.add(name, target.toFile());
 			}
 		}
 
-		String[] command = new String[1 + 1 + args.size()];
-		command[0] = "jar";
-		command[1] = StringCommands.printListSeparated(flags, "");
-		int i = 2;
-		for (String arg : args) {
-			command[i] = arg;
-			i++;
+		for (File file : extractor.extract())
+			provide(file);
+		Log.log.log("Extracted " + extractor.getExtracted() + " files, " + extractor.getSkipped() + " unchanged", Log.DETAIL);
+	}
+
+	/**
+	 * Adds <code>META-INF/INDEX.LIST</code> to the jar file, which lists the
+	 * packages of the jar file and of the jar files on its
+	 * <code>Class-Path</code>, as the <code>jar</code> tool does. The jar
+	 * file is required by its entries other than the index, because it is
+	 * rewritten by this build.
+	 */
+	private void genIndex(Input input) throws IOException {
+		require(input.jarPath, JarContentStamper.excluding(INDEX_NAME));
+		ZipIndex existing = ZipIndex.read(input.jarPath);
+
+		StringBuilder index = new StringBuilder("JarIndex-Version: 1.0\n\n");
+		appendIndex(input.jarPath.getName(), existing, index);
+		if (existing.contains(JarFile.MANIFEST_NAME)) {
+			Manifest manifest = new Manifest(new ByteArrayInputStream(existing.read(JarFile.MANIFEST_NAME)));
+			String classPath = manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+			if (classPath != null)
+				for (String path : classPath.trim().split("\\s+")) {
+					File jar = new File(input.jarPath.getParentFile(), path);
+					if (!jar.isFile())
+						continue;
+					require(jar);
+					appendIndex(path, ZipIndex.read(jar), index);
+				}
 		}
 
-		try {
-			Exec.run(command);
-		} finally {
-			if (input.jarPath != null)
-				provide(input.jarPath);
+		JarWriter jar = new JarWriter();
+		jar.setReproducible(input.reproducible);
+		List<String> names = existing.getEntryNamesInOrder();
+		for (String name : names)
+			if (name.equals(META_INF) || name.equals(JarFile.MANIFEST_NAME))
+				jar.addFrom(existing, name);
+		jar.add(INDEX_NAME, index.toString().getBytes(StandardCharsets.UTF_8), System.currentTimeMillis());
+		for (String name : names)
+			if (!jar.contains(name))
+				jar.addFrom(existing, name);
+
+		write(jar, input.jarPath);
+	}
+
+	private static void appendIndex(String jarName, ZipIndex jar, StringBuilder index) {
+		Set<String> packages = new TreeSet<>();
+		for (String name : jar.getEntryNames()) {
+			if (name.equals(META_INF) || name.equals(JarFile.MANIFEST_NAME) || name.equals(INDEX_NAME))
+				continue;
+			int sep = name.lastIndexOf('/');
+			packages.add(sep < 0 ? name : name.substring(0, sep));
 		}
-		return None.val;
+		index.append(jarName).append('\n');
+		for (String pkg : packages)
+			index.append(pkg).append('\n');
+		index.append('\n');
+	}
+
+	private static Set<String> entryNames(File classpath, Set<File> files) {
+		Set<String> names = new HashSet<>();
+		for (File f : files)
+			names.add(entryName(classpath, f));
+		return names;
+	}
+
+	private static String entryName(File classpath, File f) {
+		return FileCommands.getRelativePath(classpath, f).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * @return whether the entry is one of the selected names or within one of
+	 *         the selected directories.
+	 */
+	private static boolean isSelected(String name, Set<String> selected) {
+		if (selected.contains(name) || name.endsWith("/") && selected.contains(name.substring(0, name.length() - 1)))
+			return true;
+		for (int sep = name.lastIndexOf('/', name.length() - 2); sep > 0; sep = name.lastIndexOf('/', sep - 1))
+			if (selected.contains(name.substring(0, sep)) || selected.contains(name.substring(0, sep + 1)))
+				return true;
+		return false;
 	}
 }
@@ -0,0 +1,427 @@
+package build.pluto.buildjava;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sugarj.common.FileCommands;
+import org.sugarj.common.Log;
+
+import build.pluto.buildjava.compiler.IJavaCompiler;
+import build.pluto.buildjava.compiler.JavaCompilerResult;
+import build.pluto.buildjava.compiler.JavaCompilerResultFile;
+import build.pluto.buildjava.stamp.CachedFileHashStamper;
+
+/**
+ * A local cache of compiler outputs, which restores the outputs of a
+ * compilation that was done before instead of invoking the compiler again,
+ * for example after switching branches or in a clean build.
+ *
+ * An entry is keyed by a digest of the paths and contents of the source files,
+ * the target directory, source path, and class path, the compiler options, the
+ * compiler, and the running JDK. The entry records the stamps of the class path
+ * files the compiler loaded and of all source files it read, including those
+ * it read from the source path without compiling them. These must be
+ * unchanged for the entry to be used.
+ * Generated files are stored once per content digest in the
+ * <code>objects</code> directory, such that entries share unchanged outputs.
+ *
+ * Once the cache exceeds its maximal size, the least recently used entries are
+ * evicted. The maximal size in bytes can be configured through the system
+ * property <code>pluto.buildjava.outputCache.maxSize</code>.
+ */
+public class OutputCache {
+
+	public static final long DEFAULT_MAX_SIZE = 1L << 30;
+
+	private static final Map<File, OutputCache> caches = new HashMap<>();
+
+	/**
+	 * @return the process-wide cache in the given directory.
+	 */
+	public static OutputCache get(File dir) {
+		File file = dir.getAbsoluteFile();
+		synchronized (caches) {
+			OutputCache cache = caches.get(file);
+			if (cache == null) {
+				cache = new OutputCache(file, Long.getLong("pluto.buildjava.outputCache.maxSize", DEFAULT_MAX_SIZE));
+				caches.put(file, cache);
+			}
+			return cache;
+		}
+	}
+
+	private final File dir;
+	private final File entries;
+	private final File objects;
+	private final long maxSize;
+
+	/**
+	 * The size of all entries and objects, computed on first use.
+	 */
+	private long size = -1;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong stores = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public OutputCache(File dir, long maxSize) {
+		this.dir = dir.getAbsoluteFile();
+		this.entries = new File(this.dir, "entries");
+		this.objects = new File(this.dir, "objects");
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the key of a compilation with the given arguments.
+	 */
+	public static String key(
+			Collection<File> sourceFiles,
+			File targetDir,
+			Collection<File> sourcePath,
+			Collection<File> classPath,
+			String sourceRelease,
+			String targetRelease,
+			Collection<String> additionalArgs,
+			IJavaCompiler compiler) throws IOException {
+		final MessageDigest digest = sha1();
+		update(digest, System.getProperty("java.home"));
+		update(digest, System.getProperty("java.version"));
+		try (ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				digest.update((byte) b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				digest.update(b, off, len);
+			}
+		})) {
+			out.writeObject(compiler);
+		}
+		update(digest, sourceRelease);
+		update(digest, targetRelease);
+		update(digest, String.valueOf(additionalArgs));
+		update(digest, targetDir.getAbsolutePath());
+		update(digest, String.valueOf(sourcePath));
+		update(digest, String.valueOf(classPath));
+
+		File[] sources = sourceFiles.toArray(new File[sourceFiles.size()]);
+		Arrays.sort(sources);
+		for (File source : sources) {
+			update(digest, source.getAbsolutePath());
+			update(digest, CachedFileHashStamper.digest(source));
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Restores the generated files of the entry with the given key.
+	 *
+	 * @return the result of the cached compilation, or <code>null</code> if
+	 *         there is no entry or a class path file it used has changed.
+	 */
+	public synchronized JavaCompilerResult restore(String key) throws IOException {
+		File entry = new File(entries, key);
+		JavaCompilerResultFile cached = readEntry(entry);
+		if (cached == null || !isValid(cached)) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		JavaCompilerResult result = new JavaCompilerResult();
+		try {
+			for (File source : cached.getSourceFiles()) {
+				result.addSourceFile(source);
+				for (File gen : cached.getGeneratedFiles(source)) {
+					FileCommands.createDir(gen.getParentFile());
+					Files.copy(object(cached.getFileStamp(gen)).toPath(), gen.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					result.addGeneratedFile(source, gen);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// evicted by another process
+			misses.incrementAndGet();
+			return null;
+		}
+		for (File loaded : cached.getLoadedClassFiles())
+			result.addLoadedClassFile(loaded);
+		for (Entry<File, Collection<String>> e : cached.getLoadedFromZippedFile().entrySet())
+			if (e.getValue() == null)
+				result.addLoadedZippedFile(e.getKey());
+			else
+				for (String zipped : e.getValue())
+					result.addLoadedFromZippedFile(e.getKey(), zipped);
+
+		entry.setLastModified(System.currentTimeMillis());
+		hits.incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * Stores the generated files of a compilation under the given key. Does
+	 * nothing if a generated file does not exist.
+	 */
+	public synchronized void store(String key, JavaCompilerResult result) throws IOException {
+		Set<File> gens = new HashSet<>();
+		for (Collection<File> sourceGens : result.getSourceTargetFiles().values())
+			gens.addAll(sourceGens);
+
+		JavaCompilerResult cached = new JavaCompilerResult();
+		for (Entry<File, Collection<File>> e : result.getSourceTargetFiles().entrySet()) {
+			cached.addSourceFile(e.getKey());
+			cached.addFileStamp(e.getKey(), IncrementalCompilation.sourceStamp(e.getKey()));
+			for (File gen : e.getValue()) {
+				if (!FileCommands.exists(gen)) {
+					Log.log.log("Cannot cache compiler outputs, generated file " + gen + " does not exist", Log.DETAIL);
+					return;
+				}
+				cached.addGeneratedFile(e.getKey(), gen);
+				cached.addFileStamp(gen, storeObject(gen));
+			}
+		}
+		Map<File, Collection<String>> zipped = result.getLoadedFromZippedFile();
+		for (File loaded : result.getLoadedClassFiles()) {
+			cached.addLoadedClassFile(loaded);
+			if (!gens.contains(loaded))
+				cached.addFileStamp(loaded, IncrementalCompilation.classPathStamp(loaded, zipped));
+		}
+		for (Entry<File, Collection<String>> e : zipped.entrySet()) {
+			if (e.getValue() == null)
+				cached.addLoadedZippedFile(e.getKey());
+			else
+				for (String entry : e.getValue())
+					cached.addLoadedFromZippedFile(e.getKey(), entry);
+			cached.addFileStamp(e.getKey(), IncrementalCompilation.classPathStamp(e.getKey(), zipped));
+		}
+
+		File entry = new File(entries, key);
+		File tmp = tempFile();
+		JavaCompilerResultFile.write(cached, tmp);
+		long replaced = entry.length();
+		move(tmp, entry);
+		stores.incrementAndGet();
+
+		size = size() + entry.length() - replaced;
+		if (size > maxSize)
+			evict();
+	}
+
+	/**
+	 * @return the size of all entries and objects in bytes.
+	 */
+	public synchronized long size() {
+		if (size < 0) {
+			size = 0;
+			for (File entry : list(entries))
+				size += entry.length();
+			for (File prefix : list(objects))
+				for (File object : list(prefix))
+					size += object.length();
+		}
+		return size;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getStores() {
+		return stores.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the ratio of restores that hit an entry, or 0 if nothing was
+	 *         restored yet.
+	 */
+	public double getHitRate() {
+		long hits = getHits();
+		long lookups = hits + getMisses();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public String toString() {
+		return "OutputCache(dir=" + dir + ", size=" + size() + ", maxSize=" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses() + ", stores="
+				+ getStores() + ", evictions=" + getEvictions() + ")";
+	}
+
+	private boolean isValid(JavaCompilerResultFile cached) throws IOException {
+		Set<File> gens = new HashSet<>();
+		for (File source : cached.getSourceFiles()) {
+			// sources that are not part of the key, because they were read from the source path
+			if (!Objects.equals(cached.getFileStamp(source), IncrementalCompilation.sourceStamp(source)))
+				return false;
+			gens.addAll(cached.getGeneratedFiles(source));
+		}
+		Map<File, Collection<String>> zipped = cached.getLoadedFromZippedFile();
+		for (File loaded : cached.getLoadedClassFiles())
+			if (!gens.contains(loaded) && !Objects.equals(cached.getFileStamp(loaded), IncrementalCompilation.classPathStamp(loaded, zipped)))
+				return false;
+		for (File zip : zipped.keySet())
+			if (!Objects.equals(cached.getFileStamp(zip), IncrementalCompilation.classPathStamp(zip, zipped)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache is filled to
+	 * three quarters of its maximal size, and deletes the objects that are no
+	 * longer referenced.
+	 */
+	private void evict() throws IOException {
+		List<File> byAge = new ArrayList<>(list(entries));
+		final Map<File, Long> lastModified = new HashMap<>();
+		for (File entry : byAge)
+			lastModified.put(entry, entry.lastModified());
+		Collections.sort(byAge, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(lastModified.get(f2), lastModified.get(f1));
+			}
+		});
+
+		long target = maxSize / 4 * 3;
+		long kept = 0;
+		Set<String> referenced = new HashSet<>();
+		for (File entry : byAge) {
+			JavaCompilerResultFile cached = kept <= target ? readEntry(entry) : null;
+			long entrySize = entry.length();
+			Set<String> objectIds = new HashSet<>();
+			if (cached != null)
+				for (File source : cached.getSourceFiles())
+					for (File gen : cached.getGeneratedFiles(source))
+						if (!referenced.contains(cached.getFileStamp(gen)) && objectIds.add(cached.getFileStamp(gen)))
+							entrySize += object(cached.getFileStamp(gen)).length();
+			if (cached != null && kept + entrySize <= target) {
+				kept += entrySize;
+				referenced.addAll(objectIds);
+			}
+			else {
+				kept = target + 1;
+				entry.delete();
+				evictions.incrementAndGet();
+			}
+		}
+
+		for (File prefix : list(objects))
+			for (File object : list(prefix))
+				if (!referenced.contains(prefix.getName() + object.getName()))
+					object.delete();
+		size = -1;
+	}
+
+	private JavaCompilerResultFile readEntry(File entry) {
+		if (!entry.exists())
+			return null;
+		try {
+			return JavaCompilerResultFile.read(entry);
+		} catch (IOException e) {
+			Log.log.log("Cannot read cached compilation result " + entry + ": " + e.getMessage(), Log.DETAIL);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the content of the given file as an object, unless an object with
+	 * the same content exists.
+	 *
+	 * @return the content digest that identifies the object.
+	 */
+	private String storeObject(File file) throws IOException {
+		byte[] content = Files.readAllBytes(file.toPath());
+		String id = toHex(sha1().digest(content));
+		File object = object(id);
+		if (!object.exists()) {
+			File tmp = tempFile();
+			Files.write(tmp.toPath(), content);
+			FileCommands.createDir(object.getParentFile());
+			move(tmp, object);
+			size = size() + content.length;
+		}
+		return id;
+	}
+
+	private File object(String id) {
+		return new File(new File(objects, id.substring(0, 2)), id.substring(2));
+	}
+
+	private File tempFile() throws IOException {
+		FileCommands.createDir(dir);
+		return File.createTempFile("tmp", null, dir);
+	}
+
+	/**
+	 * Moves a file into place atomically, such that concurrent builds never
+	 * see a partially written entry or object.
+	 */
+	private static void move(File from, File to) throws IOException {
+		FileCommands.createDir(to.getParentFile());
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static List<File> list(File dir) {
+		File[] files = dir.listFiles();
+		return files == null ? new ArrayList<File>() : Arrays.asList(files);
+	}
+
+	private static void update(MessageDigest digest, String s) {
+		if (s != null)
+			digest.update(s.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes)
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return hex.toString();
+	}
+}
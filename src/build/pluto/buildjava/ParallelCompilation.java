@@ -0,0 +1,499 @@
+package build.pluto.buildjava;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.sugarj.common.FileCommands;
+import org.sugarj.common.Log;
+
+import build.pluto.buildjava.compiler.JavaCompilerResult;
+import build.pluto.buildjava.compiler.JavaCompilerResultFile;
+import build.pluto.buildjava.util.ClassReferences;
+
+/**
+ * Compiles the source files of a {@link JavaBulkCompiler} in parallel, based
+ * on the source dependencies recorded in the result of the previous build.
+ *
+ * The dependency graph is split into strongly connected components, which are
+ * arranged in levels such that each component only depends on components of
+ * lower levels. The components of a level are distributed over at most
+ * <code>parallelism</code> batches that are compiled concurrently, each into
+ * its own temporary directory within the target directory. The class files
+ * of a level are moved into the target directory before the next level
+ * starts. If a batch fails, the other batches of its level are cancelled and
+ * awaited before their directories are deleted.
+ *
+ * If the recorded dependencies turn out to be outdated, i.e., a batch used a
+ * source file that was compiled concurrently or later, the parallel
+ * compilation is abandoned and the builder falls back to a single compiler
+ * invocation. The offending dependencies are remembered for the next build.
+ */
+class ParallelCompilation {
+
+	private final JavaCompilerInput input;
+	private final JavaCompilerResultFile previous;
+
+	/**
+	 * Maps class files of the previous build to their source files.
+	 */
+	private final Map<File, File> classSources = new HashMap<>();
+
+	/**
+	 * Maps source files to the source files they used although they were not
+	 * compiled before them.
+	 */
+	private final Map<File, Collection<File>> violations = new HashMap<>();
+
+	ParallelCompilation(JavaCompilerInput input, JavaCompilerResultFile previous) {
+		this.input = input;
+		this.previous = previous;
+		for (File source : previous.getSourceFiles())
+			for (File gen : previous.getGeneratedFiles(source))
+				classSources.put(gen, source);
+	}
+
+	Map<File, Collection<File>> getViolations() {
+		return violations;
+	}
+
+	/**
+	 * @return the merged result of all batches, or <code>null</code> if the
+	 *         sources should be compiled in a single invocation instead.
+	 */
+	JavaCompilerResult compile() throws Exception {
+		List<List<List<File>>> levels = partition();
+		int batches = 0;
+		for (List<List<File>> level : levels)
+			batches = Math.max(batches, level.size());
+		if (batches <= 1)
+			return null;
+
+		Map<File, Integer> levelOf = new HashMap<>();
+		for (int i = 0; i < levels.size(); i++)
+			for (List<File> batch : levels.get(i))
+				for (File source : batch)
+					levelOf.put(source, i);
+
+		Log.log.log("Compile " + input.sourceFiles.size() + " source files in " + levels.size() + " levels of at most " + batches + " parallel batches", Log.DETAIL);
+
+		JavaCompilerResult merged = new JavaCompilerResult();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(batches, input.parallelism));
+		try {
+			for (int i = 0; i < levels.size(); i++) {
+				List<List<File>> level = levels.get(i);
+				List<File> tempDirs = new ArrayList<>();
+				List<Future<JavaCompilerResult>> futures = new ArrayList<>();
+				boolean completed = false;
+				try {
+					for (List<File> batch : level) {
+						File tempDir = createTempDir();
+						tempDirs.add(tempDir);
+						futures.add(executor.submit(compileTask(batch, tempDir)));
+					}
+
+					List<JavaCompilerResult> results = new ArrayList<>();
+					for (Future<JavaCompilerResult> future : futures)
+						try {
+							results.add(future.get());
+						} catch (ExecutionException e) {
+							if (e.getCause() instanceof Exception)
+								throw (Exception) e.getCause();
+							throw e;
+						}
+					completed = true;
+
+					for (int b = 0; b < level.size(); b++)
+						checkUsedSources(level.get(b), results.get(b), levelOf, i);
+					if (!violations.isEmpty()) {
+						Log.log.log("Source dependencies changed, compile all source files at once", Log.DETAIL);
+						return null;
+					}
+
+					for (int b = 0; b < level.size(); b++) {
+						moveClassFiles(tempDirs.get(b), tempDirs.get(b));
+						merge(results.get(b), tempDirs.get(b), merged);
+					}
+				} finally {
+					if (!completed) {
+						for (Future<JavaCompilerResult> f : futures)
+							f.cancel(true);
+						awaitTermination(executor);
+					}
+					for (File tempDir : tempDirs)
+						deleteRecursive(tempDir);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// classes compiled by an earlier level are generated, not loaded
+		for (Collection<File> gens : merged.getSourceTargetFiles().values())
+			for (File gen : gens)
+				merged.removeLoadedClassFile(gen);
+		return merged;
+	}
+
+	/**
+	 * Creates a temporary directory for a batch within the target directory,
+	 * such that its class files can be moved into place without copying them
+	 * across file systems. The directory name is not a valid package name, so
+	 * batches do not see each other's classes through the target directory on
+	 * their class path, and a {@link JavaBuildWatcher} ignores it like all
+	 * changes within the target directory.
+	 */
+	private File createTempDir() throws IOException {
+		Files.createDirectories(input.targetDir.toPath());
+		return Files.createTempDirectory(input.targetDir.toPath(), ".pluto-javac-").toFile();
+	}
+
+	/**
+	 * Waits until the cancelled batches have ended. In-process compilers only
+	 * notice interruption when they access files, and would otherwise keep
+	 * writing into temporary directories that are being deleted.
+	 */
+	private static void awaitTermination(ExecutorService executor) {
+		executor.shutdownNow();
+		boolean interrupted = false;
+		try {
+			while (true)
+				try {
+					if (executor.awaitTermination(1, TimeUnit.MINUTES))
+						return;
+					Log.log.log("Waiting for cancelled compilations to end", Log.CORE);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private Callable<JavaCompilerResult> compileTask(final List<File> batch, final File tempDir) {
+		// the batch reads classes of earlier levels from the target directory
+		final List<File> classPath = new ArrayList<>();
+		classPath.add(input.targetDir);
+		for (File cp : input.classPath)
+			if (!cp.equals(input.targetDir))
+				classPath.add(cp);
+
+		return new Callable<JavaCompilerResult>() {
+			@Override
+			public JavaCompilerResult call() throws Exception {
+				return input.compiler.compile(batch, tempDir, input.sourcePath, classPath, input.sourceRelease, input.targetRelease, input.additionalArgs);
+			}
+		};
+	}
+
+	/**
+	 * Splits the source files into levels of batches. Source files without
+	 * recorded dependencies are compiled in a final level of their own.
+	 */
+	List<List<List<File>>> partition() {
+		Set<File> sources = new LinkedHashSet<>(input.sourceFiles);
+		List<File> known = new ArrayList<>();
+		List<File> unknown = new ArrayList<>();
+		for (File source : sources)
+			if (previous.isSourceFile(source))
+				known.add(source);
+			else
+				unknown.add(source);
+
+		Map<File, List<File>> graph = new HashMap<>();
+		for (File source : known) {
+			List<File> deps = new ArrayList<>();
+			for (File dep : previous.getSourceDependencies(source))
+				if (sources.contains(dep) && !dep.equals(source) && previous.isSourceFile(dep))
+					deps.add(dep);
+			graph.put(source, deps);
+		}
+
+		List<List<File>> components = stronglyConnectedComponents(known, graph);
+
+		// components are ordered such that dependencies come first
+		Map<File, Integer> componentOf = new HashMap<>();
+		for (int c = 0; c < components.size(); c++)
+			for (File source : components.get(c))
+				componentOf.put(source, c);
+		int[] componentLevel = new int[components.size()];
+		List<List<List<File>>> componentsByLevel = new ArrayList<>();
+		for (int c = 0; c < components.size(); c++) {
+			int level = 0;
+			for (File source : components.get(c))
+				for (File dep : graph.get(source)) {
+					int d = componentOf.get(dep);
+					if (d != c)
+						level = Math.max(level, componentLevel[d] + 1);
+				}
+			componentLevel[c] = level;
+			while (componentsByLevel.size() <= level)
+				componentsByLevel.add(new ArrayList<List<File>>());
+			componentsByLevel.get(level).add(components.get(c));
+		}
+
+		List<List<List<File>>> levels = new ArrayList<>();
+		for (List<List<File>> level : componentsByLevel)
+			levels.add(batches(level, input.parallelism));
+		if (!unknown.isEmpty())
+			levels.add(Collections.singletonList(unknown));
+		return levels;
+	}
+
+	/**
+	 * Distributes components over at most n batches of similar size, largest
+	 * components first.
+	 */
+	private static List<List<File>> batches(List<List<File>> components, int n) {
+		List<List<File>> sorted = new ArrayList<>(components);
+		Collections.sort(sorted, new Comparator<List<File>>() {
+			@Override
+			public int compare(List<File> a, List<File> b) {
+				return Integer.compare(b.size(), a.size());
+			}
+		});
+
+		List<List<File>> batches = new ArrayList<>();
+		for (List<File> component : sorted) {
+			if (batches.size() < n)
+				batches.add(new ArrayList<File>());
+			List<File> smallest = batches.get(0);
+			for (List<File> batch : batches)
+				if (batch.size() < smallest.size())
+					smallest = batch;
+			smallest.addAll(component);
+		}
+		return batches;
+	}
+
+	/**
+	 * Tarjan's algorithm without recursion, such that long dependency chains
+	 * cannot overflow the stack. Components are returned in reverse
+	 * topological order, that is, each component after all components it
+	 * depends on.
+	 */
+	static List<List<File>> stronglyConnectedComponents(List<File> nodes, Map<File, List<File>> graph) {
+		Map<File, Integer> index = new HashMap<>();
+		Map<File, Integer> lowlink = new HashMap<>();
+		Set<File> onStack = new HashSet<>();
+		List<File> stack = new ArrayList<>();
+		List<List<File>> components = new ArrayList<>();
+
+		List<File> callStack = new ArrayList<>();
+		List<Integer> edgeStack = new ArrayList<>();
+		int next = 0;
+
+		for (File root : nodes) {
+			if (index.containsKey(root))
+				continue;
+			callStack.add(root);
+			edgeStack.add(0);
+			index.put(root, next);
+			lowlink.put(root, next);
+			next++;
+			stack.add(root);
+			onStack.add(root);
+
+			while (!callStack.isEmpty()) {
+				int top = callStack.size() - 1;
+				File node = callStack.get(top);
+				int edge = edgeStack.get(top);
+				List<File> deps = graph.get(node);
+				if (edge < deps.size()) {
+					edgeStack.set(top, edge + 1);
+					File dep = deps.get(edge);
+					if (!index.containsKey(dep)) {
+						index.put(dep, next);
+						lowlink.put(dep, next);
+						next++;
+						stack.add(dep);
+						onStack.add(dep);
+						callStack.add(dep);
+						edgeStack.add(0);
+					}
+					else if (onStack.contains(dep))
+						lowlink.put(node, Math.min(lowlink.get(node), index.get(dep)));
+					continue;
+				}
+
+				callStack.remove(top);
+				edgeStack.remove(top);
+				if (top > 0) {
+					File parent = callStack.get(top - 1);
+					lowlink.put(parent, Math.min(lowlink.get(parent), lowlink.get(node)));
+				}
+				if (lowlink.get(node).equals(index.get(node))) {
+					List<File> component = new ArrayList<>();
+					File member;
+					do {
+						member = stack.remove(stack.size() - 1);
+						onStack.remove(member);
+						component.add(member);
+					} while (!member.equals(node));
+					components.add(component);
+				}
+			}
+		}
+		return components;
+	}
+
+	/**
+	 * Records a violation for every source file of the bulk that the batch
+	 * used although it is not compiled in an earlier level.
+	 */
+	private void checkUsedSources(List<File> batch, JavaCompilerResult result, Map<File, Integer> levelOf, int level) {
+		Set<File> used = new HashSet<>(result.getSourceTargetFiles().keySet());
+		for (File loaded : result.getLoadedClassFiles()) {
+			File source = classSources.get(loaded);
+			if (source != null)
+				used.add(source);
+		}
+
+		Set<File> inBatch = new HashSet<>(batch);
+		for (File source : used) {
+			Integer usedLevel = levelOf.get(source);
+			if (usedLevel != null && usedLevel >= level && !inBatch.contains(source))
+				for (File s : batch) {
+					Collection<File> deps = violations.get(s);
+					if (deps == null) {
+						deps = new HashSet<>();
+						violations.put(s, deps);
+					}
+					deps.add(source);
+				}
+		}
+	}
+
+	private void moveClassFiles(File dir, File tempDir) throws IOException {
+		File[] children = dir.listFiles();
+		if (children == null)
+			return;
+		for (File file : children)
+			if (file.isDirectory())
+				moveClassFiles(file, tempDir);
+			else {
+				File target = relocate(file, tempDir);
+				FileCommands.createDir(target.getParentFile());
+				Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+	}
+
+	private void merge(JavaCompilerResult result, File tempDir, JavaCompilerResult merged) {
+		for (Entry<File, Collection<File>> e : result.getSourceTargetFiles().entrySet()) {
+			merged.addSourceFile(e.getKey());
+			for (File gen : e.getValue())
+				merged.addGeneratedFile(e.getKey(), relocate(gen, tempDir));
+		}
+		for (File loaded : result.getLoadedClassFiles())
+			merged.addLoadedClassFile(relocate(loaded, tempDir));
+		for (Entry<File, Collection<String>> e : result.getLoadedFromZippedFile().entrySet())
+			for (String entry : e.getValue())
+				merged.addLoadedFromZippedFile(e.getKey(), entry);
+	}
+
+	private File relocate(File file, File tempDir) {
+		Path rel = FileCommands.getRelativePath(tempDir, file);
+		return rel == null ? file : new File(input.targetDir, rel.toString());
+	}
+
+	private static void deleteRecursive(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				deleteRecursive(child);
+		file.delete();
+	}
+
+	/**
+	 * Records the dependencies of the given source files on the other compiled
+	 * source files, based on the classes referenced by their class files.
+	 *
+	 * Constants are inlined by the compiler and leave no reference to their
+	 * class. Hence a source file additionally depends on all source files that
+	 * declare a constant whose name occurs as an identifier in its text.
+	 */
+	static void recordSourceDependencies(JavaCompilerResult result, File targetDir, Collection<File> sources) throws IOException {
+		Map<String, File> classToSource = new HashMap<>();
+		Map<String, Set<File>> constantToSources = new HashMap<>();
+		for (Entry<File, Collection<File>> e : result.getSourceTargetFiles().entrySet())
+			for (File gen : e.getValue()) {
+				Path rel = FileCommands.getRelativePath(targetDir, gen);
+				if (rel == null || !rel.toString().endsWith(".class"))
+					continue;
+				classToSource.put(FileCommands.dropExtension(rel).toString().replace(File.separatorChar, '/'), e.getKey());
+				if (gen.exists())
+					for (String constant : ClassReferences.constants(Files.readAllBytes(gen.toPath()))) {
+						Set<File> declaring = constantToSources.get(constant);
+						if (declaring == null) {
+							declaring = new HashSet<>();
+							constantToSources.put(constant, declaring);
+						}
+						declaring.add(e.getKey());
+					}
+			}
+
+		for (File source : sources) {
+			Collection<File> gens = result.getSourceTargetFiles().get(source);
+			if (gens == null)
+				continue;
+			for (File gen : gens) {
+				if (!gen.getName().endsWith(".class") || !gen.exists())
+					continue;
+				for (String referenced : ClassReferences.of(Files.readAllBytes(gen.toPath()))) {
+					File dep = classToSource.get(referenced);
+					if (dep != null && !dep.equals(source))
+						result.addSourceDependency(source, dep);
+				}
+			}
+			if (!constantToSources.isEmpty() && source.exists())
+				for (String identifier : identifiers(source)) {
+					Set<File> declaring = constantToSources.get(identifier);
+					if (declaring != null)
+						for (File dep : declaring)
+							if (!dep.equals(source))
+								result.addSourceDependency(source, dep);
+				}
+		}
+	}
+
+	/**
+	 * @return all Java identifiers in the text of the source file, including
+	 *         those in comments and string literals.
+	 */
+	private static Set<String> identifiers(File source) throws IOException {
+		String text = new String(Files.readAllBytes(source.toPath()), StandardCharsets.UTF_8);
+		Set<String> identifiers = new HashSet<>();
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			if (!Character.isJavaIdentifierStart(text.charAt(i)))
+				continue;
+			int end = i + 1;
+			while (end < length && Character.isJavaIdentifierPart(text.charAt(end)))
+				end++;
+			identifiers.add(text.substring(i, end));
+			i = end - 1;
+		}
+		return identifiers;
+	}
+}
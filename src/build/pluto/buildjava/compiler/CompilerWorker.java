@@ -0,0 +1,228 @@
+package build.pluto.buildjava.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sugarj.common.Log;
+
+/**
+ * A long-running compiler process that serves compile requests of
+ * {@link WorkerJavaCompiler} clients over a loopback socket. Keeping the
+ * process alive between builds keeps the compiler classes loaded and
+ * JIT-compiled.
+ *
+ * The worker publishes its port and an access token in a port file that is
+ * only readable by the current user. Clients have to send the token before
+ * any serialized data is read. The worker terminates itself after it has been
+ * idle for the configured time. Clients that do not send their request within
+ * the idle time (or within a minute, whichever is shorter) are disconnected,
+ * so that a stalled client cannot keep the worker alive.
+ */
+public class CompilerWorker {
+
+	private static final long REQUEST_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+	static class CompileRequest implements Serializable {
+		private static final long serialVersionUID = -4418237750419532166L;
+
+		final IJavaCompiler compiler;
+		final Collection<File> sourceFiles;
+		final File targetDir;
+		final Collection<File> sourcePath;
+		final Collection<File> classPath;
+		final String sourceRelease;
+		final String targetRelease;
+		final Collection<String> additionalArguments;
+
+		CompileRequest(IJavaCompiler compiler, Collection<File> sourceFiles, File targetDir, Collection<File> sourcePath, Collection<File> classPath, String sourceRelease, String targetRelease, Collection<String> additionalArguments) {
+			this.compiler = compiler;
+			this.sourceFiles = sourceFiles;
+			this.targetDir = targetDir;
+			this.sourcePath = sourcePath;
+			this.classPath = classPath;
+			this.sourceRelease = sourceRelease;
+			this.targetRelease = targetRelease;
+			this.additionalArguments = additionalArguments;
+		}
+	}
+
+	static class CompileResponse implements Serializable {
+		private static final long serialVersionUID = 2208791410516573325L;
+
+		final JavaCompilerResult result;
+		final Throwable error;
+
+		CompileResponse(JavaCompilerResult result, Throwable error) {
+			this.result = result;
+			this.error = error;
+		}
+	}
+
+	private final File portFile;
+	private final long idleTimeout;
+	private final ServerSocket server;
+	private final ExecutorService pool;
+	private final ScheduledExecutorService idleChecker;
+	private final String token;
+
+	private final AtomicInteger activeRequests = new AtomicInteger();
+	private volatile long lastActivity = System.currentTimeMillis();
+
+	private CompilerWorker(File portFile, int poolSize, long idleTimeout) throws IOException {
+		this.portFile = portFile;
+		this.idleTimeout = idleTimeout;
+		this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		this.pool = Executors.newFixedThreadPool(poolSize);
+		this.idleChecker = Executors.newSingleThreadScheduledExecutor();
+
+		byte[] tokenBytes = new byte[16];
+		new SecureRandom().nextBytes(tokenBytes);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : tokenBytes)
+			sb.append(String.format("%02x", b));
+		this.token = sb.toString();
+	}
+
+	/**
+	 * Usage: <code>CompilerWorker portFile poolSize idleTimeoutMillis</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3)
+			throw new IllegalArgumentException("Usage: CompilerWorker <portFile> <poolSize> <idleTimeoutMillis>");
+		CompilerWorker worker = new CompilerWorker(new File(args[0]), Integer.parseInt(args[1]), Long.parseLong(args[2]));
+		worker.run();
+	}
+
+	private void run() throws IOException {
+		publishPort();
+		idleChecker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (activeRequests.get() == 0 && System.currentTimeMillis() - lastActivity > idleTimeout)
+					shutdown();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+
+		try {
+			while (!server.isClosed()) {
+				final Socket client;
+				try {
+					client = server.accept();
+				} catch (SocketException e) {
+					break; // server socket was closed by shutdown
+				}
+				activeRequests.incrementAndGet();
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							serve(client);
+						} finally {
+							lastActivity = System.currentTimeMillis();
+							activeRequests.decrementAndGet();
+						}
+					}
+				});
+			}
+		} finally {
+			shutdown();
+		}
+	}
+
+	private void publishPort() throws IOException {
+		File dir = portFile.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		File tmp = File.createTempFile("worker", ".port", dir);
+		tmp.setReadable(false, false);
+		tmp.setReadable(true, true);
+		Files.write(tmp.toPath(), (server.getLocalPort() + "\n" + token + "\n").getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), portFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private synchronized void shutdown() {
+		if (server.isClosed())
+			return;
+		try {
+			server.close();
+		} catch (IOException e) {
+			// ignore, we are going down anyway
+		}
+		try {
+			// only remove the port file if no other worker replaced it meanwhile
+			if (portFile.exists() && new String(Files.readAllBytes(portFile.toPath()), StandardCharsets.UTF_8).contains(token))
+				Files.delete(portFile.toPath());
+		} catch (IOException e) {
+			// ignore, clients will fail to connect and start a new worker
+		}
+		pool.shutdown();
+		idleChecker.shutdown();
+	}
+
+	private void serve(Socket client) {
+		try (Socket socket = client) {
+			socket.setSoTimeout((int) Math.max(1, Math.min(idleTimeout, REQUEST_TIMEOUT)));
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			if (!token.equals(in.readUTF()))
+				return;
+
+			CompileRequest req = (CompileRequest) new ObjectInputStream(in).readObject();
+
+			CompileResponse resp;
+			try {
+				JavaCompilerResult result = req.compiler.compile(req.sourceFiles, req.targetDir, req.sourcePath, req.classPath, req.sourceRelease, req.targetRelease, req.additionalArguments);
+				resp = new CompileResponse(result, null);
+			} catch (Throwable e) {
+				resp = new CompileResponse(null, e);
+			}
+
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.write(serializeResponse(resp));
+			out.flush();
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			Log.log.logErr("Cannot serve compile request from " + client.getRemoteSocketAddress() + ": " + e, Log.CORE);
+		}
+	}
+
+	private static byte[] serializeResponse(CompileResponse resp) throws IOException {
+		try {
+			return serialize(resp);
+		} catch (IOException e) {
+			if (resp.error == null)
+				throw e;
+			// the error thrown by the compiler is not serializable, send its stack trace instead
+			StringWriter trace = new StringWriter();
+			resp.error.printStackTrace(new PrintWriter(trace));
+			return serialize(new CompileResponse(null, new IllegalStateException(trace.toString())));
+		}
+	}
+
+	private static byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream objOut = new ObjectOutputStream(bytes)) {
+			objOut.writeObject(o);
+		}
+		return bytes.toByteArray();
+	}
+}
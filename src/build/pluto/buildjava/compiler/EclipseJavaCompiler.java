@@ -3,16 +3,30 @@ package build.pluto.buildjava.compiler;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.nio.file.Path;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-
-import org.eclipse.jdt.core.compiler.batch.BatchCompiler;
+import java.util.Set;
+
+import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.core.compiler.InvalidInputException;
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.Compiler;
+import org.eclipse.jdt.internal.compiler.DefaultErrorHandlingPolicies;
+import org.eclipse.jdt.internal.compiler.ICompilerRequestor;
+import org.eclipse.jdt.internal.compiler.batch.CompilationUnit;
+import org.eclipse.jdt.internal.compiler.batch.Main;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.impl.CompilerOptions;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblem;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
 import org.sugarj.common.FileCommands;
 import org.sugarj.common.errors.SourceCodeException;
 import org.sugarj.common.errors.SourceLocation;
@@ -20,54 +34,116 @@ import org.sugarj.common.path.AbsolutePath;
 import org.sugarj.common.util.Pair;
 
 /**
- * 
+ *
  * Provides methods related to processing Java. Mainly, we provide a method for
  * compiling Java code.
+ *
+ * Uses the Eclipse compiler in-process. Types are resolved through a
+ * {@link RecordingNameEnvironment}, which records every class file and source
+ * file that is used. Like <code>javac -implicit:none</code>, only class files
+ * for the given source files are written, and only if compilation succeeded.
  */
 public class EclipseJavaCompiler implements IJavaCompiler {
 
 	private static final long serialVersionUID = 1494247105986013915L;
-	
-	public static final EclipseJavaCompiler instance = new EclipseJavaCompiler(); 
-	private EclipseJavaCompiler() { } 
-	
+
+	public static final EclipseJavaCompiler instance = new EclipseJavaCompiler();
+	private EclipseJavaCompiler() { }
+
 	public JavaCompilerResult compile(
 			Collection<File> sourceFiles,
-			File targetDir, 
+			File targetDir,
 			Collection<File> sourcePath,
 			Collection<File> classPath,
 			String sourceRelease,
 			String targetRelease,
 			Collection<String> additionalArguments) throws Exception {
-		StringBuilder cpBuilder = new StringBuilder();
+		Map<String, String> options = compilerOptions(sourceFiles, targetDir, sourceRelease, targetRelease, additionalArguments);
+		String encoding = options.get(CompilerOptions.OPTION_Encoding);
 
-		List<String> cmd = new ArrayList<>();
-
-		if (sourcePath != null && sourcePath.size() > 0) {
-			StringBuilder sourcepath = new StringBuilder();
+		List<File> binaryPath = RecordingNameEnvironment.platformClassPath();
+		binaryPath.add(targetDir.getAbsoluteFile());
+		for (File p : classPath)
+			binaryPath.add(p.getAbsoluteFile());
+		List<File> sources = new ArrayList<>();
+		if (sourcePath != null)
 			for (File p : sourcePath)
-				sourcepath.append(FileCommands.toWindowsPath(p.getAbsolutePath())).append(File.pathSeparator);
-			String sourcePathtring = sourcepath.toString();
-			sourcePathtring = sourcePathtring.substring(0, sourcePathtring.length() - File.pathSeparator.length());
+				sources.add(p.getAbsoluteFile());
+
+		JavaCompilerResult result = new JavaCompilerResult();
+		final Set<String> inputs = new HashSet<>();
+		ICompilationUnit[] units = new ICompilationUnit[sourceFiles.size()];
+		int i = 0;
+		for (File sourceFile : sourceFiles) {
+			File abs = sourceFile.getAbsoluteFile();
+			inputs.add(abs.getPath());
+			result.addSourceFile(abs);
+			units[i++] = new CompilationUnit(RecordingNameEnvironment.readSource(abs, encoding), abs.getPath(), encoding);
+		}
 
-			cmd.add("-sourcepath");
-			cmd.add(sourcePathtring);
+		// class files are kept in memory until the whole compilation succeeded;
+		// the compiler reuses ClassFile objects, so only keep their bytes
+		final Map<File, Map<String, byte[]>> classFiles = new LinkedHashMap<>();
+		final List<Pair<SourceLocation, String>> errors = new LinkedList<>();
+		ICompilerRequestor requestor = new ICompilerRequestor() {
+			@Override
+			public void acceptResult(CompilationResult unitResult) {
+				if (unitResult.hasErrors())
+					for (CategorizedProblem problem : unitResult.getErrors())
+						errors.add(toError(problem));
+				String fileName = new String(unitResult.getFileName());
+				if (inputs.contains(fileName)) {
+					Map<String, byte[]> files = new LinkedHashMap<>();
+					for (ClassFile classFile : unitResult.getClassFiles())
+						files.put(new String(classFile.fileName()), classFile.getBytes());
+					classFiles.put(new File(fileName), files);
+				}
+			}
+		};
+
+		RecordingNameEnvironment environment = new RecordingNameEnvironment(binaryPath, sources, encoding, result);
+		try {
+			Compiler compiler = new Compiler(
+					environment,
+					DefaultErrorHandlingPolicies.proceedWithAllProblems(),
+					new CompilerOptions(options),
+					requestor,
+					new DefaultProblemFactory(Locale.getDefault()));
+			compiler.compile(units);
+		} finally {
+			environment.cleanup();
 		}
-		
-		cmd.add("-cp");
-		StringBuilder classpath = new StringBuilder();
-		classpath.append(targetDir).append(File.pathSeparator);
-		for (File p : classPath)
-			classpath.append(FileCommands.toWindowsPath(p.getAbsolutePath())).append(File.pathSeparator);
-		String classpathString = classpath.toString();
-		classpathString = classpathString.substring(0, classpathString.length() - File.pathSeparator.length());
-		cpBuilder.append(classpath);
-		cmd.add(cpBuilder.toString());
-		
+
+		if (!errors.isEmpty())
+			throw new SourceCodeException(errors);
+
+		FileCommands.createDir(targetDir);
+		for (Map.Entry<File, Map<String, byte[]>> source : classFiles.entrySet())
+			for (Map.Entry<String, byte[]> classFile : source.getValue().entrySet()) {
+				File target = new File(targetDir, classFile.getKey() + ".class");
+				FileCommands.createDir(target.getParentFile());
+				Files.write(target.toPath(), classFile.getValue());
+				result.addGeneratedFile(source.getKey(), target);
+			}
+
+		return result;
+	}
+
+	/**
+	 * Uses the command-line parser of the batch compiler, such that additional
+	 * arguments keep their meaning of the batch compiler.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, String> compilerOptions(
+			Collection<File> sourceFiles,
+			File targetDir,
+			String sourceRelease,
+			String targetRelease,
+			Collection<String> additionalArguments) {
+		List<String> cmd = new ArrayList<>();
 		cmd.add("-d");
-		cmd.add(FileCommands.toWindowsPath(targetDir.getAbsolutePath()));
+		cmd.add(targetDir.getAbsolutePath());
 		cmd.add("-nowarn");
-		cmd.add("-verbose");
 		if (sourceRelease != null) {
 			cmd.add("-source");
 			cmd.add(sourceRelease);
@@ -82,156 +158,23 @@ public class EclipseJavaCompiler implements IJavaCompiler {
 				cmd.add(arg);
 
 		for (File sourceFile : sourceFiles)
-			cmd.add(FileCommands.toWindowsPath(sourceFile.getAbsolutePath()));
-
-		StringWriter outWriter = new StringWriter();
-		StringWriter errWriter = new StringWriter();
-
-		FileCommands.createDir(targetDir);
-		boolean ok = BatchCompiler.compile(
-				cmd.toArray(new String[cmd.size()]), 
-				new PrintWriter(outWriter), 
-				new PrintWriter(errWriter),
-				null);
-		String outOut = outWriter.toString();
-		String errOut = errWriter.toString();
-
-		if (!ok) {
-			List<Pair<SourceLocation, String>> errors = parseJavacErrors(errOut);
-			if (!errors.isEmpty())
-				throw new SourceCodeException(errors);
-		}
-
-		Map<File, Collection<File>> generatedFiles = extractGeneratedFiles(outOut, sourcePath, targetDir);
-		List<File> requiredFiles = extractRequiredFiles(outOut);
-
-		// TODO provided actually loaded from zipped file, last arg below.
-		return new JavaCompilerResult(generatedFiles, requiredFiles, Collections.<File, Collection<String>>emptyMap());
-	}
-
-	private final static String ERR_PAT = ": error: ";
-	// private final static String LINE_PAT = "(at line ";
-	private final static String START_PAT = "[checking";
-	private final static String GEN_PAT = "[writing";
-	private final static String DEP_PAT = "[reading";
-	private final static String PARSING_PAT = "[parsing";
-
-	private static Map<File, Collection<File>> extractGeneratedFiles(String outOut, Collection<File> sourcePath, File targetDir) {
-		Map<String, File> parsedFiles = new HashMap<>();
-		Map<File, Collection<File>> generatedFiles = new HashMap<>();
-		File currentSource = null;
-		int index = 0;
-		while (true) {
-			int parsingIndex = outOut.indexOf(PARSING_PAT, index);
-			int startIndex = outOut.indexOf(START_PAT, index);
-			int genIndex = outOut.indexOf(GEN_PAT, index);
-			
-			if (genIndex < 0)
-				break;
-			
-			if (parsingIndex >= 0 && (startIndex < 0 || parsingIndex < startIndex) && (genIndex < 0 || parsingIndex < genIndex)) {
-				index = parsingIndex;
-				index += PARSING_PAT.length();
-				while (outOut.charAt(index) == ' ')
-					index++;
-				int to = outOut.indexOf(" - ", index);
-				String parsedPath = outOut.substring(index, to);
-				for (File path : sourcePath) {
-					Path relPath = FileCommands.getRelativePath(path, new File(parsedPath));
-					if (relPath != null)
-						parsedFiles.put(FileCommands.dropExtension(relPath).toString(), new File(parsedPath));
-				}
-			}
-//			else if (startIndex >= 0 && (genIndex < 0 || startIndex < genIndex)) {
-//				index = startIndex;
-//				index += START_PAT.length();
-//				int to = outOut.indexOf(']', index);
-//				String module = outOut.substring(index, to);
-//				File source = parsedFiles.get(module.replace('.', File.separatorChar));
-//				currentSource = source;
-//			}
-			else if (genIndex >= 0) {
-				index = genIndex;
-				index += GEN_PAT.length();
-				while (outOut.charAt(index) == ' ')
-					index++;
-				int to = outOut.indexOf(" - ", index);
-				String generatedPath = outOut.substring(index, to);
-				String fileName = FileCommands.dropExtension(generatedPath);
-				if (!parsedFiles.containsKey(fileName)) {
-					int dollar = fileName.indexOf('$');
-					if (dollar >= 0)
-						fileName = fileName.substring(0, dollar);
-				}
-				if (!parsedFiles.containsKey(fileName))
-					throw new IllegalStateException("Cannot associate source file to " + generatedPath);
-				File source = parsedFiles.get(fileName);
-				Collection<File> files = generatedFiles.get(source);
-				if (files == null) {
-					files = new ArrayList<>();
-					generatedFiles.put(source, files);
-				}
-				files.add(new File(targetDir, generatedPath));
-			}
-			else
-				break;
+			cmd.add(sourceFile.getAbsolutePath());
+
+		StringWriter out = new StringWriter();
+		Main main = new Main(new PrintWriter(out), new PrintWriter(out), false, null, null);
+		try {
+			main.configure(cmd.toArray(new String[cmd.size()]));
+		} catch (InvalidInputException e) {
+			// like JavacCompiler for invalid releases
+			throw new IllegalArgumentException("ecj: " + e.getMessage(), e);
 		}
-		return generatedFiles;
+		return main.options;
 	}
 
-	private static List<File> extractRequiredFiles(String outOut) {
-		// TODO extract required files
-		return Collections.emptyList();
-//		List<File> generatedFiles = new LinkedList<>();
-//		int index = 0;
-//		while ((index = outOut.indexOf(DEP_PAT, index)) >= 0) {
-//			index += DEP_PAT.length();
-//			while (outOut.charAt(index) == ' ')
-//				index++;
-//			int to = outOut.indexOf(']', index);
-//			String generatedPath = outOut.substring(index, to);
-//			if (generatedPath.contains(".sym")) {
-//				generatedPath = generatedPath.substring(0, generatedPath.lastIndexOf(".sym") + 4);
-//			}
-//			if (generatedPath.contains(".jar")) {
-//				generatedPath = generatedPath.substring(0, generatedPath.lastIndexOf(".jar") + 4);
-//			}
-//			File file = new File(generatedPath);
-//			if (!generatedFiles.contains(file))
-//				generatedFiles.add(file);
-//		}
-//		return generatedFiles;
-	}
-
-	/**
-	 * @param stdOut
-	 */
-	private static List<Pair<SourceLocation, String>> parseJavacErrors(String s) {
-		List<Pair<SourceLocation, String>> errors = new LinkedList<Pair<SourceLocation, String>>();
-		int index = 0;
-		while ((index = s.indexOf(ERR_PAT, index)) >= 0) {
-			int lineStart = index - 1;
-			while (s.charAt(lineStart) != ':')
-				lineStart--;
-			int line = Integer.parseInt(s.substring(lineStart + 1, index));
-			int fileStart = lineStart - 1;
-			while (s.charAt(fileStart) != '\n')
-				fileStart--;
-
-			String file = s.substring(fileStart + 1, lineStart);
-			index += ERR_PAT.length();
-			int errorEnd = s.indexOf("\n", index);
-			String msg = s.substring(index, errorEnd);
-
-			int columnLineStart = s.indexOf("\n", s.indexOf("\n", errorEnd));
-			int columnSignIndex = s.indexOf("^", columnLineStart);
-			int colStart = columnSignIndex - columnLineStart;
-
-			int end = s.indexOf("\n", columnSignIndex);
-
-			errors.add(Pair.create(new SourceLocation(new AbsolutePath(file), line, line, colStart, colStart), msg));
-			index = end + 1;
-		}
-		return errors;
+	private static Pair<SourceLocation, String> toError(CategorizedProblem problem) {
+		String file = problem.getOriginatingFileName() == null ? "" : new String(problem.getOriginatingFileName());
+		int line = problem.getSourceLineNumber();
+		int column = problem instanceof DefaultProblem ? ((DefaultProblem) problem).getSourceColumnNumber() : 0;
+		return Pair.create(new SourceLocation(new AbsolutePath(file), line, line, column, column), problem.getMessage());
 	}
 }
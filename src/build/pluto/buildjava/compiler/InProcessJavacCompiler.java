@@ -0,0 +1,125 @@
+package build.pluto.buildjava.compiler;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.sugarj.common.FileCommands;
+import org.sugarj.common.Log;
+import org.sugarj.common.StringCommands;
+import org.sugarj.common.errors.SourceCodeException;
+import org.sugarj.common.errors.SourceLocation;
+import org.sugarj.common.path.AbsolutePath;
+import org.sugarj.common.util.Pair;
+
+import com.sun.source.util.JavacTask;
+
+/**
+ * Runs javac inside the current JVM through the {@link javax.tools} API instead
+ * of forking a new <code>javac</code> process for every compilation. This
+ * avoids the JVM startup and keeps the compiler classes JIT-compiled across
+ * compilations.
+ */
+public class InProcessJavacCompiler implements IJavaCompiler {
+
+	private static final long serialVersionUID = -3542316329817151042L;
+
+	public static final InProcessJavacCompiler instance = new InProcessJavacCompiler();
+	private InProcessJavacCompiler() { }
+
+	public JavaCompilerResult compile(
+			Collection<File> sourceFiles,
+			File targetDir,
+			Collection<File> sourcePath,
+			Collection<File> classPath,
+			String sourceRelease,
+			String targetRelease,
+			Collection<String> additionalArguments) throws Exception {
+		javax.tools.JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if (javac == null)
+			throw new IllegalStateException("No system Java compiler available, make sure to run on a JDK");
+
+		List<String> cmd = new ArrayList<>();
+
+		if (sourcePath != null && sourcePath.size() > 0) {
+			StringBuilder sourcepath = new StringBuilder();
+			for (File p : sourcePath)
+				sourcepath.append(p.getAbsolutePath()).append(File.pathSeparator);
+			cmd.add("-sourcepath");
+			cmd.add(sourcepath.substring(0, sourcepath.length() - File.pathSeparator.length()));
+		}
+
+		StringBuilder classpath = new StringBuilder();
+		classpath.append(targetDir.getAbsolutePath());
+		for (File p : classPath)
+			classpath.append(File.pathSeparator).append(p.getAbsolutePath());
+		cmd.add("-cp");
+		cmd.add(classpath.toString());
+
+		cmd.add("-d");
+		cmd.add(targetDir.getAbsolutePath());
+		cmd.add("-nowarn");
+		cmd.add("-implicit:none");
+		if (sourceRelease != null) {
+			cmd.add("-source");
+			cmd.add(sourceRelease);
+		}
+		if (targetRelease != null) {
+			cmd.add("-target");
+			cmd.add(targetRelease);
+		}
+
+		if (additionalArguments != null)
+			for (String arg : additionalArguments)
+				cmd.add(arg);
+
+		Log.log.log("javac (in-process) " + StringCommands.printListSeparated(cmd, " "), Log.DETAIL);
+
+		FileCommands.createDir(targetDir);
+
+		JavaCompilerResult result = new JavaCompilerResult();
+		StringWriter out = new StringWriter();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		boolean ok;
+		try (RecordingJavaFileManager fileManager = new RecordingJavaFileManager(javac.getStandardFileManager(diagnostics, null, null), sourcePath, result)) {
+			Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(sourceFiles);
+			for (File sourceFile : sourceFiles)
+				fileManager.recordSourceFile(sourceFile.getAbsoluteFile());
+			// throws IllegalArgumentException on invalid options, like JavacCompiler
+			JavacTask task = (JavacTask) javac.getTask(out, fileManager, diagnostics, cmd, null, units);
+			ok = task.call();
+		}
+		if (out.getBuffer().length() > 0)
+			Log.log.log(out.toString(), Log.DETAIL);
+
+		if (!ok) {
+			List<Pair<SourceLocation, String>> errors = collectErrors(diagnostics);
+			if (!errors.isEmpty())
+				throw new SourceCodeException(errors);
+		}
+
+		return result;
+	}
+
+	private static List<Pair<SourceLocation, String>> collectErrors(DiagnosticCollector<JavaFileObject> diagnostics) {
+		List<Pair<SourceLocation, String>> errors = new LinkedList<>();
+		for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+			if (d.getKind() != Diagnostic.Kind.ERROR)
+				continue;
+			String file = d.getSource() == null ? "" : d.getSource().getName();
+			int line = (int) Math.max(d.getLineNumber(), 0);
+			int column = (int) Math.max(d.getColumnNumber(), 0);
+			errors.add(Pair.create(new SourceLocation(new AbsolutePath(file), line, line, column, column), d.getMessage(Locale.getDefault())));
+		}
+		return errors;
+	}
+}
@@ -1,78 +1,304 @@
 package build.pluto.buildjava.compiler;
 
 import java.io.File;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import build.pluto.buildjava.util.IntMap;
+import build.pluto.buildjava.util.IntSet;
+import build.pluto.buildjava.util.PathTable;
+
+/**
+ * The files generated and used by a compilation.
+ *
+ * Compilations that load classes from the JDK and many jars record hundreds of
+ * thousands of paths with common prefixes. To keep results small, paths are
+ * interned in a {@link PathTable} and all relations are stored as sets and
+ * maps of path IDs. The getters return unmodifiable views that create
+ * {@link File} and {@link String} objects on demand.
+ */
+public class JavaCompilerResult implements Serializable {
+	private static final long serialVersionUID = 4719062718283340376L;
+
+	private final PathTable files = new PathTable(File.separatorChar);
+	private final PathTable entries = new PathTable('/');
 
-public class JavaCompilerResult {
 	/**
 	 * Maps a source file to the files generated for it.
 	 */
-	private final Map<File, Collection<File>> sourceTargetFiles;
-	
+	private final IntMap<IntSet> sourceTargetFiles = new IntMap<>();
+
 	/**
 	 * Loaded class files.
 	 */
-	private final Collection<File> loadedClassFiles;
-	
+	private final IntSet loadedClassFiles = new IntSet();
+
+	/**
+	 * Maps a zipped file to the entries loaded from it. A `null` set means all of the zipped file was used.
+	 */
+	private final IntMap<IntSet> loadedFromZippedFile = new IntMap<>();
+
+	/**
+	 * Maps a source file to the source files it depends on. Only filled in if
+	 * requested by the builder.
+	 */
+	private final IntMap<IntSet> sourceDependencies = new IntMap<>();
+
 	/**
-	 * Maps a zipped file to the files loaded from it. A `null` collection means all of the zipped file was used.
+	 * Maps source files and used class path files to stamps of their content at
+	 * compile time. Only filled in if requested by the builder.
 	 */
-	private final Map<File, Collection<String>> loadedFromZippedFile;
+	private final IntMap<String> fileStamps = new IntMap<>();
 
 	public JavaCompilerResult() {
-		this.sourceTargetFiles = new HashMap<>();
-		this.loadedClassFiles = new HashSet<>();
-		this.loadedFromZippedFile = new HashMap<>();
 	}
-	
+
 	public JavaCompilerResult(Map<File, Collection<File>> generatedFiles, Collection<File> loadedFiles, Map<File, Collection<String>> loadedFromZippedFile) {
-		this.sourceTargetFiles = generatedFiles;
-		this.loadedClassFiles = loadedFiles;
-		this.loadedFromZippedFile = loadedFromZippedFile;
+		for (Entry<File, Collection<File>> e : generatedFiles.entrySet()) {
+			addSourceFile(e.getKey());
+			for (File gen : e.getValue())
+				addGeneratedFile(e.getKey(), gen);
+		}
+		for (File loaded : loadedFiles)
+			addLoadedClassFile(loaded);
+		for (Entry<File, Collection<String>> e : loadedFromZippedFile.entrySet())
+			if (e.getValue() == null)
+				addLoadedZippedFile(e.getKey());
+			else
+				for (String entry : e.getValue())
+					addLoadedFromZippedFile(e.getKey(), entry);
 	}
-	
+
 	public Map<File, Collection<File>> getSourceTargetFiles() {
-		return sourceTargetFiles;
+		return new FileSetMap(sourceTargetFiles);
 	}
-	
+
 	public Collection<File> getLoadedClassFiles() {
-		return loadedClassFiles;
+		return new PathSet<>(loadedClassFiles, files, true);
 	}
-	
+
 	public Map<File, Collection<String>> getLoadedFromZippedFile() {
-		return loadedFromZippedFile;
+		return new PathMap<Collection<String>>(loadedFromZippedFile) {
+			@Override
+			Collection<String> value(Object value) {
+				return value == null ? null : new PathSet<String>((IntSet) value, entries, false);
+			}
+		};
 	}
-	
+
+	public Map<File, Collection<File>> getSourceDependencies() {
+		return new FileSetMap(sourceDependencies);
+	}
+
+	public Map<File, String> getFileStamps() {
+		return new PathMap<String>(fileStamps) {
+			@Override
+			String value(Object value) {
+				return (String) value;
+			}
+		};
+	}
+
 	public void addSourceFile(File source) {
-		Collection<File> gens = sourceTargetFiles.get(source);
-		if (gens == null) {
-			gens = new HashSet<>();
-			sourceTargetFiles.put(source, gens);
-		}
+		set(sourceTargetFiles, files.intern(source.getPath()));
 	}
-	
+
 	public void addGeneratedFile(File source, File gen) {
-		Collection<File> gens = sourceTargetFiles.get(source);
-		if (gens == null) {
-			gens = new HashSet<>();
-			sourceTargetFiles.put(source, gens);
-		}
-		gens.add(gen);
+		set(sourceTargetFiles, files.intern(source.getPath())).add(files.intern(gen.getPath()));
 	}
-	
+
 	public void addLoadedClassFile(File load) {
-		loadedClassFiles.add(load);
+		loadedClassFiles.add(files.intern(load.getPath()));
+	}
+
+	public void removeLoadedClassFile(File load) {
+		int id = files.lookup(load.getPath());
+		if (id >= 0)
+			loadedClassFiles.remove(id);
 	}
 
 	public void addLoadedFromZippedFile(File zip, String loaded) {
-		Collection<String> gens = loadedFromZippedFile.get(zip);
-		if (gens == null) {
-			gens = new HashSet<>();
-			loadedFromZippedFile.put(zip, gens);
+		int id = files.intern(zip.getPath());
+		if (!loadedFromZippedFile.containsKey(id) || loadedFromZippedFile.get(id) != null)
+			set(loadedFromZippedFile, id).add(entries.intern(loaded));
+	}
+
+	/**
+	 * Records that all of the zipped file was used.
+	 */
+	public void addLoadedZippedFile(File zip) {
+		loadedFromZippedFile.put(files.intern(zip.getPath()), null);
+	}
+
+	public void addSourceDependency(File source, File dependency) {
+		set(sourceDependencies, files.intern(source.getPath())).add(files.intern(dependency.getPath()));
+	}
+
+	public void addFileStamp(File file, String stamp) {
+		fileStamps.put(files.intern(file.getPath()), stamp);
+	}
+
+	private static IntSet set(IntMap<IntSet> map, int key) {
+		IntSet set = map.get(key);
+		if (set == null) {
+			set = new IntSet();
+			map.put(key, set);
+		}
+		return set;
+	}
+
+	/**
+	 * A view of a map from file IDs.
+	 */
+	private abstract class PathMap<V> extends AbstractMap<File, V> {
+		private final IntMap<?> map;
+
+		PathMap(IntMap<?> map) {
+			this.map = map;
+		}
+
+		abstract V value(Object value);
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof File && map.containsKey(files.lookup(((File) key).getPath()));
+		}
+
+		@Override
+		public V get(Object key) {
+			return key instanceof File ? value(map.get(files.lookup(((File) key).getPath()))) : null;
+		}
+
+		@Override
+		public Set<Entry<File, V>> entrySet() {
+			return new AbstractSet<Entry<File, V>>() {
+				@Override
+				public int size() {
+					return map.size();
+				}
+
+				@Override
+				public Iterator<Entry<File, V>> iterator() {
+					return new SlotIterator<Entry<File, V>>(map.capacity()) {
+						@Override
+						boolean occupied(int slot) {
+							return map.keyAt(slot) >= 0;
+						}
+
+						@Override
+						Entry<File, V> at(int slot) {
+							return new SimpleImmutableEntry<>(new File(files.path(map.keyAt(slot))), value(map.valueAt(slot)));
+						}
+					};
+				}
+			};
+		}
+	}
+
+	private class FileSetMap extends PathMap<Collection<File>> {
+		FileSetMap(IntMap<IntSet> map) {
+			super(map);
+		}
+
+		@Override
+		Collection<File> value(Object value) {
+			return value == null ? null : new PathSet<File>((IntSet) value, files, true);
+		}
+	}
+
+	/**
+	 * A view of a set of file IDs or entry name IDs.
+	 */
+	private static class PathSet<T> extends AbstractSet<T> {
+		private final IntSet ids;
+		private final PathTable table;
+		private final boolean asFiles;
+
+		PathSet(IntSet ids, PathTable table, boolean asFiles) {
+			this.ids = ids;
+			this.table = table;
+			this.asFiles = asFiles;
+		}
+
+		@Override
+		public int size() {
+			return ids.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			String path;
+			if (asFiles && o instanceof File)
+				path = ((File) o).getPath();
+			else if (!asFiles && o instanceof String)
+				path = (String) o;
+			else
+				return false;
+			return ids.contains(table.lookup(path));
+		}
+
+		@Override
+		public Iterator<T> iterator() {
+			return new SlotIterator<T>(ids.capacity()) {
+				@Override
+				boolean occupied(int slot) {
+					return ids.get(slot) >= 0;
+				}
+
+				@SuppressWarnings("unchecked")
+				@Override
+				T at(int slot) {
+					String path = table.path(ids.get(slot));
+					return (T) (asFiles ? new File(path) : path);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Iterates the occupied slots of an {@link IntSet} or {@link IntMap}.
+	 */
+	private abstract static class SlotIterator<T> implements Iterator<T> {
+		private final int capacity;
+		private int slot;
+
+		SlotIterator(int capacity) {
+			this.capacity = capacity;
+		}
+
+		abstract boolean occupied(int slot);
+
+		abstract T at(int slot);
+
+		@Override
+		public boolean hasNext() {
+			while (slot < capacity && !occupied(slot))
+				slot++;
+			return slot < capacity;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return at(slot++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
 		}
-		gens.add(loaded);
 	}
 }
@@ -0,0 +1,503 @@
+package build.pluto.buildjava.compiler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A {@link JavaCompilerResult} in a compact binary format, which is read
+ * lazily.
+ *
+ * All paths, jar entry names, and stamps are stored once in a string table
+ * and referred to by their index. Fixed-size tables map each string to its
+ * file stamp and, for source files, to the record with its generated files
+ * and dependencies. The records store sorted, delta-encoded varint lists of
+ * string indexes. Files are looked up through a hash table of the strings, so
+ * that queries only decode the strings and records they touch. Edges between
+ * source files can be traversed without decoding any string.
+ *
+ * The file is read into memory at once instead of being memory-mapped, since
+ * the builder replaces the file while a reader of the previous version is
+ * still in use, which fails for mapped files on some platforms.
+ */
+public class JavaCompilerResultFile {
+
+	private static final int MAGIC = 0x504A4352; // "PJCR"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 * 12;
+
+	private static final int NO_STAMP = -1;
+	private static final int NULL_STAMP = -2;
+	private static final int NO_SOURCE = -1;
+
+	private final File file;
+	private final ByteBuffer buffer;
+	private final int stringCount;
+	private final int tableSize;
+	private final int stampCount;
+	private final int sourceCount;
+	private final int stringOffsets;
+	private final int table;
+	private final int stamps;
+	private final int sourceRecords;
+	private final int sources;
+	private final int strings;
+	private final int records;
+	private final int loaded;
+	private final int zipped;
+
+	/**
+	 * Decoded strings, filled on demand.
+	 */
+	private final String[] stringCache;
+
+	/**
+	 * Maps the string index of each source file to the string indexes of the
+	 * source files depending on it, built on demand.
+	 */
+	private Map<Integer, int[]> dependents;
+
+	private JavaCompilerResultFile(File file, ByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.buffer = buffer;
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a compiler result file: " + file);
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported compiler result version " + buffer.getInt(4) + ": " + file);
+		this.stringCount = buffer.getInt(8);
+		this.tableSize = buffer.getInt(12);
+		this.stampCount = buffer.getInt(16);
+		this.sourceCount = buffer.getInt(20);
+		this.strings = buffer.getInt(24);
+		this.records = buffer.getInt(28);
+		this.loaded = buffer.getInt(32);
+		this.zipped = buffer.getInt(36);
+		this.stringOffsets = HEADER_SIZE;
+		this.table = stringOffsets + 4 * stringCount;
+		this.stamps = table + 4 * tableSize;
+		this.sourceRecords = stamps + 4 * stringCount;
+		this.sources = sourceRecords + 4 * stringCount;
+		if (sources + 4 * sourceCount != strings || strings > records || records > loaded || loaded > zipped || zipped > buffer.limit()
+				|| Integer.bitCount(tableSize) != 1 || tableSize < stringCount)
+			throw new IOException("Corrupt compiler result file: " + file);
+		this.stringCache = new String[stringCount];
+	}
+
+	/**
+	 * Reads the header of the given file. The remaining content is decoded on
+	 * demand.
+	 */
+	public static JavaCompilerResultFile read(File file) throws IOException {
+		return new JavaCompilerResultFile(file, ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public Collection<File> getSourceFiles() {
+		return new AbstractList<File>() {
+			@Override
+			public File get(int index) {
+				return new File(string(buffer.getInt(sources + 4 * index)));
+			}
+
+			@Override
+			public int size() {
+				return sourceCount;
+			}
+		};
+	}
+
+	public boolean isSourceFile(File file) {
+		int id = lookup(file.getPath());
+		return id >= 0 && buffer.getInt(sourceRecords + 4 * id) != NO_SOURCE;
+	}
+
+	/**
+	 * @return the files generated for the given source file, or
+	 *         <code>null</code> if it is no source file of the result.
+	 */
+	public Collection<File> getGeneratedFiles(File source) {
+		ByteBuffer record = record(source);
+		return record == null ? null : files(readIds(record));
+	}
+
+	/**
+	 * @return the source files the given source file depends on, or
+	 *         <code>null</code> if it is no source file of the result.
+	 */
+	public Collection<File> getSourceDependencies(File source) {
+		ByteBuffer record = record(source);
+		if (record == null)
+			return null;
+		skipIds(record);
+		return files(readIds(record));
+	}
+
+	/**
+	 * @return the source files that depend on the given source file.
+	 */
+	public Collection<File> getSourceDependents(File source) {
+		int id = lookup(source.getPath());
+		if (id < 0)
+			return Collections.emptyList();
+		int[] ids = dependents().get(id);
+		return ids == null ? Collections.<File>emptyList() : files(ids);
+	}
+
+	/**
+	 * @return whether any file stamps were recorded.
+	 */
+	public boolean hasFileStamps() {
+		return stampCount > 0;
+	}
+
+	public boolean hasFileStamp(File file) {
+		int id = lookup(file.getPath());
+		return id >= 0 && buffer.getInt(stamps + 4 * id) != NO_STAMP;
+	}
+
+	/**
+	 * @return the stamp of the given file, or <code>null</code> if no or a
+	 *         <code>null</code> stamp was recorded.
+	 */
+	public String getFileStamp(File file) {
+		int id = lookup(file.getPath());
+		if (id < 0)
+			return null;
+		int stamp = buffer.getInt(stamps + 4 * id);
+		return stamp < 0 ? null : string(stamp);
+	}
+
+	public Collection<File> getLoadedClassFiles() {
+		return files(readIds(at(loaded)));
+	}
+
+	public Map<File, Collection<String>> getLoadedFromZippedFile() {
+		ByteBuffer in = at(zipped);
+		int count = readVarint(in);
+		Map<File, Collection<String>> result = new HashMap<>();
+		for (int i = 0; i < count; i++) {
+			File zip = new File(string(readVarint(in)));
+			if (readVarint(in) == 0)
+				result.put(zip, null);
+			else {
+				int[] ids = readIds(in);
+				List<String> entries = new ArrayList<>(ids.length);
+				for (int id : ids)
+					entries.add(string(id));
+				result.put(zip, entries);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Decodes the complete result.
+	 */
+	public JavaCompilerResult toResult() {
+		JavaCompilerResult result = new JavaCompilerResult();
+		for (int i = 0; i < sourceCount; i++) {
+			int id = buffer.getInt(sources + 4 * i);
+			File source = new File(string(id));
+			ByteBuffer record = at(records + buffer.getInt(sourceRecords + 4 * id));
+			result.addSourceFile(source);
+			for (int gen : readIds(record))
+				result.addGeneratedFile(source, new File(string(gen)));
+			for (int dep : readIds(record))
+				result.addSourceDependency(source, new File(string(dep)));
+		}
+		for (File file : getLoadedClassFiles())
+			result.addLoadedClassFile(file);
+		for (Entry<File, Collection<String>> e : getLoadedFromZippedFile().entrySet())
+			if (e.getValue() == null)
+				result.addLoadedZippedFile(e.getKey());
+			else
+				for (String entry : e.getValue())
+					result.addLoadedFromZippedFile(e.getKey(), entry);
+		for (int id = 0; id < stringCount; id++) {
+			int stamp = buffer.getInt(stamps + 4 * id);
+			if (stamp != NO_STAMP)
+				result.addFileStamp(new File(string(id)), stamp == NULL_STAMP ? null : string(stamp));
+		}
+		return result;
+	}
+
+	private synchronized Map<Integer, int[]> dependents() {
+		if (dependents != null)
+			return dependents;
+		Map<Integer, List<Integer>> lists = new HashMap<>();
+		for (int i = 0; i < sourceCount; i++) {
+			int id = buffer.getInt(sources + 4 * i);
+			ByteBuffer record = at(records + buffer.getInt(sourceRecords + 4 * id));
+			skipIds(record);
+			for (int dep : readIds(record)) {
+				List<Integer> list = lists.get(dep);
+				if (list == null) {
+					list = new ArrayList<>();
+					lists.put(dep, list);
+				}
+				list.add(id);
+			}
+		}
+		dependents = new HashMap<>();
+		for (Entry<Integer, List<Integer>> e : lists.entrySet()) {
+			int[] ids = new int[e.getValue().size()];
+			for (int i = 0; i < ids.length; i++)
+				ids[i] = e.getValue().get(i);
+			dependents.put(e.getKey(), ids);
+		}
+		return dependents;
+	}
+
+	private ByteBuffer record(File source) {
+		int id = lookup(source.getPath());
+		if (id < 0)
+			return null;
+		int offset = buffer.getInt(sourceRecords + 4 * id);
+		return offset == NO_SOURCE ? null : at(records + offset);
+	}
+
+	private ByteBuffer at(int offset) {
+		ByteBuffer in = buffer.duplicate();
+		in.position(offset);
+		return in;
+	}
+
+	private List<File> files(int[] ids) {
+		List<File> files = new ArrayList<>(ids.length);
+		for (int id : ids)
+			files.add(new File(string(id)));
+		return files;
+	}
+
+	/**
+	 * @return the index of the given string, or -1.
+	 */
+	private int lookup(String s) {
+		int mask = tableSize - 1;
+		for (int slot = s.hashCode() & mask;; slot = (slot + 1) & mask) {
+			int id = buffer.getInt(table + 4 * slot) - 1;
+			if (id < 0 || string(id).equals(s))
+				return id;
+		}
+	}
+
+	private String string(int id) {
+		String s = stringCache[id];
+		if (s == null) {
+			ByteBuffer in = at(strings + buffer.getInt(stringOffsets + 4 * id));
+			byte[] bytes = new byte[readVarint(in)];
+			in.get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+			stringCache[id] = s;
+		}
+		return s;
+	}
+
+	private static int[] readIds(ByteBuffer in) {
+		int[] ids = new int[readVarint(in)];
+		int last = 0;
+		for (int i = 0; i < ids.length; i++) {
+			last += readVarint(in);
+			ids[i] = last;
+		}
+		return ids;
+	}
+
+	private static void skipIds(ByteBuffer in) {
+		int count = readVarint(in);
+		for (int i = 0; i < count; i++)
+			readVarint(in);
+	}
+
+	private static int readVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new BufferUnderflowException();
+	}
+
+	/**
+	 * Writes the given result in the compact format.
+	 */
+	public static void write(JavaCompilerResult result, File file) throws IOException {
+		Strings strings = new Strings();
+		Map<File, Collection<File>> sourceTargetFiles = result.getSourceTargetFiles();
+		for (Entry<File, Collection<File>> e : sourceTargetFiles.entrySet()) {
+			strings.add(e.getKey().getPath());
+			for (File gen : e.getValue())
+				strings.add(gen.getPath());
+		}
+		for (Collection<File> deps : result.getSourceDependencies().values())
+			for (File dep : deps)
+				strings.add(dep.getPath());
+		for (File loaded : result.getLoadedClassFiles())
+			strings.add(loaded.getPath());
+		for (Entry<File, Collection<String>> e : result.getLoadedFromZippedFile().entrySet()) {
+			strings.add(e.getKey().getPath());
+			if (e.getValue() != null)
+				for (String entry : e.getValue())
+					strings.add(entry);
+		}
+		for (Entry<File, String> e : result.getFileStamps().entrySet()) {
+			strings.add(e.getKey().getPath());
+			if (e.getValue() != null)
+				strings.add(e.getValue());
+		}
+		int stringCount = strings.ids.size();
+
+		ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+		int[] stringOffsets = new int[stringCount];
+		int tableSize = Integer.highestOneBit(Math.max(1, 2 * stringCount - 1)) << 1;
+		int[] table = new int[tableSize];
+		for (Entry<String, Integer> e : strings.ids.entrySet()) {
+			int id = e.getValue();
+			stringOffsets[id] = stringData.size();
+			byte[] bytes = e.getKey().getBytes(StandardCharsets.UTF_8);
+			writeVarint(stringData, bytes.length);
+			stringData.write(bytes);
+			int slot = e.getKey().hashCode() & (tableSize - 1);
+			while (table[slot] != 0)
+				slot = (slot + 1) & (tableSize - 1);
+			table[slot] = id + 1;
+		}
+
+		int[] stamps = new int[stringCount];
+		Arrays.fill(stamps, NO_STAMP);
+		for (Entry<File, String> e : result.getFileStamps().entrySet())
+			stamps[strings.id(e.getKey().getPath())] = e.getValue() == null ? NULL_STAMP : strings.id(e.getValue());
+
+		ByteArrayOutputStream recordData = new ByteArrayOutputStream();
+		int[] sourceRecords = new int[stringCount];
+		Arrays.fill(sourceRecords, NO_SOURCE);
+		int[] sourceIds = new int[sourceTargetFiles.size()];
+		int s = 0;
+		for (Entry<File, Collection<File>> e : sourceTargetFiles.entrySet()) {
+			int id = strings.id(e.getKey().getPath());
+			sourceIds[s++] = id;
+			sourceRecords[id] = recordData.size();
+			writeIds(recordData, strings.ids(e.getValue()));
+			Collection<File> deps = result.getSourceDependencies().get(e.getKey());
+			writeIds(recordData, strings.ids(deps == null ? Collections.<File>emptyList() : deps));
+		}
+
+		ByteArrayOutputStream loadedData = new ByteArrayOutputStream();
+		writeIds(loadedData, strings.ids(result.getLoadedClassFiles()));
+
+		ByteArrayOutputStream zippedData = new ByteArrayOutputStream();
+		writeVarint(zippedData, result.getLoadedFromZippedFile().size());
+		for (Entry<File, Collection<String>> e : result.getLoadedFromZippedFile().entrySet()) {
+			writeVarint(zippedData, strings.id(e.getKey().getPath()));
+			if (e.getValue() == null)
+				writeVarint(zippedData, 0);
+			else {
+				writeVarint(zippedData, 1);
+				int[] ids = new int[e.getValue().size()];
+				int i = 0;
+				for (String entry : e.getValue())
+					ids[i++] = strings.id(entry);
+				writeIds(zippedData, ids);
+			}
+		}
+
+		int stringsStart = HEADER_SIZE + 4 * (3 * stringCount + tableSize + sourceIds.length);
+		int recordsStart = stringsStart + stringData.size();
+		int loadedStart = recordsStart + recordData.size();
+		int zippedStart = loadedStart + loadedData.size();
+
+		try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeInt(stringCount);
+			data.writeInt(tableSize);
+			data.writeInt(result.getFileStamps().size());
+			data.writeInt(sourceIds.length);
+			data.writeInt(stringsStart);
+			data.writeInt(recordsStart);
+			data.writeInt(loadedStart);
+			data.writeInt(zippedStart);
+			data.writeInt(0); // reserved
+			data.writeInt(0); // reserved
+			writeInts(data, stringOffsets);
+			writeInts(data, table);
+			writeInts(data, stamps);
+			writeInts(data, sourceRecords);
+			writeInts(data, sourceIds);
+			stringData.writeTo(data);
+			recordData.writeTo(data);
+			loadedData.writeTo(data);
+			zippedData.writeTo(data);
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+		for (int i : ints)
+			out.writeInt(i);
+	}
+
+	private static void writeIds(OutputStream out, int[] ids) throws IOException {
+		Arrays.sort(ids);
+		writeVarint(out, ids.length);
+		int last = 0;
+		for (int id : ids) {
+			writeVarint(out, id - last);
+			last = id;
+		}
+	}
+
+	private static void writeVarint(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Assigns consecutive indexes to distinct strings.
+	 */
+	private static class Strings {
+		private final Map<String, Integer> ids = new LinkedHashMap<>();
+
+		void add(String s) {
+			if (!ids.containsKey(s))
+				ids.put(s, ids.size());
+		}
+
+		int id(String s) {
+			return ids.get(s);
+		}
+
+		int[] ids(Collection<File> files) {
+			int[] result = new int[files.size()];
+			int i = 0;
+			for (File file : files)
+				result[i++] = id(file.getPath());
+			return result;
+		}
+	}
+}
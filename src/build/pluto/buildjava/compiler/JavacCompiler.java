@@ -1,17 +1,13 @@
 package build.pluto.buildjava.compiler;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.nio.file.Path;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
-import org.sugarj.common.Exec;
-import org.sugarj.common.Exec.ExecutionError;
-import org.sugarj.common.Exec.ExecutionResult;
 import org.sugarj.common.FileCommands;
 import org.sugarj.common.Log;
 import org.sugarj.common.StringCommands;
@@ -93,94 +89,40 @@ public class JavacCompiler implements IJavaCompiler {
 
 		Log.log.log(StringCommands.printListSeparated(cmd, " "), Log.DETAIL);
 		
-		String errOut;
-		boolean ok = false;
-		try {
-			FileCommands.createDir(targetDir);
-			
-			ExecutionResult result = Exec.run(cmd.toArray(new String[cmd.size()]));
-			ok = true;
-			errOut = StringCommands.printListSeparated(result.errMsgs, "\n");
-		} catch (ExecutionError e) {
-			errOut = StringCommands.printListSeparated(e.errMsgs, "\n");
+		FileCommands.createDir(targetDir);
+
+		// consume the verbose output while javac runs and only keep other output for error reporting
+		JavacVerboseParser parser = new JavacVerboseParser(sourcePath, targetDir, new JavaCompilerResult());
+		StringBuilder errOut = new StringBuilder();
+		Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+		process.getOutputStream().close();
+		boolean ok;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedException("Compilation cancelled");
+				if (!parser.parseLine(line))
+					errOut.append(line).append('\n');
+			}
+			ok = process.waitFor() == 0;
+		} catch (InterruptedException e) {
+			// cancelled, e.g. by a newer change in watch mode
+			process.destroy();
+			throw e;
 		}
 
 		if (!ok) {
-			List<Pair<SourceLocation, String>> errors = parseJavacErrors(errOut);
+			List<Pair<SourceLocation, String>> errors = parseJavacErrors(errOut.toString());
 			if (!errors.isEmpty())
 				throw new SourceCodeException(errors);
 		}
 
-		JavaCompilerResult result = new JavaCompilerResult();
-		extractDependencies(errOut, sourcePath, result);
-		return result;
+		return parser.getResult();
 	}
 
 	private final static String ERR_PAT = ": error: ";
 	// private final static String LINE_PAT = "(at line ";
-	private final static String COMP_PAT = "[checking";
-	private final static String GEN_PAT = "[wrote";
-	private final static String DEP_REGULAR_PAT = "[loading RegularFileObject";
-	private final static String DEP_ZIPPED_PAT = "[loading ZipFileIndexFileObject";
-	private final static String PARSING_PAT = "[parsing started";
-
-	private void extractDependencies(String errOut, Collection<File> sourcePath, JavaCompilerResult result) {
-		Map<String, File> parsedFiles = new HashMap<>();
-		File currentSource = null;
-		
-		String lines[] = errOut.split("\n");
-		for (String line : lines) {
-			if (line.startsWith(PARSING_PAT)) {
-				int from = line.indexOf('[', PARSING_PAT.length()) + 1;
-				int to = line.indexOf(']', from);
-				String parsedPath = line.substring(from, to);
-				for (File path : sourcePath) {
-					Path relPath = FileCommands.getRelativePath(path, new File(parsedPath));
-					if (relPath != null) {
-						File parsedFile = new File(parsedPath);
-						parsedFiles.put(FileCommands.dropExtension(relPath).toString(), parsedFile);
-						result.addSourceFile(parsedFile);
-						break;
-					}
-				}
-			} 
-			else if (line.startsWith(COMP_PAT)) {
-				int from = COMP_PAT.length() + 1;
-				int to = line.indexOf(']', from);
-				String module = line.substring(from, to);
-				File source = parsedFiles.get(module.replace('.', File.separatorChar));
-				currentSource = source;
-			}
-			else if (line.startsWith(GEN_PAT)) {
-				int from = line.indexOf('[', GEN_PAT.length()) + 1;
-				int to = line.indexOf(']', from);
-				String generatedPath = line.substring(from, to);
-				result.addGeneratedFile(currentSource, new File(generatedPath));
-			}
-			else if (line.startsWith(DEP_REGULAR_PAT)) {
-				int from = line.indexOf('[', DEP_REGULAR_PAT.length()) + 1;
-				int to = line.indexOf(']', from);
-				String generatedPath = line.substring(from, to);
-				if (!generatedPath.endsWith(".java"))
-					result.addLoadedClassFile(new File(generatedPath));
-			}
-			else if (line.startsWith(DEP_ZIPPED_PAT)) {
-				int from = line.indexOf('[', DEP_ZIPPED_PAT.length()) + 1;
-				int to = line.indexOf(']', from);
-				String generatedPath = line.substring(from, to);
-				int zipFrom = generatedPath.indexOf('(');
-				int zipTo = generatedPath.indexOf(')', zipFrom);
-				String zipPath = generatedPath.substring(0, zipFrom);
-				String loaded = generatedPath.substring(zipFrom + 1, zipTo);
-				
-				if (zipPath.endsWith(".sym"))
-					loaded = loaded.substring(loaded.indexOf(".jar") + 5);
-				
-				result.addLoadedFromZippedFile(new File(zipPath), loaded);
-			}
-		}
-	}
-
 
 	/**
 	 * @param stdOut
@@ -203,7 +145,7 @@ public class JavacCompiler implements IJavaCompiler {
 				lineStart--;
 			int line = Integer.parseInt(s.substring(lineStart + 1, index));
 			int fileStart = lineStart - 1;
-			while (s.charAt(fileStart) != '\n')
+			while (fileStart >= 0 && s.charAt(fileStart) != '\n')
 				fileStart--;
 
 			String file = s.substring(fileStart + 1, lineStart);
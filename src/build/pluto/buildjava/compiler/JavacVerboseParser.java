@@ -0,0 +1,146 @@
+package build.pluto.buildjava.compiler;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.sugarj.common.FileCommands;
+import org.sugarj.common.Log;
+
+/**
+ * Extracts dependencies from the <code>-verbose</code> output of javac. The
+ * output is consumed line by line while javac is running, such that it never
+ * has to be buffered as a whole. Each line is processed in time linear in its
+ * length.
+ *
+ * Understands the file object notation of JDK 7/8 (e.g.,
+ * <code>RegularFileObject[/A.class]</code>) as well as the plain paths of JDK
+ * 9+, including class files loaded from the <code>jrt</code> image.
+ */
+public class JavacVerboseParser {
+
+	private final static String COMP_PAT = "[checking ";
+	private final static String GEN_PAT = "[wrote ";
+	private final static String LOAD_PAT = "[loading ";
+	private final static String PARSING_PAT = "[parsing started ";
+	private final static String MODULES_PREFIX = "/modules/";
+	private final static String SYM_JAR_PREFIX = ".jar/";
+
+	private final Collection<File> sourcePath;
+	private final File targetDir;
+	private final JavaCompilerResult result;
+
+	private final Map<String, File> parsedFiles = new HashMap<>();
+	private File currentSource;
+
+	public JavacVerboseParser(Collection<File> sourcePath, File targetDir, JavaCompilerResult result) {
+		this.sourcePath = sourcePath;
+		this.targetDir = targetDir;
+		this.result = result;
+	}
+
+	/**
+	 * @return true if the line is verbose output of javac, false if it is
+	 *         other output, such as an error message.
+	 */
+	public boolean parseLine(String line) {
+		if (!line.startsWith("[") || !line.endsWith("]"))
+			return false;
+
+		if (line.startsWith(PARSING_PAT))
+			parsed(fileOf(line, PARSING_PAT.length()));
+		else if (line.startsWith(COMP_PAT)) {
+			String module = line.substring(COMP_PAT.length(), line.length() - 1);
+			currentSource = parsedFiles.get(module.replace('.', File.separatorChar));
+		}
+		else if (line.startsWith(GEN_PAT))
+			generated(new File(fileOf(line, GEN_PAT.length())));
+		else if (line.startsWith(LOAD_PAT))
+			loaded(fileOf(line, LOAD_PAT.length()));
+		return true;
+	}
+
+	public JavaCompilerResult getResult() {
+		return result;
+	}
+
+	private void parsed(String parsedPath) {
+		File parsedFile = new File(parsedPath).getAbsoluteFile();
+		for (File path : sourcePath) {
+			Path relPath = FileCommands.getRelativePath(path, parsedFile);
+			if (relPath != null) {
+				parsedFiles.put(FileCommands.dropExtension(relPath).toString(), parsedFile);
+				result.addSourceFile(parsedFile);
+				break;
+			}
+		}
+	}
+
+	private void generated(File generated) {
+		File source = currentSource;
+		if (source == null) {
+			// associate by name, e.g., for classes whose name differs from the one being checked
+			Path rel = FileCommands.getRelativePath(targetDir, generated.getAbsoluteFile());
+			if (rel != null) {
+				String name = FileCommands.dropExtension(rel).toString();
+				int dollar = name.indexOf('$');
+				source = parsedFiles.get(dollar < 0 ? name : name.substring(0, dollar));
+			}
+		}
+		if (source != null)
+			result.addGeneratedFile(source, generated.getAbsoluteFile());
+		else
+			Log.log.log("Cannot associate source file to " + generated, Log.DETAIL);
+	}
+
+	private void loaded(String loadedPath) {
+		int zipFrom = loadedPath.indexOf('(');
+		if (zipFrom > 0 && loadedPath.endsWith(")")) {
+			// lib.jar(pkg/C.class) or lib.jar(/pkg/C.class)
+			String zipPath = loadedPath.substring(0, zipFrom);
+			String loaded = loadedPath.substring(zipFrom + 1, loadedPath.length() - 1);
+			if (loaded.startsWith("/"))
+				loaded = loaded.substring(1);
+			if (zipPath.endsWith(".sym") && loaded.contains(SYM_JAR_PREFIX))
+				loaded = loaded.substring(loaded.indexOf(SYM_JAR_PREFIX) + SYM_JAR_PREFIX.length());
+			result.addLoadedFromZippedFile(new File(zipPath).getAbsoluteFile(), loaded);
+		}
+		else if (loadedPath.endsWith(".class")) {
+			File file = new File(loadedPath);
+			if (loadedPath.startsWith(MODULES_PREFIX) && !file.exists()) {
+				// jrt image: /modules/java.base/java/lang/Object.class
+				int sep = loadedPath.indexOf('/', MODULES_PREFIX.length());
+				if (sep >= 0)
+					result.addLoadedFromZippedFile(new File(System.getProperty("java.home"), "lib" + File.separator + "modules"), loadedPath.substring(sep + 1));
+			}
+			else
+				result.addLoadedClassFile(file.getAbsoluteFile());
+		}
+	}
+
+	/**
+	 * Extracts the path from <code>[prefix path]</code>, where path may be
+	 * wrapped as in <code>RegularFileObject[path]</code> or
+	 * <code>DirectoryFileObject[dir:rel]</code>.
+	 */
+	private static String fileOf(String line, int from) {
+		int to = line.length() - 1;
+		int open = line.indexOf('[', from);
+		if (open >= 0 && line.charAt(to - 1) == ']') {
+			boolean directory = line.startsWith("DirectoryFileObject", from);
+			from = open + 1;
+			to = to - 1;
+			if (directory) {
+				int colon = line.indexOf(':', from);
+				// skip Windows drive letters
+				if (colon == from + 1)
+					colon = line.indexOf(':', colon + 1);
+				if (colon >= 0 && colon < to)
+					return line.substring(from, colon) + File.separator + line.substring(colon + 1, to);
+			}
+		}
+		return line.substring(from, to);
+	}
+}
@@ -0,0 +1,477 @@
+package build.pluto.buildjava.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildjava.util.ZipIndex;
+import build.pluto.buildjava.util.ZipIndexCache;
+
+/**
+ * A file manager for the in-process javac that records the dependencies of a
+ * compilation directly into a {@link JavaCompilerResult}: all source and class
+ * files whose content the compiler actually reads, and all class files it
+ * writes together with the source file they were generated from.
+ *
+ * Files the compiler only lists (e.g., all classes of a package) are not
+ * recorded. To this end, all files handed to the compiler are wrapped and
+ * record themselves when they are opened.
+ *
+ * Jars of the class path are read through the {@link ZipIndexCache}, like in
+ * {@link RecordingNameEnvironment}, instead of being opened by javac for every
+ * compilation. The jars' indexes are obtained once per compilation, such that
+ * all lookups see the same snapshot, and their entries are read through one
+ * channel per jar, which is closed with the file manager. Class paths with
+ * multi-release jars are left to javac, which selects the entries of the
+ * target release.
+ *
+ * Listing packages and writing class files fail once the compiling thread is
+ * interrupted, such that a compilation can be cancelled.
+ */
+class RecordingJavaFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+	/**
+	 * Entries of the JDK 8 <code>ct.sym</code> are prefixed by
+	 * <code>META-INF/sym/rt.jar/</code>.
+	 */
+	private static final String SYM_JAR_PREFIX = ".jar/";
+
+	private static final String VERSIONS_PACKAGE = "META-INF/versions";
+
+	private final JavaCompilerResult result;
+	private final Collection<File> sourcePath;
+
+	private final Map<File, ZipIndex> zips = new HashMap<>();
+	private final Map<ZipIndex, FileChannel> channels = new HashMap<>();
+
+	/**
+	 * The class path as expanded by javac, or <code>null</code> if the class
+	 * path is not read through {@link ZipIndex}es. Computed on first use.
+	 */
+	private List<File> classPath;
+	private boolean classPathComputed;
+
+	RecordingJavaFileManager(StandardJavaFileManager fileManager, Collection<File> sourcePath, JavaCompilerResult result) {
+		super(fileManager);
+		this.sourcePath = sourcePath;
+		this.result = result;
+	}
+
+	Iterable<? extends JavaFileObject> getJavaFileObjectsFromFiles(Iterable<? extends File> files) {
+		return fileManager.getJavaFileObjectsFromFiles(files);
+	}
+
+	/**
+	 * Records a source file that is compiled explicitly.
+	 */
+	void recordSourceFile(File source) {
+		if (isInSourcePath(source))
+			result.addSourceFile(source);
+	}
+
+	@Override
+	public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds, boolean recurse) throws IOException {
+		checkInterrupted();
+		List<File> path = location == StandardLocation.CLASS_PATH ? classPath() : null;
+		List<JavaFileObject> files = new ArrayList<>();
+		if (path == null)
+			for (JavaFileObject file : super.list(location, packageName, kinds, recurse))
+				files.add(new RecordingFileObject(file));
+		else {
+			String pkg = packageName.replace('.', '/');
+			for (File entry : path)
+				if (entry.isDirectory())
+					listDirectory(pkg.isEmpty() ? entry : new File(entry, pkg), kinds, recurse, files);
+				else if (entry.isFile())
+					listZip(zip(entry), pkg, kinds, recurse, files);
+		}
+		return files;
+	}
+
+	private void listDirectory(File dir, Set<Kind> kinds, boolean recurse, List<JavaFileObject> files) {
+		File[] children = dir.listFiles();
+		if (children == null)
+			return;
+		Arrays.sort(children);
+		for (File child : children)
+			if (child.isDirectory()) {
+				if (recurse)
+					listDirectory(child, kinds, recurse, files);
+			}
+			else if (kinds.contains(kindOf(child.getName())))
+				files.add(new RecordingFileObject(fileManager.getJavaFileObjects(child).iterator().next()));
+	}
+
+	private void listZip(ZipIndex zip, String pkg, Set<Kind> kinds, boolean recurse, List<JavaFileObject> files) {
+		if (recurse) {
+			List<String> names = new ArrayList<>(zip.getEntryNames());
+			Collections.sort(names);
+			for (String name : names)
+				if (!name.endsWith("/") && (pkg.isEmpty() || name.startsWith(pkg + "/")) && kinds.contains(kindOf(name)))
+					files.add(new RecordingFileObject(new ZipEntryFileObject(zip, name)));
+		}
+		else
+			for (String name : zip.getPackageEntries(pkg))
+				if (kinds.contains(kindOf(name)))
+					files.add(new RecordingFileObject(new ZipEntryFileObject(zip, name)));
+	}
+
+	@Override
+	public JavaFileObject getJavaFileForInput(Location location, String className, Kind kind) throws IOException {
+		List<File> path = location == StandardLocation.CLASS_PATH ? classPath() : null;
+		if (path != null) {
+			String name = className.replace('.', '/') + kind.extension;
+			for (File entry : path)
+				if (entry.isDirectory()) {
+					File file = new File(entry, name);
+					if (file.isFile())
+						return new RecordingFileObject(fileManager.getJavaFileObjects(file).iterator().next());
+				}
+				else if (entry.isFile()) {
+					ZipIndex zip = zip(entry);
+					if (zip.contains(name))
+						return new RecordingFileObject(new ZipEntryFileObject(zip, name));
+				}
+			return null;
+		}
+		JavaFileObject file = super.getJavaFileForInput(location, className, kind);
+		return file == null ? null : new RecordingFileObject(file);
+	}
+
+	@Override
+	public String inferBinaryName(Location location, JavaFileObject file) {
+		JavaFileObject unwrapped = unwrap(file);
+		if (unwrapped instanceof ZipEntryFileObject)
+			return ((ZipEntryFileObject) unwrapped).binaryName();
+		return super.inferBinaryName(location, unwrapped);
+	}
+
+	@Override
+	public boolean isSameFile(FileObject a, FileObject b) {
+		FileObject ua = unwrap(a);
+		FileObject ub = unwrap(b);
+		if (ua instanceof ZipEntryFileObject || ub instanceof ZipEntryFileObject)
+			return ua.toUri().equals(ub.toUri());
+		return super.isSameFile(ua, ub);
+	}
+
+	/**
+	 * @return the class path as expanded by javac, or <code>null</code> if it
+	 *         contains a multi-release jar.
+	 */
+	private List<File> classPath() throws IOException {
+		if (!classPathComputed) {
+			classPathComputed = true;
+			Iterable<? extends File> location = fileManager.getLocation(StandardLocation.CLASS_PATH);
+			if (location != null) {
+				List<File> path = new ArrayList<>();
+				for (File entry : location) {
+					if (entry.isFile() && zip(entry).containsPackage(VERSIONS_PACKAGE))
+						return null;
+					path.add(entry);
+				}
+				classPath = path;
+			}
+		}
+		return classPath;
+	}
+
+	private ZipIndex zip(File file) throws IOException {
+		ZipIndex zip = zips.get(file);
+		if (zip == null) {
+			zip = ZipIndexCache.instance.get(file);
+			zips.put(file, zip);
+		}
+		return zip;
+	}
+
+	/**
+	 * @return the channel for reading the entries of the given jar, which is
+	 *         opened on first use and checked to be the indexed file.
+	 */
+	private synchronized FileChannel channel(ZipIndex zip) throws IOException {
+		FileChannel channel = channels.get(zip);
+		if (channel == null) {
+			channel = zip.openUnchanged();
+			channels.put(zip, channel);
+		}
+		return channel;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			synchronized (this) {
+				for (FileChannel channel : channels.values())
+					channel.close();
+				channels.clear();
+			}
+		} finally {
+			super.close();
+		}
+	}
+
+	private static Kind kindOf(String name) {
+		for (Kind kind : Kind.values())
+			if (kind != Kind.OTHER && name.endsWith(kind.extension))
+				return kind;
+		return Kind.OTHER;
+	}
+
+	@Override
+	public JavaFileObject getJavaFileForOutput(Location location, String className, Kind kind, FileObject sibling) throws IOException {
+		checkInterrupted();
+		JavaFileObject output = super.getJavaFileForOutput(location, className, kind, unwrap(sibling));
+		if (location == StandardLocation.CLASS_OUTPUT && kind == Kind.CLASS && sibling != null) {
+			File source = toFile(sibling.toUri());
+			File generated = toFile(output.toUri());
+			if (source != null && generated != null)
+				result.addGeneratedFile(source, generated);
+		}
+		return output;
+	}
+
+	private static void checkInterrupted() throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted())
+			throw new InterruptedIOException("Compilation cancelled");
+	}
+
+	@Override
+	public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling) throws IOException {
+		return super.getFileForOutput(location, packageName, relativeName, unwrap(sibling));
+	}
+
+	private void recordRead(JavaFileObject file) {
+		if (file instanceof ZipEntryFileObject) {
+			ZipEntryFileObject entry = (ZipEntryFileObject) file;
+			if (entry.getKind() == Kind.CLASS)
+				result.addLoadedFromZippedFile(entry.zip.getFile(), entry.entry);
+			return;
+		}
+		URI uri = file.toUri();
+		if (file.getKind() == Kind.SOURCE) {
+			File source = toFile(uri);
+			if (source != null && isInSourcePath(source))
+				result.addSourceFile(source);
+		}
+		else if (file.getKind() == Kind.CLASS) {
+			String scheme = uri.getScheme();
+			if ("file".equals(scheme))
+				result.addLoadedClassFile(new File(uri));
+			else if ("jar".equals(scheme)) {
+				// jar:file:/path/to/lib.jar!/pkg/C.class
+				String spec = uri.getRawSchemeSpecificPart();
+				int sep = spec.indexOf("!/");
+				if (sep < 0)
+					return;
+				File zip = toFile(URI.create(spec.substring(0, sep)));
+				String entry = spec.substring(sep + 2);
+				if (zip == null)
+					return;
+				if (zip.getName().endsWith(".sym") && entry.contains(SYM_JAR_PREFIX))
+					entry = entry.substring(entry.indexOf(SYM_JAR_PREFIX) + SYM_JAR_PREFIX.length());
+				result.addLoadedFromZippedFile(zip, entry);
+			}
+			else if ("jrt".equals(scheme)) {
+				// jrt:/java.base/java/lang/Object.class
+				String path = uri.getPath();
+				int sep = path.indexOf('/', 1);
+				if (sep >= 0)
+					result.addLoadedFromZippedFile(new File(System.getProperty("java.home"), "lib" + File.separator + "modules"), path.substring(sep + 1));
+			}
+		}
+	}
+
+	private boolean isInSourcePath(File file) {
+		for (File path : sourcePath)
+			if (FileCommands.getRelativePath(path, file) != null)
+				return true;
+		return false;
+	}
+
+	private static File toFile(URI uri) {
+		if (!"file".equals(uri.getScheme()))
+			return null;
+		return new File(uri);
+	}
+
+	private static <F extends FileObject> F unwrap(F file) {
+		if (file instanceof RecordingFileObject) {
+			@SuppressWarnings("unchecked")
+			F unwrapped = (F) ((RecordingFileObject) file).getDelegate();
+			return unwrapped;
+		}
+		return file;
+	}
+
+	private class RecordingFileObject extends ForwardingJavaFileObject<JavaFileObject> {
+		private boolean recorded;
+
+		RecordingFileObject(JavaFileObject file) {
+			super(file);
+		}
+
+		JavaFileObject getDelegate() {
+			return fileObject;
+		}
+
+		private void record() {
+			if (!recorded) {
+				recorded = true;
+				recordRead(fileObject);
+			}
+		}
+
+		@Override
+		public InputStream openInputStream() throws IOException {
+			record();
+			return super.openInputStream();
+		}
+
+		@Override
+		public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+			record();
+			return super.openReader(ignoreEncodingErrors);
+		}
+
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+			record();
+			return super.getCharContent(ignoreEncodingErrors);
+		}
+	}
+
+	/**
+	 * An entry of a class path jar, read through its {@link ZipIndex}.
+	 */
+	private class ZipEntryFileObject implements JavaFileObject {
+		final ZipIndex zip;
+		final String entry;
+		private final Kind kind;
+		private final URI uri;
+
+		ZipEntryFileObject(ZipIndex zip, String entry) {
+			this.zip = zip;
+			this.entry = entry;
+			this.kind = kindOf(entry);
+			try {
+				this.uri = new URI("jar", zip.getFile().toURI() + "!/" + entry, null);
+			} catch (URISyntaxException e) {
+				throw new IllegalArgumentException("Invalid entry " + entry + " of " + zip.getFile(), e);
+			}
+		}
+
+		String binaryName() {
+			return entry.substring(0, entry.length() - kind.extension.length()).replace('/', '.');
+		}
+
+		private byte[] content() throws IOException {
+			byte[] content = zip.read(entry, channel(zip));
+			if (content == null)
+				throw new FileNotFoundException(getName());
+			return content;
+		}
+
+		@Override
+		public Kind getKind() {
+			return kind;
+		}
+
+		@Override
+		public boolean isNameCompatible(String simpleName, Kind kind) {
+			String name = simpleName + kind.extension;
+			return this.kind == kind && (entry.equals(name) || entry.endsWith("/" + name));
+		}
+
+		@Override
+		public NestingKind getNestingKind() {
+			return null;
+		}
+
+		@Override
+		public Modifier getAccessLevel() {
+			return null;
+		}
+
+		@Override
+		public URI toUri() {
+			return uri;
+		}
+
+		@Override
+		public String getName() {
+			return zip.getFile().getPath() + "(" + entry + ")";
+		}
+
+		@Override
+		public InputStream openInputStream() throws IOException {
+			return new ByteArrayInputStream(content());
+		}
+
+		@Override
+		public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+			return new StringReader(getCharContent(ignoreEncodingErrors).toString());
+		}
+
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+			return new String(content(), Charset.defaultCharset());
+		}
+
+		@Override
+		public OutputStream openOutputStream() {
+			throw new UnsupportedOperationException("Cannot write " + getName());
+		}
+
+		@Override
+		public Writer openWriter() {
+			throw new UnsupportedOperationException("Cannot write " + getName());
+		}
+
+		@Override
+		public long getLastModified() {
+			return zip.getTime(entry);
+		}
+
+		@Override
+		public boolean delete() {
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return getName();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package build.pluto.buildjava.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import org.eclipse.jdt.internal.compiler.batch.CompilationUnit;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+
+import build.pluto.buildjava.util.ZipIndex;
+import build.pluto.buildjava.util.ZipIndexCache;
+
+/**
+ * Resolves types for the Eclipse compiler from a binary class path (directories
+ * and jars) and a source path, and records every successful lookup in a
+ * {@link JavaCompilerResult}. Lookups fail with a
+ * {@link CancellationException} once the compiling thread is interrupted.
+ */
+class RecordingNameEnvironment implements INameEnvironment {
+
+	private final List<File> binaryPath;
+	private final List<File> sourcePath;
+	private final String encoding;
+	private final JavaCompilerResult result;
+
+	/**
+	 * Indexes of the jars in the binary path, taken from the
+	 * {@link ZipIndexCache} once per compilation such that all lookups see the
+	 * same jar content.
+	 */
+	private final Map<File, ZipIndex> zips = new HashMap<>();
+
+	/**
+	 * @param binaryPath
+	 *            directories and jars to look up class files in, in lookup
+	 *            order.
+	 * @param sourcePath
+	 *            directories to look up source files in if no class file is
+	 *            found.
+	 * @param encoding
+	 *            the encoding of source files, or <code>null</code> for the
+	 *            platform default.
+	 */
+	RecordingNameEnvironment(List<File> binaryPath, List<File> sourcePath, String encoding, JavaCompilerResult result) {
+		this.binaryPath = binaryPath;
+		this.sourcePath = sourcePath;
+		this.encoding = encoding;
+		this.result = result;
+	}
+
+	@Override
+	public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+		if (Thread.currentThread().isInterrupted())
+			throw new CancellationException("Compilation cancelled");
+		return findType(join(compoundTypeName, compoundTypeName.length));
+	}
+
+	@Override
+	public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+		if (Thread.currentThread().isInterrupted())
+			throw new CancellationException("Compilation cancelled");
+		if (packageName == null || packageName.length == 0)
+			return findType(new String(typeName));
+		return findType(join(packageName, packageName.length) + '/' + new String(typeName));
+	}
+
+	@Override
+	public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+		String pkg = parentPackageName == null || parentPackageName.length == 0 ? new String(packageName) : join(parentPackageName, parentPackageName.length) + '/' + new String(packageName);
+		try {
+			for (File cp : binaryPath) {
+				if (cp.isDirectory()) {
+					if (new File(cp, pkg).isDirectory())
+						return true;
+				}
+				else if (cp.isFile() && zip(cp).containsPackage(pkg))
+					return true;
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		for (File sp : sourcePath)
+			if (new File(sp, pkg).isDirectory())
+				return true;
+		return false;
+	}
+
+	@Override
+	public void cleanup() {
+		// the indexes stay in the process-wide cache
+		zips.clear();
+	}
+
+	/**
+	 * @param binaryName
+	 *            the slash-separated binary name of the type.
+	 */
+	private NameEnvironmentAnswer findType(String binaryName) {
+		String classEntry = binaryName + ".class";
+		try {
+			for (File cp : binaryPath) {
+				if (cp.isDirectory()) {
+					File classFile = new File(cp, classEntry);
+					if (classFile.isFile()) {
+						result.addLoadedClassFile(classFile);
+						return binaryAnswer(Files.readAllBytes(classFile.toPath()), classFile.getPath());
+					}
+				}
+				else if (cp.isFile()) {
+					ZipIndex zip = zip(cp);
+					if (zip.contains(classEntry)) {
+						result.addLoadedFromZippedFile(cp, classEntry);
+						return binaryAnswer(zip.read(classEntry), cp.getPath() + "|" + classEntry);
+					}
+				}
+			}
+
+			for (File sp : sourcePath) {
+				File sourceFile = new File(sp, binaryName + ".java");
+				if (sourceFile.isFile()) {
+					result.addSourceFile(sourceFile.getAbsoluteFile());
+					return new NameEnvironmentAnswer(new CompilationUnit(readSource(sourceFile, encoding), sourceFile.getAbsolutePath(), encoding), null);
+				}
+			}
+		} catch (IOException | ClassFormatException e) {
+			throw new IllegalStateException("Failed to load type " + binaryName, e);
+		}
+		return null;
+	}
+
+	static char[] readSource(File sourceFile, String encoding) throws IOException {
+		Charset charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+		return new String(Files.readAllBytes(sourceFile.toPath()), charset).toCharArray();
+	}
+
+	private static NameEnvironmentAnswer binaryAnswer(byte[] bytes, String fileName) throws ClassFormatException {
+		return new NameEnvironmentAnswer(new ClassFileReader(bytes, fileName.toCharArray()), null);
+	}
+
+	private ZipIndex zip(File file) throws IOException {
+		ZipIndex zip = zips.get(file);
+		if (zip == null) {
+			zip = ZipIndexCache.instance.get(file);
+			zips.put(file, zip);
+		}
+		return zip;
+	}
+
+	private static String join(char[][] segments, int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				sb.append('/');
+			sb.append(segments[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The class path of the running JVM's platform classes.
+	 */
+	static List<File> platformClassPath() {
+		List<File> path = new ArrayList<>();
+		String boot = System.getProperty("sun.boot.class.path");
+		if (boot != null) {
+			for (String entry : boot.split(File.pathSeparator))
+				if (!entry.isEmpty() && new File(entry).exists())
+					path.add(new File(entry));
+		}
+		else {
+			File rt = new File(System.getProperty("java.home"), "lib" + File.separator + "rt.jar");
+			if (!rt.exists())
+				throw new IllegalStateException("The Eclipse compiler needs the platform classes in rt.jar, which is not available in " + System.getProperty("java.home"));
+			path.add(rt);
+		}
+		return path;
+	}
+}
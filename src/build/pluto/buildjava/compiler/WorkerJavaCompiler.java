@@ -0,0 +1,323 @@
+package build.pluto.buildjava.compiler;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.sugarj.common.Log;
+import org.sugarj.common.StringCommands;
+
+import build.pluto.buildjava.compiler.CompilerWorker.CompileRequest;
+import build.pluto.buildjava.compiler.CompilerWorker.CompileResponse;
+
+/**
+ * Sends compile requests to a {@link CompilerWorker} process that outlives the
+ * current build. The worker is started on first use and shared by all builds
+ * of the current user that use the same JDK, class path, pool size and idle
+ * timeout. The actual compilation is done by the delegate compiler inside the
+ * worker.
+ *
+ * The worker runs in the working directory of the build that started it, so
+ * all files of a request are made absolute, including the arguments of
+ * path-valued compiler options and argument files. Paths within argument
+ * files are not resolved and should be absolute.
+ *
+ * Port files are stored in <code>~/.pluto/workers</code>, which can be
+ * configured through the system property
+ * <code>pluto.buildjava.workers.dir</code>. A worker that does not respond
+ * within {@link #RESPONSE_TIMEOUT} is abandoned, and a worker that closes the
+ * connection before responding is replaced by a new one.
+ */
+public class WorkerJavaCompiler implements IJavaCompiler {
+
+	private static final long serialVersionUID = 6137766386009735383L;
+
+	public static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+	public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
+	private static final long STARTUP_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+	public static final long RESPONSE_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
+
+	/**
+	 * Compiler options whose argument is a file.
+	 */
+	private static final Set<String> FILE_OPTIONS = new HashSet<>(Arrays.asList("-d", "-s", "-h", "-log", "--system"));
+
+	/**
+	 * Compiler options whose argument is a list of files separated by
+	 * {@link File#pathSeparator}.
+	 */
+	private static final Set<String> PATH_OPTIONS = new HashSet<>(Arrays.asList(
+			"-cp", "-classpath", "--class-path",
+			"-sourcepath", "--source-path",
+			"-bootclasspath", "--boot-class-path",
+			"-extdirs", "-endorseddirs",
+			"-processorpath", "--processor-path", "--processor-module-path",
+			"-p", "--module-path", "--upgrade-module-path"));
+
+	public static final WorkerJavaCompiler javac = new WorkerJavaCompiler(InProcessJavacCompiler.instance);
+	public static final WorkerJavaCompiler eclipse = new WorkerJavaCompiler(EclipseJavaCompiler.instance);
+
+	private final IJavaCompiler delegate;
+	private final int poolSize;
+	private final long idleTimeout;
+
+	public WorkerJavaCompiler(IJavaCompiler delegate) {
+		this(delegate, DEFAULT_POOL_SIZE, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * @param delegate
+	 *            the compiler to run inside the worker.
+	 * @param poolSize
+	 *            the number of compile requests the worker serves
+	 *            concurrently.
+	 * @param idleTimeout
+	 *            milliseconds without requests after which the worker
+	 *            terminates.
+	 */
+	public WorkerJavaCompiler(IJavaCompiler delegate, int poolSize, long idleTimeout) {
+		if (delegate instanceof WorkerJavaCompiler)
+			throw new IllegalArgumentException("Cannot delegate to another worker compiler");
+		if (poolSize < 1)
+			throw new IllegalArgumentException("Pool size must be positive, was " + poolSize);
+		this.delegate = delegate;
+		this.poolSize = poolSize;
+		this.idleTimeout = idleTimeout;
+	}
+
+	public JavaCompilerResult compile(
+			Collection<File> sourceFiles,
+			File targetDir,
+			Collection<File> sourcePath,
+			Collection<File> classPath,
+			String sourceRelease,
+			String targetRelease,
+			Collection<String> additionalArguments) throws Exception {
+		// the worker runs in a different working directory
+		CompileRequest req = new CompileRequest(
+				delegate,
+				absolute(sourceFiles),
+				targetDir.getAbsoluteFile(),
+				absolute(sourcePath),
+				absolute(classPath),
+				sourceRelease,
+				targetRelease,
+				absoluteArguments(additionalArguments));
+
+		CompileResponse resp = send(req);
+		if (resp.error instanceof Exception)
+			throw (Exception) resp.error;
+		if (resp.error instanceof Error)
+			throw (Error) resp.error;
+		return resp.result;
+	}
+
+	private CompileResponse send(CompileRequest req) throws IOException, ClassNotFoundException {
+		File portFile = getPortFile();
+		IOException lastError = null;
+		for (int attempt = 0; attempt < 2; attempt++) {
+			List<String> address = readPortFile(portFile);
+			if (address == null)
+				address = startWorker(portFile);
+
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(address.get(0)))) {
+				socket.setSoTimeout((int) RESPONSE_TIMEOUT);
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				out.writeUTF(address.get(1));
+				ObjectOutputStream objOut = new ObjectOutputStream(out);
+				objOut.writeObject(req);
+				objOut.flush();
+
+				ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+				return (CompileResponse) in.readObject();
+			} catch (SocketTimeoutException e) {
+				throw new IOException("Compiler worker " + portFile + " did not respond within " + RESPONSE_TIMEOUT + "ms", e);
+			} catch (EOFException | SocketException e) {
+				// stale port file of a worker that has shut down, or a worker
+				// that died while compiling
+				Files.deleteIfExists(portFile.toPath());
+				lastError = e;
+			}
+		}
+		throw new IOException("Could not connect to compiler worker " + portFile, lastError);
+	}
+
+	/**
+	 * @return the file in which the worker of this compiler publishes its port
+	 *         and access token while it is running.
+	 */
+	public File getPortFile() {
+		String key = System.getProperty("java.home") + File.pathSeparator + workerClassPath() + File.pathSeparator + delegate.getClass().getName() + File.pathSeparator + poolSize + File.pathSeparator + idleTimeout;
+		File dir = new File(System.getProperty("pluto.buildjava.workers.dir", System.getProperty("user.home") + File.separator + ".pluto" + File.separator + "workers"));
+		return new File(dir, "java-compiler-" + Integer.toHexString(key.hashCode()) + ".port");
+	}
+
+	private static List<String> readPortFile(File portFile) throws IOException {
+		if (!portFile.exists())
+			return null;
+		List<String> lines = Files.readAllLines(portFile.toPath(), StandardCharsets.UTF_8);
+		if (lines.size() < 2)
+			return null;
+		return lines;
+	}
+
+	private List<String> startWorker(File portFile) throws IOException {
+		portFile.getParentFile().mkdirs();
+		File lockFile = new File(portFile.getPath() + ".lock");
+		try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw")) {
+			FileLock lock = raf.getChannel().lock();
+			try {
+				// another build may have started the worker while we were waiting for the lock
+				List<String> address = readPortFile(portFile);
+				if (address != null)
+					return address;
+				return launchWorker(portFile);
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * Starts a worker process and waits until it has published its port.
+	 */
+	private List<String> launchWorker(File portFile) throws IOException {
+		File logFile = new File(portFile.getPath() + ".log");
+		List<String> cmd = new ArrayList<>();
+		cmd.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getAbsolutePath());
+		cmd.add("-cp");
+		cmd.add(workerClassPath());
+		cmd.add(CompilerWorker.class.getName());
+		cmd.add(portFile.getAbsolutePath());
+		cmd.add(Integer.toString(poolSize));
+		cmd.add(Long.toString(idleTimeout));
+		Log.log.log("Starting compiler worker: " + StringCommands.printListSeparated(cmd, " "), Log.DETAIL);
+
+		Process process = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(Redirect.appendTo(logFile)).start();
+
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (System.currentTimeMillis() < deadline) {
+			List<String> address = readPortFile(portFile);
+			if (address != null)
+				return address;
+			try {
+				process.exitValue();
+				throw new IOException("Compiler worker terminated during startup, see " + logFile);
+			} catch (IllegalThreadStateException e) {
+				// still running
+			}
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for compiler worker", e);
+			}
+		}
+		process.destroy();
+		throw new IOException("Compiler worker did not start within " + STARTUP_TIMEOUT + "ms, see " + logFile);
+	}
+
+	/**
+	 * The class path of the worker must contain the compiler classes, which are
+	 * not necessarily on the system class path (e.g., when run from
+	 * <code>mvn exec:java</code>).
+	 */
+	private static String workerClassPath() {
+		Set<String> entries = new LinkedHashSet<>();
+		for (ClassLoader cl = WorkerJavaCompiler.class.getClassLoader(); cl != null; cl = cl.getParent())
+			if (cl instanceof URLClassLoader)
+				for (URL url : ((URLClassLoader) cl).getURLs())
+					if ("file".equals(url.getProtocol()))
+						try {
+							entries.add(new File(url.toURI()).getAbsolutePath());
+						} catch (URISyntaxException e) {
+							entries.add(url.getPath());
+						}
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator))
+			if (!entry.isEmpty())
+				entries.add(new File(entry).getAbsolutePath());
+		StringBuilder cp = new StringBuilder();
+		for (String entry : entries) {
+			if (cp.length() > 0)
+				cp.append(File.pathSeparator);
+			cp.append(entry);
+		}
+		return cp.toString();
+	}
+
+	/**
+	 * @return the arguments with the files of path-valued options and
+	 *         argument files made absolute.
+	 */
+	private static List<String> absoluteArguments(Collection<String> args) {
+		if (args == null)
+			return null;
+		List<String> abs = new ArrayList<>(args.size());
+		boolean files = false;
+		boolean paths = false;
+		for (String arg : args) {
+			if (files)
+				abs.add(new File(arg).getAbsolutePath());
+			else if (paths)
+				abs.add(absolutePath(arg));
+			else if (arg.startsWith("@") && arg.length() > 1)
+				abs.add("@" + new File(arg.substring(1)).getAbsolutePath());
+			else {
+				int eq = arg.startsWith("--") ? arg.indexOf('=') : -1;
+				String option = eq < 0 ? arg : arg.substring(0, eq);
+				if (eq >= 0 && FILE_OPTIONS.contains(option))
+					abs.add(option + "=" + new File(arg.substring(eq + 1)).getAbsolutePath());
+				else if (eq >= 0 && PATH_OPTIONS.contains(option))
+					abs.add(option + "=" + absolutePath(arg.substring(eq + 1)));
+				else
+					abs.add(arg);
+			}
+			boolean value = files || paths;
+			files = !value && FILE_OPTIONS.contains(arg);
+			paths = !value && PATH_OPTIONS.contains(arg);
+		}
+		return abs;
+	}
+
+	private static String absolutePath(String path) {
+		StringBuilder abs = new StringBuilder();
+		for (String entry : path.split(File.pathSeparator, -1)) {
+			if (abs.length() > 0)
+				abs.append(File.pathSeparator);
+			abs.append(entry.isEmpty() ? entry : new File(entry).getAbsolutePath());
+		}
+		return abs.toString();
+	}
+
+	private static List<File> absolute(Collection<File> files) {
+		if (files == null)
+			return null;
+		List<File> abs = new ArrayList<>(files.size());
+		for (File f : files)
+			abs.add(f.getAbsoluteFile());
+		return abs;
+	}
+}
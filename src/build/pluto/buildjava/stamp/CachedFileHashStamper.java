@@ -0,0 +1,322 @@
+package build.pluto.buildjava.stamp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.sugarj.common.FileCommands;
+
+import build.pluto.stamp.Stamp;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+/**
+ * Stamps a file by the SHA-1 digest of its content. Digests are kept in a
+ * persistent cache per directory, which maps the names of the files in the
+ * directory to their digest together with their file key (the inode on Unix),
+ * modification time, and size. A file is only hashed again if one of these
+ * changed, such that checking an unchanged source tree does not read any
+ * source file.
+ *
+ * The caches are stored in <code>~/.pluto/hashes</code>, which can be
+ * configured through the system property
+ * <code>pluto.buildjava.hashCache.dir</code>. They are written by
+ * {@link #flush()} and when the virtual machine shuts down.
+ *
+ * Files modified shortly before they were hashed are not cached, because
+ * another modification within the resolution of the file system's
+ * modification times would go unnoticed.
+ */
+public class CachedFileHashStamper implements Stamper {
+
+	private static final long serialVersionUID = -4382306913658927148L;
+
+	public static final CachedFileHashStamper instance = new CachedFileHashStamper();
+	private CachedFileHashStamper() { }
+
+	private static final int MAGIC = 0x504A4843; // "PJHC"
+	private static final int VERSION = 1;
+
+	/**
+	 * Files of at least this size are hashed through a memory mapping.
+	 */
+	private static final long MAP_THRESHOLD = 64 * 1024;
+
+	/**
+	 * How long after its last modification a file is considered racy, in
+	 * milliseconds.
+	 */
+	private static final long RACY_INTERVAL = 2000;
+
+	private static final File cacheDir = new File(System.getProperty("pluto.buildjava.hashCache.dir", System.getProperty("user.home") + File.separator + ".pluto" + File.separator + "hashes"));
+
+	private static final Map<File, DirectoryCache> caches = new HashMap<>();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread("flush file hash caches") {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	@Override
+	public Stamp stampOf(File p) {
+		if (!FileCommands.exists(p))
+			return new ValueStamp<>(this, null);
+		try {
+			return new ValueStamp<>(this, digest(p));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ValueStamp<>(this, null);
+		}
+	}
+
+	/**
+	 * @return the hex-encoded SHA-1 digest of the content of the given file,
+	 *         which is only computed if the file changed since it was cached.
+	 */
+	public static String digest(File file) throws IOException {
+		Path path = file.toPath().toAbsolutePath();
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		DirectoryCache cache = cache(path.getParent().toFile());
+		String name = path.getFileName().toString();
+		String digest = cache.get(name, attrs);
+		if (digest == null) {
+			long start = System.currentTimeMillis();
+			digest = hash(path, attrs.size());
+			cache.put(name, attrs, digest, start);
+		}
+		return digest;
+	}
+
+	/**
+	 * Hashes the given files in parallel if their cached digests are missing
+	 * or outdated, such that subsequent calls of {@link #stampOf(File)} hit
+	 * the cache.
+	 */
+	public static void prefetch(Collection<File> files) throws IOException {
+		final List<File> stale = new ArrayList<>();
+		for (File file : files) {
+			if (!FileCommands.exists(file))
+				continue;
+			Path path = file.toPath().toAbsolutePath();
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			if (cache(path.getParent().toFile()).get(path.getFileName().toString(), attrs) == null)
+				stale.add(file);
+		}
+		if (stale.size() < 2) {
+			for (File file : stale)
+				digest(file);
+			return;
+		}
+
+		int threads = Math.min(stale.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<String>> futures = new ArrayList<>(stale.size());
+			for (final File file : stale)
+				futures.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws IOException {
+						return digest(file);
+					}
+				}));
+			for (Future<String> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes all caches that changed since they were read.
+	 */
+	public static void flush() {
+		List<DirectoryCache> dirty = new ArrayList<>();
+		synchronized (caches) {
+			dirty.addAll(caches.values());
+		}
+		for (DirectoryCache cache : dirty)
+			try {
+				cache.write();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+	}
+
+	private static DirectoryCache cache(File dir) {
+		synchronized (caches) {
+			DirectoryCache cache = caches.get(dir);
+			if (cache == null) {
+				cache = new DirectoryCache(dir);
+				caches.put(dir, cache);
+			}
+			return cache;
+		}
+	}
+
+	private static String hash(Path path, long size) throws IOException {
+		MessageDigest md = ClassAbiStamper.sha1();
+		if (size < MAP_THRESHOLD)
+			md.update(Files.readAllBytes(path));
+		else
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				long length = channel.size();
+				for (long pos = 0; pos < length; pos += Integer.MAX_VALUE) {
+					ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(Integer.MAX_VALUE, length - pos));
+					md.update(buffer);
+				}
+			}
+		return ClassAbiStamper.toHex(md.digest());
+	}
+
+	private static String fileKey(BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		return key == null ? "" : key.toString();
+	}
+
+	private Object readResolve() {
+		return instance;
+	}
+
+	/**
+	 * The cached digests of the files in one directory.
+	 */
+	private static class DirectoryCache {
+		private final File dir;
+		private final File file;
+		private Map<String, CachedDigest> digests;
+		private final Set<String> used = new HashSet<>();
+		private boolean dirty;
+
+		DirectoryCache(File dir) {
+			this.dir = dir;
+			String name = ClassAbiStamper.toHex(ClassAbiStamper.sha1().digest(dir.getPath().getBytes(StandardCharsets.UTF_8)));
+			this.file = new File(cacheDir, name.substring(0, 2) + File.separator + name.substring(2));
+		}
+
+		synchronized String get(String name, BasicFileAttributes attrs) {
+			if (digests == null)
+				digests = read();
+			used.add(name);
+			CachedDigest cached = digests.get(name);
+			if (cached != null && cached.lastModified == attrs.lastModifiedTime().toMillis() && cached.size == attrs.size()
+					&& cached.fileKey.equals(fileKey(attrs)))
+				return cached.digest;
+			return null;
+		}
+
+		synchronized void put(String name, BasicFileAttributes attrs, String digest, long hashed) {
+			long lastModified = attrs.lastModifiedTime().toMillis();
+			if (lastModified > hashed - RACY_INTERVAL)
+				return;
+			digests.put(name, new CachedDigest(fileKey(attrs), lastModified, attrs.size(), digest));
+			dirty = true;
+		}
+
+		private Map<String, CachedDigest> read() {
+			Map<String, CachedDigest> digests = new HashMap<>();
+			if (!file.exists())
+				return digests;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(dir.getPath()))
+					return digests;
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String name = in.readUTF();
+					digests.put(name, new CachedDigest(in.readUTF(), in.readLong(), in.readLong(), in.readUTF()));
+				}
+			} catch (IOException e) {
+				// a corrupt cache only costs hashing
+				digests.clear();
+			}
+			return digests;
+		}
+
+		/**
+		 * Writes the cache if it changed, dropping files that were neither
+		 * used nor exist anymore.
+		 */
+		synchronized void write() throws IOException {
+			if (!dirty)
+				return;
+			for (Iterator<String> it = digests.keySet().iterator(); it.hasNext();) {
+				String name = it.next();
+				if (!used.contains(name) && !new File(dir, name).exists())
+					it.remove();
+			}
+
+			FileCommands.createDir(file.getParentFile());
+			File tmp = File.createTempFile(file.getName(), null, file.getParentFile());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(dir.getPath());
+				out.writeInt(digests.size());
+				for (Map.Entry<String, CachedDigest> e : digests.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeUTF(e.getValue().fileKey);
+					out.writeLong(e.getValue().lastModified);
+					out.writeLong(e.getValue().size);
+					out.writeUTF(e.getValue().digest);
+				}
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			dirty = false;
+		}
+	}
+
+	private static class CachedDigest {
+		final String fileKey;
+		final long lastModified;
+		final long size;
+		final String digest;
+
+		CachedDigest(String fileKey, long lastModified, long size, String digest) {
+			this.fileKey = fileKey;
+			this.lastModified = lastModified;
+			this.size = size;
+			this.digest = digest;
+		}
+	}
+}
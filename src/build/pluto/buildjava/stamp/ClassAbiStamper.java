@@ -0,0 +1,408 @@
+package build.pluto.buildjava.stamp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.sugarj.common.FileCommands;
+
+import build.pluto.stamp.Stamp;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+/**
+ * Stamps a class file by its application binary interface: the class
+ * signature, supertypes, the signatures of all non-private fields and methods,
+ * the values of constant fields, and annotations. Method bodies, private
+ * members, and the order of members do not influence the stamp, such that
+ * dependents of a class are only recompiled if they could actually be
+ * affected.
+ *
+ * Package-private members are part of the stamp, because they are visible to
+ * other classes of the same package. Files that are not class files are
+ * stamped by their content.
+ */
+public class ClassAbiStamper implements Stamper {
+
+	private static final long serialVersionUID = 3416480297014185627L;
+
+	public static final ClassAbiStamper instance = new ClassAbiStamper();
+	private ClassAbiStamper() { }
+
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private static final int ACC_PRIVATE = 0x0002;
+	private static final int ACC_SYNCHRONIZED = 0x0020;
+	private static final int ACC_NATIVE = 0x0100;
+	private static final int ACC_STRICT = 0x0800;
+	private static final int ACC_SYNTHETIC = 0x1000;
+	private static final int ACC_SUPER = 0x0020;
+
+	/**
+	 * Method flags that only concern the implementation of a method.
+	 */
+	private static final int IMPLEMENTATION_FLAGS = ACC_SYNCHRONIZED | ACC_NATIVE | ACC_STRICT;
+
+	private static final int CONSTANT_Utf8 = 1;
+	private static final int CONSTANT_Integer = 3;
+	private static final int CONSTANT_Float = 4;
+	private static final int CONSTANT_Long = 5;
+	private static final int CONSTANT_Double = 6;
+	private static final int CONSTANT_Class = 7;
+	private static final int CONSTANT_String = 8;
+	private static final int CONSTANT_Fieldref = 9;
+	private static final int CONSTANT_Methodref = 10;
+	private static final int CONSTANT_InterfaceMethodref = 11;
+	private static final int CONSTANT_NameAndType = 12;
+	private static final int CONSTANT_MethodHandle = 15;
+	private static final int CONSTANT_MethodType = 16;
+	private static final int CONSTANT_Dynamic = 17;
+	private static final int CONSTANT_InvokeDynamic = 18;
+	private static final int CONSTANT_Module = 19;
+	private static final int CONSTANT_Package = 20;
+
+	@Override
+	public Stamp stampOf(File p) {
+		if (!FileCommands.exists(p))
+			return new ValueStamp<>(this, null);
+		try {
+			return new ValueStamp<>(this, digest(Files.readAllBytes(p.toPath())));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ValueStamp<>(this, null);
+		}
+	}
+
+	/**
+	 * @return a hex digest of the ABI of the given class file, or of the whole
+	 *         content if it is not a class file.
+	 */
+	public static String digest(byte[] content) {
+		byte[] abi;
+		try {
+			abi = abi(content);
+		} catch (IOException | RuntimeException e) {
+			abi = null;
+		}
+		MessageDigest md = sha1();
+		if (abi == null) {
+			md.update((byte) 0);
+			md.update(content);
+		}
+		else {
+			md.update((byte) 1);
+			md.update(abi);
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * @return a canonical serialization of the ABI of the class file, or
+	 *         <code>null</code> if the content is not a class file.
+	 */
+	static byte[] abi(byte[] content) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+		if (content.length < 10 || in.readInt() != MAGIC)
+			return null;
+		in.readUnsignedShort(); // minor version
+		in.readUnsignedShort(); // major version
+
+		ConstantPool pool = new ConstantPool(in);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		int access = in.readUnsignedShort();
+		out.writeInt(access & ~ACC_SUPER);
+		String thisClass = pool.className(in.readUnsignedShort());
+		out.writeUTF(thisClass);
+		int superClass = in.readUnsignedShort();
+		out.writeUTF(superClass == 0 ? "" : pool.className(superClass));
+
+		int interfaceCount = in.readUnsignedShort();
+		List<String> interfaces = new ArrayList<>(interfaceCount);
+		for (int i = 0; i < interfaceCount; i++)
+			interfaces.add(pool.className(in.readUnsignedShort()));
+		Collections.sort(interfaces);
+		writeAll(out, interfaces);
+
+		writeAll(out, members(in, pool, false));
+		writeAll(out, members(in, pool, true));
+		writeAll(out, attributes(in, pool, thisClass));
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads fields or methods and returns the ABI of the non-private,
+	 * non-synthetic ones in sorted order.
+	 */
+	private static List<String> members(DataInputStream in, ConstantPool pool, boolean methods) throws IOException {
+		int count = in.readUnsignedShort();
+		List<String> members = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int access = in.readUnsignedShort();
+			String name = pool.utf8(in.readUnsignedShort());
+			String descriptor = pool.utf8(in.readUnsignedShort());
+			List<String> attributes = attributes(in, pool, null);
+			if ((access & (ACC_PRIVATE | ACC_SYNTHETIC)) != 0)
+				continue;
+			if (methods)
+				access &= ~IMPLEMENTATION_FLAGS;
+			StringBuilder sb = new StringBuilder();
+			sb.append(access).append(' ').append(name).append(' ').append(descriptor);
+			for (String attribute : attributes)
+				sb.append(' ').append(attribute);
+			members.add(sb.toString());
+		}
+		Collections.sort(members);
+		return members;
+	}
+
+	/**
+	 * Reads attributes and returns the ABI-relevant ones in sorted order.
+	 *
+	 * @param thisClass
+	 *            the name of the current class when reading class attributes,
+	 *            <code>null</code> otherwise.
+	 */
+	private static List<String> attributes(DataInputStream in, ConstantPool pool, String thisClass) throws IOException {
+		int count = in.readUnsignedShort();
+		List<String> attributes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			String name = pool.utf8(in.readUnsignedShort());
+			int length = in.readInt();
+			switch (name) {
+			case "ConstantValue":
+				attributes.add(name + "=" + pool.constant(in.readUnsignedShort()));
+				break;
+			case "Signature":
+				attributes.add(name + "=" + pool.utf8(in.readUnsignedShort()));
+				break;
+			case "Exceptions":
+				int exceptionCount = in.readUnsignedShort();
+				List<String> exceptions = new ArrayList<>(exceptionCount);
+				for (int j = 0; j < exceptionCount; j++)
+					exceptions.add(pool.className(in.readUnsignedShort()));
+				Collections.sort(exceptions);
+				attributes.add(name + "=" + exceptions);
+				break;
+			case "Deprecated":
+				attributes.add(name);
+				break;
+			case "RuntimeVisibleAnnotations":
+			case "RuntimeInvisibleAnnotations":
+				int annotationCount = in.readUnsignedShort();
+				List<String> annotations = new ArrayList<>(annotationCount);
+				for (int j = 0; j < annotationCount; j++) {
+					StringBuilder sb = new StringBuilder();
+					annotation(in, pool, sb);
+					annotations.add(sb.toString());
+				}
+				Collections.sort(annotations);
+				attributes.add(name + "=" + annotations);
+				break;
+			case "RuntimeVisibleParameterAnnotations":
+			case "RuntimeInvisibleParameterAnnotations":
+				StringBuilder params = new StringBuilder(name).append('=');
+				int paramCount = in.readUnsignedByte();
+				for (int j = 0; j < paramCount; j++) {
+					int paramAnnotationCount = in.readUnsignedShort();
+					params.append('(');
+					for (int k = 0; k < paramAnnotationCount; k++)
+						annotation(in, pool, params);
+					params.append(')');
+				}
+				attributes.add(params.toString());
+				break;
+			case "AnnotationDefault":
+				StringBuilder value = new StringBuilder(name).append('=');
+				elementValue(in, pool, value);
+				attributes.add(value.toString());
+				break;
+			case "InnerClasses":
+				int classCount = in.readUnsignedShort();
+				for (int j = 0; j < classCount; j++) {
+					int inner = in.readUnsignedShort();
+					int outer = in.readUnsignedShort();
+					int innerName = in.readUnsignedShort();
+					int innerAccess = in.readUnsignedShort();
+					// only member classes of this class are part of its interface
+					if (thisClass != null && outer != 0 && pool.className(outer).equals(thisClass) && (innerAccess & (ACC_PRIVATE | ACC_SYNTHETIC)) == 0)
+						attributes.add(name + "=" + pool.className(inner) + " " + (innerName == 0 ? "" : pool.utf8(innerName)) + " " + innerAccess);
+				}
+				break;
+			case "PermittedSubclasses":
+				int subclassCount = in.readUnsignedShort();
+				List<String> subclasses = new ArrayList<>(subclassCount);
+				for (int j = 0; j < subclassCount; j++)
+					subclasses.add(pool.className(in.readUnsignedShort()));
+				Collections.sort(subclasses);
+				attributes.add(name + "=" + subclasses);
+				break;
+			default:
+				// Code, LineNumberTable, SourceFile, etc. are implementation details
+				in.skipBytes(length);
+			}
+		}
+		Collections.sort(attributes);
+		return attributes;
+	}
+
+	private static void annotation(DataInputStream in, ConstantPool pool, StringBuilder sb) throws IOException {
+		sb.append('@').append(pool.utf8(in.readUnsignedShort())).append('(');
+		int pairs = in.readUnsignedShort();
+		for (int i = 0; i < pairs; i++) {
+			sb.append(pool.utf8(in.readUnsignedShort())).append('=');
+			elementValue(in, pool, sb);
+			sb.append(',');
+		}
+		sb.append(')');
+	}
+
+	private static void elementValue(DataInputStream in, ConstantPool pool, StringBuilder sb) throws IOException {
+		char tag = (char) in.readUnsignedByte();
+		sb.append(tag);
+		switch (tag) {
+		case 'e':
+			sb.append(pool.utf8(in.readUnsignedShort())).append('.').append(pool.utf8(in.readUnsignedShort()));
+			break;
+		case 'c':
+			sb.append(pool.utf8(in.readUnsignedShort()));
+			break;
+		case '@':
+			annotation(in, pool, sb);
+			break;
+		case '[':
+			int count = in.readUnsignedShort();
+			sb.append('{');
+			for (int i = 0; i < count; i++) {
+				elementValue(in, pool, sb);
+				sb.append(',');
+			}
+			sb.append('}');
+			break;
+		default:
+			sb.append(pool.constant(in.readUnsignedShort()));
+		}
+	}
+
+	private static void writeAll(DataOutputStream out, List<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for (String s : strings) {
+			byte[] utf8 = s.getBytes("UTF-8");
+			out.writeInt(utf8.length);
+			out.write(utf8);
+		}
+	}
+
+	static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return sb.toString();
+	}
+
+	private Object readResolve() {
+		return instance;
+	}
+
+	/**
+	 * The constant pool of a class file. Only resolves the entries needed for
+	 * the ABI; all other entries are skipped.
+	 */
+	private static class ConstantPool {
+		private final Object[] values;
+		private final int[] classNames;
+
+		ConstantPool(DataInputStream in) throws IOException {
+			int count = in.readUnsignedShort();
+			values = new Object[count];
+			classNames = new int[count];
+			for (int i = 1; i < count; i++) {
+				int tag = in.readUnsignedByte();
+				switch (tag) {
+				case CONSTANT_Utf8:
+					values[i] = in.readUTF();
+					break;
+				case CONSTANT_Integer:
+					values[i] = in.readInt();
+					break;
+				case CONSTANT_Float:
+					values[i] = in.readFloat();
+					break;
+				case CONSTANT_Long:
+					values[i] = in.readLong();
+					i++;
+					break;
+				case CONSTANT_Double:
+					values[i] = in.readDouble();
+					i++;
+					break;
+				case CONSTANT_Class:
+					classNames[i] = in.readUnsignedShort();
+					break;
+				case CONSTANT_String:
+					// resolved lazily, the referenced utf8 may come later
+					classNames[i] = -in.readUnsignedShort();
+					break;
+				case CONSTANT_MethodType:
+				case CONSTANT_Module:
+				case CONSTANT_Package:
+					in.skipBytes(2);
+					break;
+				case CONSTANT_MethodHandle:
+					in.skipBytes(3);
+					break;
+				case CONSTANT_Fieldref:
+				case CONSTANT_Methodref:
+				case CONSTANT_InterfaceMethodref:
+				case CONSTANT_NameAndType:
+				case CONSTANT_Dynamic:
+				case CONSTANT_InvokeDynamic:
+					in.skipBytes(4);
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+				}
+			}
+		}
+
+		String utf8(int index) {
+			return (String) values[index];
+		}
+
+		String className(int index) {
+			return utf8(classNames[index]);
+		}
+
+		String constant(int index) {
+			if (classNames[index] < 0)
+				return '"' + utf8(-classNames[index]) + '"';
+			Object value = values[index];
+			if (value instanceof Float)
+				return "F" + Float.floatToIntBits((Float) value);
+			if (value instanceof Double)
+				return "D" + Double.doubleToLongBits((Double) value);
+			return value.getClass().getSimpleName().charAt(0) + String.valueOf(value);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package build.pluto.buildjava.stamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.zip.ZipException;
+
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildjava.util.ZipIndex;
+import build.pluto.buildjava.util.ZipIndexCache;
+import build.pluto.stamp.Stamp;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+/**
+ * Stamps a jar by the class files it contains, such that rebuilding a jar
+ * without changing the relevant classes does not invalidate its dependents.
+ * Jars are read through the {@link ZipIndexCache}.
+ *
+ * {@link #instance} stamps the names and CRC-32 checksums of all class
+ * entries, which are taken from the central directory without inflating any
+ * entry. {@link #forEntries(Collection)} only stamps the given entries by their
+ * ABI (see {@link ClassAbiStamper}), together with the names of all class
+ * entries in their packages, because new classes in a used package may change
+ * how names resolve.
+ *
+ * Files that are not zip files are stamped by their modification time.
+ */
+public class JarAbiStamper implements Stamper {
+
+	private static final long serialVersionUID = -2709464950307722138L;
+
+	public static final JarAbiStamper instance = new JarAbiStamper(null);
+
+	/**
+	 * ABI digests of jar entries, valid as long as the index is cached.
+	 */
+	private static final Map<ZipIndex, Map<String, String>> abiCache = new WeakHashMap<>();
+
+	/**
+	 * The stamped entries in sorted order, or <code>null</code> to stamp all
+	 * class entries by their checksum.
+	 */
+	private final List<String> entries;
+
+	private JarAbiStamper(List<String> entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * @param entries
+	 *            slash-separated names of the entries used from the jar, such
+	 *            as <code>java/lang/Object.class</code>.
+	 */
+	public static JarAbiStamper forEntries(Collection<String> entries) {
+		return new JarAbiStamper(Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(entries))));
+	}
+
+	@Override
+	public Stamp stampOf(File p) {
+		if (!FileCommands.exists(p))
+			return new ValueStamp<>(this, null);
+		try {
+			ZipIndex index = ZipIndexCache.instance.get(p);
+			return new ValueStamp<>(this, entries == null ? crcDigest(index) : abiDigest(index));
+		} catch (ZipException e) {
+			return new ValueStamp<>(this, "lastModified:" + p.lastModified());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ValueStamp<>(this, null);
+		}
+	}
+
+	private static String crcDigest(ZipIndex index) {
+		MessageDigest md = ClassAbiStamper.sha1();
+		for (String name : new TreeSet<>(index.getEntryNames()))
+			if (name.endsWith(".class")) {
+				update(md, name);
+				update(md, Long.toHexString(index.getCrc(name)));
+			}
+		return ClassAbiStamper.toHex(md.digest());
+	}
+
+	private String abiDigest(ZipIndex index) throws IOException {
+		MessageDigest md = ClassAbiStamper.sha1();
+		TreeSet<String> packages = new TreeSet<>();
+		for (String entry : entries) {
+			update(md, entry);
+			update(md, abi(index, entry));
+			int sep = entry.lastIndexOf('/');
+			packages.add(sep < 0 ? "" : entry.substring(0, sep));
+		}
+		for (String pkg : packages) {
+			update(md, pkg);
+			for (String name : index.getPackageEntries(pkg))
+				if (name.endsWith(".class"))
+					update(md, name);
+		}
+		return ClassAbiStamper.toHex(md.digest());
+	}
+
+	private static String abi(ZipIndex index, String entry) throws IOException {
+		Map<String, String> abis;
+		synchronized (abiCache) {
+			abis = abiCache.get(index);
+			if (abis == null) {
+				abis = new HashMap<>();
+				abiCache.put(index, abis);
+			}
+		}
+		synchronized (abis) {
+			String abi = abis.get(entry);
+			if (abi == null) {
+				byte[] content = index.read(entry);
+				abi = content == null ? "" : ClassAbiStamper.digest(content);
+				abis.put(entry, abi);
+			}
+			return abi;
+		}
+	}
+
+	private static void update(MessageDigest md, String s) {
+		md.update(s.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof JarAbiStamper))
+			return false;
+		List<String> other = ((JarAbiStamper) obj).entries;
+		return entries == null ? other == null : entries.equals(other);
+	}
+
+	@Override
+	public int hashCode() {
+		return entries == null ? 0 : entries.hashCode();
+	}
+
+	private Object readResolve() {
+		return entries == null ? instance : this;
+	}
+}
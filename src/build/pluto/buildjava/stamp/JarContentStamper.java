@@ -0,0 +1,87 @@
+package build.pluto.buildjava.stamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.ZipException;
+
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildjava.util.ZipIndex;
+import build.pluto.buildjava.util.ZipIndexCache;
+import build.pluto.stamp.Stamp;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+/**
+ * Stamps a jar by the names and CRC-32 checksums of its entries, which are
+ * taken from the central directory without inflating any entry. Entries with
+ * one of the excluded names are not stamped, such that a builder that
+ * requires a jar and rewrites it with additional entries, such as
+ * <code>META-INF/INDEX.LIST</code>, does not invalidate its own requirement.
+ * Jars are read through the {@link ZipIndexCache}.
+ *
+ * Files that are not zip files are stamped by their modification time.
+ */
+public class JarContentStamper implements Stamper {
+
+	private static final long serialVersionUID = 4468257027412617014L;
+
+	/**
+	 * The names of the entries that are not stamped, in sorted order.
+	 */
+	private final List<String> excluded;
+
+	private JarContentStamper(List<String> excluded) {
+		this.excluded = excluded;
+	}
+
+	public static JarContentStamper excluding(String... names) {
+		return new JarContentStamper(Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(Arrays.asList(names)))));
+	}
+
+	@Override
+	public Stamp stampOf(File p) {
+		if (!FileCommands.exists(p))
+			return new ValueStamp<>(this, null);
+		try {
+			return new ValueStamp<>(this, digest(ZipIndexCache.instance.get(p)));
+		} catch (ZipException e) {
+			return new ValueStamp<>(this, "lastModified:" + p.lastModified());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ValueStamp<>(this, null);
+		}
+	}
+
+	private String digest(ZipIndex index) {
+		MessageDigest md = ClassAbiStamper.sha1();
+		for (String name : new TreeSet<>(index.getEntryNames()))
+			if (!excluded.contains(name)) {
+				update(md, name);
+				update(md, Long.toHexString(index.getCrc(name)));
+			}
+		return ClassAbiStamper.toHex(md.digest());
+	}
+
+	private static void update(MessageDigest md, String s) {
+		md.update(s.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof JarContentStamper && excluded.equals(((JarContentStamper) obj).excluded);
+	}
+
+	@Override
+	public int hashCode() {
+		return excluded.hashCode();
+	}
+}
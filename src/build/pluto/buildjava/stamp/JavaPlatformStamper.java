@@ -0,0 +1,108 @@
+package build.pluto.buildjava.stamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import build.pluto.stamp.Stamp;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+/**
+ * Stamps an archive of platform classes by the identity and version of the
+ * JDK it belongs to, such that all platform classes used by a compilation are
+ * covered by a single requirement. Platform archives are the
+ * <code>rt.jar</code> and extension jars of JDK 8, the <code>ct.sym</code>
+ * used by <code>javac</code>, the <code>modules</code> image that backs the
+ * <code>jrt</code> file system of JDK 9+, <code>jmod</code> files, and all
+ * files within the running JDK.
+ *
+ * The stamp consists of the JDK directory, the content of its
+ * <code>release</code> file, and the modification time and size of the
+ * archive. It changes when the JDK is updated, but not when unrelated
+ * classes are compiled against it.
+ */
+public class JavaPlatformStamper implements Stamper {
+
+	private static final long serialVersionUID = -1150728812931606478L;
+
+	public static final JavaPlatformStamper instance = new JavaPlatformStamper();
+	private JavaPlatformStamper() { }
+
+	/**
+	 * The directories of the running JDK, which is the parent of
+	 * <code>java.home</code> if that is the <code>jre</code> directory of a
+	 * JDK 8.
+	 */
+	private static final List<File> runningHomes = new ArrayList<>();
+	static {
+		File home = new File(System.getProperty("java.home")).getAbsoluteFile();
+		runningHomes.add(home);
+		if (home.getName().equals("jre") && home.getParentFile() != null)
+			runningHomes.add(home.getParentFile());
+	}
+
+	@Override
+	public Stamp stampOf(File p) {
+		File home = platformHome(p);
+		if (home == null || !p.exists())
+			return new ValueStamp<>(this, null);
+		return new ValueStamp<>(this, home.getPath() + '|' + release(home) + '|' + p.lastModified() + '|' + p.length());
+	}
+
+	/**
+	 * @return whether the given file contains platform classes.
+	 */
+	public static boolean isPlatformArchive(File file) {
+		return platformHome(file) != null;
+	}
+
+	/**
+	 * @return the directory of the JDK the given archive belongs to, or
+	 *         <code>null</code> if the file is not a platform archive.
+	 */
+	public static File platformHome(File file) {
+		File abs = file.getAbsoluteFile();
+		for (File home : runningHomes)
+			if (abs.getPath().startsWith(home.getPath() + File.separator))
+				return home;
+
+		File dir = abs.getParentFile();
+		String name = abs.getName();
+		boolean platform;
+		if (dir != null && dir.getName().equals("ext")) {
+			platform = name.endsWith(".jar");
+			dir = dir.getParentFile();
+		}
+		else
+			platform = name.equals("rt.jar") || name.equals("ct.sym") || name.equals("modules") || name.endsWith(".jmod");
+		if (!platform || dir == null || !(dir.getName().equals("lib") || dir.getName().equals("jmods")))
+			return null;
+
+		File home = dir.getParentFile();
+		if (home != null && home.getName().equals("jre") && home.getParentFile() != null)
+			home = home.getParentFile();
+		if (home == null || !(new File(home, "release").isFile() || new File(home, "bin").isDirectory()))
+			return null;
+		return home;
+	}
+
+	private static String release(File home) {
+		File release = new File(home, "release");
+		try {
+			if (release.isFile())
+				return ClassAbiStamper.toHex(ClassAbiStamper.sha1().digest(Files.readAllBytes(release.toPath())));
+		} catch (IOException e) {
+			// fall back to the version of the running JDK
+		}
+		if (runningHomes.contains(home))
+			return System.getProperty("java.vendor") + ' ' + System.getProperty("java.version");
+		return "";
+	}
+
+	private Object readResolve() {
+		return instance;
+	}
+}
@@ -0,0 +1,81 @@
+package build.pluto.buildjava.stamp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import build.pluto.stamp.Stamp;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+/**
+ * Stamps a package directory by which of the given file names it contains,
+ * such as the class files or source files that would shadow a type used by a
+ * compilation if they appeared. A single listing of the directory replaces
+ * one existence check per file, and a single requirement per directory
+ * replaces one requirement per file.
+ */
+public class PackageListingStamper implements Stamper {
+
+	private static final long serialVersionUID = 4036126284658470791L;
+
+	/**
+	 * The stamped file names in sorted order.
+	 */
+	private final List<String> names;
+
+	private PackageListingStamper(List<String> names) {
+		this.names = names;
+	}
+
+	/**
+	 * @param names
+	 *            names of files in the stamped directory, such as
+	 *            <code>Object.class</code>.
+	 */
+	public static PackageListingStamper forNames(Collection<String> names) {
+		return new PackageListingStamper(Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(names))));
+	}
+
+	@Override
+	public Stamp stampOf(File p) {
+		String[] list = p.list();
+		Set<String> present = list == null ? Collections.<String> emptySet() : new HashSet<>(Arrays.asList(list));
+		StringBuilder existing = new StringBuilder();
+		for (String name : names)
+			if (present.contains(name))
+				existing.append(name).append('/');
+		return new ValueStamp<>(this, existing.toString());
+	}
+
+	/**
+	 * Records that a requirement on the package directory of the given file
+	 * should include the file.
+	 */
+	public static void addFile(File file, Map<File, Set<String>> packages) {
+		File dir = file.getParentFile();
+		Set<String> names = packages.get(dir);
+		if (names == null) {
+			names = new HashSet<>();
+			packages.put(dir, names);
+		}
+		names.add(file.getName());
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof PackageListingStamper && names.equals(((PackageListingStamper) obj).names);
+	}
+
+	@Override
+	public int hashCode() {
+		return names.hashCode();
+	}
+}
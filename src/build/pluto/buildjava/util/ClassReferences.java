@@ -0,0 +1,150 @@
+package build.pluto.buildjava.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Extracts the classes a class file refers to from its constant pool: all
+ * class constants as well as all classes mentioned in descriptors and generic
+ * signatures. Constants of other classes that the compiler inlined are not
+ * visible in the class file and hence not found; {@link #constants(byte[])}
+ * lists the constants a class file declares, such that their uses can be
+ * found in source files instead.
+ */
+public class ClassReferences {
+
+	private static final int MAGIC = 0xCAFEBABE;
+	private static final int ACC_PRIVATE = 0x0002;
+
+	/**
+	 * @return the slash-separated binary names of the referenced classes, or an
+	 *         empty set if the content is not a class file.
+	 */
+	public static Set<String> of(byte[] classFile) throws IOException {
+		Set<String> classes = new HashSet<>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+		if (classFile.length < 10 || in.readInt() != MAGIC)
+			return classes;
+		List<Integer> classIndexes = new ArrayList<>();
+		String[] utf8 = readConstantPool(in, classIndexes);
+
+		for (int index : classIndexes) {
+			String name = utf8[index];
+			if (name.startsWith("["))
+				addDescriptorClasses(name, classes);
+			else
+				classes.add(name);
+		}
+		// descriptors and signatures are only stored as utf8 constants
+		for (String s : utf8)
+			if (s != null && !s.isEmpty() && (s.charAt(0) == '(' || s.charAt(0) == 'L' || s.charAt(0) == '[' || s.charAt(0) == '<'))
+				addDescriptorClasses(s, classes);
+		return classes;
+	}
+
+	/**
+	 * @return the names of the non-private fields of the class file that have
+	 *         a constant value, which the compiler inlines into the classes
+	 *         using them, or an empty set if the content is not a class file.
+	 */
+	public static Set<String> constants(byte[] classFile) throws IOException {
+		Set<String> constants = new HashSet<>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+		if (classFile.length < 10 || in.readInt() != MAGIC)
+			return constants;
+		String[] utf8 = readConstantPool(in, new ArrayList<Integer>());
+
+		in.skipBytes(6); // access flags, this class, super class
+		in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+		int fieldCount = in.readUnsignedShort();
+		for (int i = 0; i < fieldCount; i++) {
+			int access = in.readUnsignedShort();
+			String name = utf8[in.readUnsignedShort()];
+			in.readUnsignedShort(); // descriptor
+			int attributeCount = in.readUnsignedShort();
+			for (int j = 0; j < attributeCount; j++) {
+				String attribute = utf8[in.readUnsignedShort()];
+				int length = in.readInt();
+				if ("ConstantValue".equals(attribute) && (access & ACC_PRIVATE) == 0)
+					constants.add(name);
+				in.skipBytes(length);
+			}
+		}
+		return constants;
+	}
+
+	/**
+	 * Reads the constant pool, skipping the minor and major version first.
+	 *
+	 * @return the utf8 constants by their index.
+	 */
+	private static String[] readConstantPool(DataInputStream in, List<Integer> classIndexes) throws IOException {
+		in.readUnsignedShort(); // minor version
+		in.readUnsignedShort(); // major version
+
+		int count = in.readUnsignedShort();
+		String[] utf8 = new String[count];
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 1: // Utf8
+				utf8[i] = in.readUTF();
+				break;
+			case 7: // Class
+				classIndexes.add(in.readUnsignedShort());
+				break;
+			case 5: // Long
+			case 6: // Double
+				in.skipBytes(8);
+				i++;
+				break;
+			case 3: // Integer
+			case 4: // Float
+			case 9: // Fieldref
+			case 10: // Methodref
+			case 11: // InterfaceMethodref
+			case 12: // NameAndType
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				in.skipBytes(4);
+				break;
+			case 15: // MethodHandle
+				in.skipBytes(3);
+				break;
+			case 8: // String
+			case 16: // MethodType
+			case 19: // Module
+			case 20: // Package
+				in.skipBytes(2);
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+		return utf8;
+	}
+
+	/**
+	 * Adds the classes <code>Lname;</code> of a descriptor or signature. Type
+	 * arguments of generic signatures end class names, too.
+	 */
+	private static void addDescriptorClasses(String descriptor, Set<String> classes) {
+		int length = descriptor.length();
+		for (int i = 0; i < length; i++) {
+			if (descriptor.charAt(i) != 'L' || (i > 0 && "([<;:+-^)".indexOf(descriptor.charAt(i - 1)) < 0))
+				continue;
+			int end = i + 1;
+			while (end < length && descriptor.charAt(end) != ';' && descriptor.charAt(end) != '<')
+				end++;
+			if (end < length && end > i + 1) {
+				classes.add(descriptor.substring(i + 1, end));
+				i = end - 1;
+			}
+		}
+	}
+}
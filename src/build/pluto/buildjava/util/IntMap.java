@@ -0,0 +1,93 @@
+package build.pluto.buildjava.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A map from non-negative ints to values, stored in an open-addressing hash
+ * table without boxing the keys. <code>null</code> values are permitted.
+ *
+ * Entries are iterated by slot like in {@link IntSet}: for all slots below
+ * {@link #capacity()}, {@link #keyAt(int)} returns the key in the slot or -1 if
+ * the slot is free.
+ */
+public class IntMap<V> implements Serializable {
+	private static final long serialVersionUID = 5021593587418405226L;
+
+	private int[] keys;
+	private Object[] values;
+	private int size;
+
+	public IntMap() {
+		keys = new int[8];
+		values = new Object[8];
+		Arrays.fill(keys, IntSet.FREE);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int capacity() {
+		return keys.length;
+	}
+
+	public int keyAt(int slot) {
+		return keys[slot];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	public boolean containsKey(int key) {
+		return key >= 0 && keys[slot(keys, key)] == key;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		if (key < 0)
+			return null;
+		int slot = slot(keys, key);
+		return keys[slot] == key ? (V) values[slot] : null;
+	}
+
+	public void put(int key, V value) {
+		if (key < 0)
+			throw new IllegalArgumentException("Negative key " + key);
+		int slot = slot(keys, key);
+		values[slot] = value;
+		if (keys[slot] == key)
+			return;
+		keys[slot] = key;
+		if (++size * 2 > keys.length)
+			rehash();
+	}
+
+	private void rehash() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new Object[oldKeys.length * 2];
+		Arrays.fill(keys, IntSet.FREE);
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldKeys[i] != IntSet.FREE) {
+				int slot = slot(keys, oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+	}
+
+	private static int slot(int[] keys, int key) {
+		int mask = keys.length - 1;
+		int slot = IntSet.hash(key) & mask;
+		while (keys[slot] != IntSet.FREE && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+}
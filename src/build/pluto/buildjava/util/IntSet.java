@@ -0,0 +1,111 @@
+package build.pluto.buildjava.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A set of non-negative ints, stored in an open-addressing hash table without
+ * boxing.
+ *
+ * Elements are iterated by slot: for all slots below {@link #capacity()},
+ * {@link #get(int)} returns the element in the slot or -1 if the slot is free.
+ */
+public class IntSet implements Serializable {
+	private static final long serialVersionUID = -4188930463232434911L;
+
+	static final int FREE = -1;
+
+	private int[] table;
+	private int size;
+
+	public IntSet() {
+		table = new int[8];
+		Arrays.fill(table, FREE);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int capacity() {
+		return table.length;
+	}
+
+	public int get(int slot) {
+		return table[slot];
+	}
+
+	public boolean contains(int value) {
+		return value >= 0 && table[slot(table, value)] == value;
+	}
+
+	public boolean add(int value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Negative element " + value);
+		int slot = slot(table, value);
+		if (table[slot] == value)
+			return false;
+		table[slot] = value;
+		if (++size * 2 > table.length)
+			rehash();
+		return true;
+	}
+
+	public boolean remove(int value) {
+		if (value < 0)
+			return false;
+		int mask = table.length - 1;
+		int slot = slot(table, value);
+		if (table[slot] != value)
+			return false;
+		// shift back following elements of the probe sequence
+		for (int next = (slot + 1) & mask; table[next] != FREE; next = (next + 1) & mask) {
+			int home = hash(table[next]) & mask;
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				table[slot] = table[next];
+				slot = next;
+			}
+		}
+		table[slot] = FREE;
+		size--;
+		return true;
+	}
+
+	public int[] toArray() {
+		int[] result = new int[size];
+		int i = 0;
+		for (int value : table)
+			if (value != FREE)
+				result[i++] = value;
+		return result;
+	}
+
+	private void rehash() {
+		int[] old = table;
+		table = new int[old.length * 2];
+		Arrays.fill(table, FREE);
+		for (int value : old)
+			if (value != FREE)
+				table[slot(table, value)] = value;
+	}
+
+	/**
+	 * @return the slot containing the value or the free slot where it belongs.
+	 */
+	private static int slot(int[] table, int value) {
+		int mask = table.length - 1;
+		int slot = hash(value) & mask;
+		while (table[slot] != FREE && table[slot] != value)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	static int hash(int value) {
+		int h = value * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
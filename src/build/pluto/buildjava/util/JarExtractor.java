@@ -0,0 +1,291 @@
+package build.pluto.buildjava.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/**
+ * Extracts entries of a jar file into files, inflating them in parallel on a
+ * {@link ForkJoinPool}. All entries are read through a single channel of the
+ * jar file.
+ *
+ * When a stamps file is set, the CRC-32, size, and modification time of each
+ * extracted file are recorded in it. Extracted files keep the time they are
+ * written as their modification time rather than the time of their entry,
+ * such that builders stamping them by modification time notice that they
+ * changed. When the jar is extracted again, an entry is skipped if its CRC-32
+ * and size equal the recorded ones and its file still has the recorded size
+ * and modification time, and, if it was extracted shortly before the stamps
+ * were written, the recorded CRC-32. Files recorded by the previous
+ * extraction whose entries are no longer extracted are deleted, unless they
+ * have been modified since.
+ */
+public class JarExtractor {
+
+	private static final int STAMPS_MAGIC = 0x504a5843; // "PJXC"
+	private static final int STAMPS_VERSION = 1;
+
+	/**
+	 * How long before the stamps were written a file is considered racy, in
+	 * milliseconds. Another modification of a racy file within the resolution
+	 * of the file system's modification times may keep its modification time
+	 * and size, so racy files are compared by their CRC-32.
+	 */
+	private static final long RACY_INTERVAL = 2000;
+
+	private final ZipIndex jar;
+	private final int parallelism;
+
+	private final List<String> names = new ArrayList<>();
+	private final List<File> targets = new ArrayList<>();
+
+	private File stampsFile;
+	private int extracted;
+	private int skipped;
+	private int deleted;
+
+	public JarExtractor(ZipIndex jar) {
+		this(jar, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism
+	 *            the number of threads inflating entries, or 1 to inflate them
+	 *            on the calling thread.
+	 */
+	public JarExtractor(ZipIndex jar, int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+		this.jar = jar;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Sets the file in which the stamps of the extracted files are recorded,
+	 * and from which the stamps of the previous extraction are read.
+	 */
+	public void setStampsFile(File stampsFile) {
+		this.stampsFile = stampsFile;
+	}
+
+	/**
+	 * Schedules the extraction of the given entry into the given file. Entries
+	 * whose name ends with a slash are directories.
+	 */
+	public void add(String entry, File target) throws IOException {
+		if (!jar.contains(entry))
+			throw new IOException("No entry " + entry + " in " + jar.getFile());
+		names.add(entry);
+		targets.add(target.getAbsoluteFile());
+	}
+
+	/**
+	 * Extracts all scheduled entries that changed since the previous
+	 * extraction.
+	 *
+	 * @return the extracted files, including those that were unchanged, in
+	 *         the order their entries were added. Directories are not
+	 *         included.
+	 */
+	public List<File> extract() throws IOException {
+		extracted = skipped = deleted = 0;
+		Map<File, Stamp> previous = stampsFile == null ? Collections.<File, Stamp> emptyMap() : readStamps();
+		long stamped = stampsFile == null ? 0 : stampsFile.lastModified();
+
+		List<File> files = new ArrayList<>();
+		List<Integer> changed = new ArrayList<>();
+		Stamp[] stamps = new Stamp[names.size()];
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			File target = targets.get(i);
+			if (name.endsWith("/")) {
+				Files.createDirectories(target.toPath());
+				continue;
+			}
+			files.add(target);
+			Files.createDirectories(target.getParentFile().toPath());
+
+			Stamp stamp = previous.get(target);
+			if (stamp != null && stamp.crc == jar.getCrc(name) && stamp.size == jar.getSize(name) && stamp.matches(target, stamped)) {
+				stamps[i] = stamp;
+				skipped++;
+			}
+			else
+				changed.add(i);
+		}
+
+		if (!changed.isEmpty())
+			try (FileChannel channel = jar.open()) {
+				ExtractTask task = new ExtractTask(changed, 0, changed.size(), Math.max(1, changed.size() / (parallelism * 4)), stamps, channel);
+				if (parallelism == 1 || changed.size() <= 1)
+					task.extract();
+				else {
+					ForkJoinPool pool = new ForkJoinPool(parallelism);
+					try {
+						pool.invoke(task);
+					} catch (UncheckedIOException e) {
+						throw e.getCause();
+					} finally {
+						pool.shutdownNow();
+					}
+				}
+			}
+		extracted = changed.size();
+
+		if (stampsFile != null) {
+			Map<File, Stamp> current = new HashMap<>();
+			for (int i = 0; i < stamps.length; i++)
+				if (stamps[i] != null)
+					current.put(targets.get(i), stamps[i]);
+			for (Map.Entry<File, Stamp> stale : previous.entrySet())
+				if (!current.containsKey(stale.getKey()) && stale.getValue().matches(stale.getKey(), stamped) && stale.getKey().delete())
+					deleted++;
+			writeStamps(current);
+		}
+		return files;
+	}
+
+	/**
+	 * @return the number of files written by the last extraction.
+	 */
+	public int getExtracted() {
+		return extracted;
+	}
+
+	/**
+	 * @return the number of files left unchanged by the last extraction.
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return the number of files of the previous extraction deleted by the
+	 *         last extraction.
+	 */
+	public int getDeleted() {
+		return deleted;
+	}
+
+	private class ExtractTask extends RecursiveAction {
+		private static final long serialVersionUID = 4603546417232212358L;
+
+		private final List<Integer> entries;
+		private final int from;
+		private final int to;
+		private final int threshold;
+		private final Stamp[] stamps;
+		private final FileChannel channel;
+
+		ExtractTask(List<Integer> entries, int from, int to, int threshold, Stamp[] stamps, FileChannel channel) {
+			this.entries = entries;
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+			this.stamps = stamps;
+			this.channel = channel;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				try {
+					extract();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new ExtractTask(entries, from, mid, threshold, stamps, channel), new ExtractTask(entries, mid, to, threshold, stamps, channel));
+		}
+
+		void extract() throws IOException {
+			for (int j = from; j < to; j++) {
+				int i = entries.get(j);
+				String name = names.get(i);
+				File target = targets.get(i);
+				byte[] content = jar.read(name, channel);
+				Files.write(target.toPath(), content);
+				stamps[i] = new Stamp(jar.getCrc(name), content.length, target.lastModified());
+			}
+		}
+	}
+
+	private Map<File, Stamp> readStamps() {
+		Map<File, Stamp> stamps = new HashMap<>();
+		if (!stampsFile.isFile())
+			return stamps;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stampsFile)))) {
+			if (in.readInt() != STAMPS_MAGIC || in.readInt() != STAMPS_VERSION)
+				return stamps;
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				File file = new File(in.readUTF());
+				stamps.put(file, new Stamp(in.readLong(), in.readLong(), in.readLong()));
+			}
+			return stamps;
+		} catch (IOException e) {
+			return new HashMap<>();
+		}
+	}
+
+	private void writeStamps(Map<File, Stamp> stamps) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stampsFile)))) {
+			out.writeInt(STAMPS_MAGIC);
+			out.writeInt(STAMPS_VERSION);
+			out.writeInt(stamps.size());
+			for (Map.Entry<File, Stamp> e : stamps.entrySet()) {
+				out.writeUTF(e.getKey().getPath());
+				out.writeLong(e.getValue().crc);
+				out.writeLong(e.getValue().size);
+				out.writeLong(e.getValue().lastModified);
+			}
+		}
+	}
+
+	private static class Stamp {
+		final long crc;
+		final long size;
+		final long lastModified;
+
+		Stamp(long crc, long size, long lastModified) {
+			this.crc = crc;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @return whether the file is as it was when it was extracted, given
+		 *         the time the stamps were written.
+		 */
+		boolean matches(File file, long stamped) {
+			if (!file.isFile() || file.length() != size || file.lastModified() != lastModified)
+				return false;
+			if (lastModified <= stamped - RACY_INTERVAL)
+				return true;
+			try {
+				CRC32 crc32 = new CRC32();
+				crc32.update(Files.readAllBytes(file.toPath()));
+				return crc32.getValue() == crc;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,805 @@
+package build.pluto.buildjava.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes jar files whose entries are compressed in parallel.
+ *
+ * Entries are added in the order they should appear in the jar, read and
+ * deflated concurrently on a {@link ForkJoinPool} into in-memory buffers, and
+ * then written with their local headers in the order they were added,
+ * followed by the central directory. Entries are processed in batches of
+ * bounded size, and the next batch is compressed while the current one is
+ * written. The written bytes only depend on the added entries and the
+ * compression level, such that a jar written with any parallelism is
+ * byte-identical to one written serially.
+ *
+ * When a stamps file is set, the path, modification time, size, and CRC-32
+ * of the file of each entry are recorded in it. When the jar is written
+ * again, the compressed content of an entry whose file is unchanged according
+ * to these stamps is copied from the previous jar verbatim, without inflating
+ * and deflating it. Files modified shortly before the jar was written are not
+ * recorded, because another modification within the resolution of the file
+ * system's modification times would go unnoticed.
+ *
+ * In reproducible mode, entries are written in the order of their names,
+ * after the entries of <code>META-INF</code>, and all entries get the
+ * earliest MS-DOS time, such that the jar only depends on the names and
+ * contents of its entries. Manifests are always written with sorted
+ * attributes and sections. A jar file is not replaced if its content would
+ * not change, such that its modification time only changes with its content.
+ *
+ * Entries are stored instead of deflated if deflating does not make them
+ * smaller. Entry times are stored in the MS-DOS format of the local time zone,
+ * as by {@link java.util.jar.JarOutputStream}; entries without a time get the
+ * earliest MS-DOS time.
+ */
+public class JarWriter {
+
+	private static final int MANIFEST_LINE_LENGTH = 72;
+	private static final byte[] MANIFEST_NEWLINE = { '\r', '\n' };
+
+	private static final int LOCAL_HEADER_SIG = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	private static final int END_SIG = 0x06054b50;
+	private static final int ZIP64_END_SIG = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+	private static final int UTF8_FLAG = 1 << 11;
+
+	/**
+	 * The maximum number of entries and of uncompressed bytes held in memory
+	 * by one batch.
+	 */
+	private static final int BATCH_ENTRIES = 4096;
+	private static final long BATCH_BYTES = 64 * 1024 * 1024;
+
+	private static final int STAMPS_MAGIC = 0x504a4a53; // "PJJS"
+	private static final int STAMPS_VERSION = 1;
+
+	/**
+	 * How long after its last modification a file is considered racy, in
+	 * milliseconds.
+	 */
+	private static final long RACY_INTERVAL = 2000;
+
+	private final int level;
+	private final int parallelism;
+
+	private final List<Entry> entries = new ArrayList<>();
+	private final Set<String> names = new HashSet<>();
+
+	private File stampsFile;
+	private boolean reproducible;
+	private int reused;
+	private boolean unchanged;
+
+	public JarWriter() {
+		this(Deflater.DEFAULT_COMPRESSION, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param level
+	 *            the {@link Deflater} compression level.
+	 * @param parallelism
+	 *            the number of threads compressing entries, or 1 to compress
+	 *            them on the calling thread.
+	 */
+	public JarWriter(int level, int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+		this.level = level;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Adds the manifest as <code>META-INF/MANIFEST.MF</code>. Call this before
+	 * adding other entries, since the manifest is expected to come first.
+	 */
+	public void addManifest(Manifest manifest, long time) throws IOException {
+		add(JarFile.MANIFEST_NAME, normalize(manifest), time);
+	}
+
+	/**
+	 * Writes the manifest in the format of {@link Manifest#write}, but with the
+	 * <code>Manifest-Version</code> first, followed by the other main
+	 * attributes and then the sections, each in the order of their names.
+	 * {@link Manifest#write} keeps the order of the sections' hash map.
+	 */
+	private static byte[] normalize(Manifest manifest) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Map<String, String> main = sorted(manifest.getMainAttributes());
+		String version = main.remove(Attributes.Name.MANIFEST_VERSION.toString());
+		writeHeader(out, Attributes.Name.MANIFEST_VERSION.toString(), version == null ? "1.0" : version);
+		writeAttributes(out, main);
+		for (Map.Entry<String, Attributes> section : new TreeMap<>(manifest.getEntries()).entrySet()) {
+			writeHeader(out, "Name", section.getKey());
+			writeAttributes(out, sorted(section.getValue()));
+		}
+		return out.toByteArray();
+	}
+
+	private static Map<String, String> sorted(Attributes attributes) {
+		Map<String, String> sorted = new TreeMap<>();
+		for (Map.Entry<Object, Object> attribute : attributes.entrySet())
+			sorted.put(attribute.getKey().toString(), (String) attribute.getValue());
+		return sorted;
+	}
+
+	private static void writeAttributes(OutputStream out, Map<String, String> attributes) throws IOException {
+		for (Map.Entry<String, String> attribute : attributes.entrySet())
+			writeHeader(out, attribute.getKey(), attribute.getValue());
+		out.write(MANIFEST_NEWLINE);
+	}
+
+	/**
+	 * Writes a header, continuing it on further lines such that no line
+	 * exceeds 72 bytes and no UTF-8 character is split.
+	 */
+	private static void writeHeader(OutputStream out, String name, String value) throws IOException {
+		byte[] header = (name + ": " + value).getBytes(StandardCharsets.UTF_8);
+		int start = 0;
+		int length = MANIFEST_LINE_LENGTH;
+		while (header.length - start > length) {
+			int end = start + length;
+			while ((header[end] & 0xC0) == 0x80)
+				end--;
+			out.write(header, start, end - start);
+			out.write(MANIFEST_NEWLINE);
+			out.write(' ');
+			start = end;
+			length = MANIFEST_LINE_LENGTH - 1;
+		}
+		out.write(header, start, header.length - start);
+		out.write(MANIFEST_NEWLINE);
+	}
+
+	/**
+	 * Adds an entry with the content of the given file, which is read when the
+	 * jar is written.
+	 */
+	public void add(String name, File file, long time) throws ZipException {
+		addEntry(new Entry(name, file, null, null, time));
+	}
+
+	public void add(String name, byte[] content, long time) throws ZipException {
+		addEntry(new Entry(name, null, content, null, time));
+	}
+
+	/**
+	 * Adds an entry of another zip file, copying its compressed content
+	 * verbatim.
+	 */
+	public void addFrom(ZipIndex zip, String name) throws ZipException {
+		addEntry(new Entry(name, null, null, zip, zip.getTime(name)));
+	}
+
+	public boolean contains(String name) {
+		return names.contains(name);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Sets the file in which the stamps of the entries' files are recorded when
+	 * the jar is written, and from which the stamps of the previous write are
+	 * read to find unchanged entries.
+	 */
+	public void setStampsFile(File stampsFile) {
+		this.stampsFile = stampsFile;
+	}
+
+	/**
+	 * Sets whether entries are written sorted by name and with a fixed time,
+	 * instead of in the order they were added and with their own times.
+	 */
+	public void setReproducible(boolean reproducible) {
+		this.reproducible = reproducible;
+	}
+
+	/**
+	 * @return whether the last write left the existing jar file untouched,
+	 *         because it already had the written content.
+	 */
+	public boolean isUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * @return the number of entries whose compressed content was copied
+	 *         verbatim by the last write, from the previous jar or from
+	 *         another zip file.
+	 */
+	public int getReused() {
+		return reused;
+	}
+
+	private void addEntry(Entry entry) throws ZipException {
+		if (!names.add(entry.name))
+			throw new ZipException("duplicate entry: " + entry.name);
+		entries.add(entry);
+	}
+
+	/**
+	 * Writes the jar file, replacing any existing file once the new file is
+	 * complete, unless the existing file has the same content.
+	 */
+	public void write(File jar) throws IOException {
+		long started = System.currentTimeMillis();
+		if (stampsFile != null)
+			findUnchanged(jar);
+
+		File dir = jar.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(jar.getName(), ".tmp", dir);
+		try {
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)) {
+				write(out);
+			}
+			unchanged = sameContent(temp, jar);
+			if (!unchanged)
+				replace(temp, jar);
+		} finally {
+			temp.delete();
+		}
+
+		if (stampsFile != null)
+			writeStamps(jar, started);
+	}
+
+	private static void replace(File temp, File jar) throws IOException {
+		try {
+			Files.move(temp.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	public void write(OutputStream out) throws IOException {
+		reused = 0;
+		for (Entry entry : entries)
+			if (entry.previous != null)
+				reused++;
+
+		List<Entry> ordered = entries;
+		if (reproducible) {
+			ordered = new ArrayList<>(entries);
+			Collections.sort(ordered, new Comparator<Entry>() {
+				@Override
+				public int compare(Entry a, Entry b) {
+					int rank = Integer.compare(rank(a.name), rank(b.name));
+					return rank != 0 ? rank : a.name.compareTo(b.name);
+				}
+			});
+		}
+
+		List<List<Entry>> batches = batches(ordered);
+		// copied entries are read through one channel per zip file, which is
+		// closed before the jar is replaced
+		Map<ZipIndex, FileChannel> channels = new HashMap<>();
+		ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+		try {
+			for (Entry entry : entries)
+				if (entry.previous != null && !channels.containsKey(entry.previous))
+					channels.put(entry.previous, entry.previous.open());
+
+			ZipOutput zip = new ZipOutput(out, reproducible);
+			ForkJoinTask<?> next = batches.isEmpty() ? null : compress(pool, batches.get(0), channels);
+			for (int i = 0; i < batches.size(); i++) {
+				ForkJoinTask<?> current = next;
+				join(current);
+				next = i + 1 < batches.size() ? compress(pool, batches.get(i + 1), channels) : null;
+				for (Entry entry : batches.get(i))
+					zip.writeLocal(entry);
+			}
+			zip.writeCentral(ordered);
+		} finally {
+			if (pool != null)
+				pool.shutdownNow();
+			for (FileChannel channel : channels.values())
+				channel.close();
+		}
+	}
+
+	/**
+	 * Marks the entries whose file is unchanged since the given jar was last
+	 * written for copying from that jar.
+	 */
+	private void findUnchanged(File jar) throws IOException {
+		for (Entry entry : entries)
+			if (entry.file != null)
+				entry.previous = null;
+		Map<String, FileStamp> stamps = readStamps(jar);
+		if (stamps == null)
+			return;
+
+		ZipIndex previous;
+		try {
+			previous = ZipIndex.read(jar);
+		} catch (ZipException e) {
+			return;
+		}
+		for (Entry entry : entries) {
+			FileStamp stamp = entry.file == null ? null : stamps.get(entry.name);
+			if (stamp == null || !stamp.path.equals(entry.file.getAbsolutePath()) || stamp.crc != previous.getCrc(entry.name))
+				continue;
+			int method = previous.getMethod(entry.name);
+			if ((method == STORED || method == DEFLATED) && stamp.lastModified == entry.file.lastModified() && stamp.length == entry.file.length()) {
+				entry.previous = previous;
+				entry.lastModified = stamp.lastModified;
+				entry.length = stamp.length;
+			}
+		}
+	}
+
+	/**
+	 * @return the stamps recorded when the given jar was written, or
+	 *         <code>null</code> if there are none or the jar has been modified
+	 *         since.
+	 */
+	private Map<String, FileStamp> readStamps(File jar) {
+		if (!stampsFile.isFile() || !jar.isFile())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stampsFile)))) {
+			if (in.readInt() != STAMPS_MAGIC || in.readInt() != STAMPS_VERSION)
+				return null;
+			if (in.readLong() != jar.lastModified() || in.readLong() != jar.length())
+				return null;
+			int count = in.readInt();
+			Map<String, FileStamp> stamps = new HashMap<>();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				stamps.put(name, new FileStamp(in.readUTF(), in.readLong(), in.readLong(), in.readLong()));
+			}
+			return stamps;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void writeStamps(File jar, long started) throws IOException {
+		List<Entry> stamped = new ArrayList<>();
+		for (Entry entry : entries)
+			if (entry.file != null && entry.lastModified <= started - RACY_INTERVAL)
+				stamped.add(entry);
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stampsFile)))) {
+			out.writeInt(STAMPS_MAGIC);
+			out.writeInt(STAMPS_VERSION);
+			out.writeLong(jar.lastModified());
+			out.writeLong(jar.length());
+			out.writeInt(stamped.size());
+			for (Entry entry : stamped) {
+				out.writeUTF(entry.name);
+				out.writeUTF(entry.file.getAbsolutePath());
+				out.writeLong(entry.lastModified);
+				out.writeLong(entry.length);
+				out.writeLong(entry.crc);
+			}
+		}
+	}
+
+	/**
+	 * @return the position of an entry before the others in reproducible
+	 *         mode: the <code>META-INF</code> directory, the manifest, other
+	 *         entries of <code>META-INF</code>, and then all other entries.
+	 */
+	private static int rank(String name) {
+		if (name.equals("META-INF/"))
+			return 0;
+		if (name.equals(JarFile.MANIFEST_NAME))
+			return 1;
+		return name.startsWith("META-INF/") ? 2 : 3;
+	}
+
+	private static boolean sameContent(File a, File b) throws IOException {
+		if (!b.isFile() || a.length() != b.length())
+			return false;
+		byte[] bufA = new byte[1 << 16];
+		byte[] bufB = new byte[1 << 16];
+		try (InputStream inA = new FileInputStream(a); InputStream inB = new FileInputStream(b)) {
+			while (true) {
+				int n = read(inA, bufA);
+				if (n != read(inB, bufB))
+					return false;
+				if (n <= 0)
+					return true;
+				for (int i = 0; i < n; i++)
+					if (bufA[i] != bufB[i])
+						return false;
+			}
+		}
+	}
+
+	/**
+	 * Fills the buffer unless the end of the stream is reached first.
+	 */
+	private static int read(InputStream in, byte[] buf) throws IOException {
+		int n = 0;
+		while (n < buf.length) {
+			int read = in.read(buf, n, buf.length - n);
+			if (read < 0)
+				break;
+			n += read;
+		}
+		return n;
+	}
+
+	private List<List<Entry>> batches(List<Entry> entries) {
+		List<List<Entry>> batches = new ArrayList<>();
+		List<Entry> batch = new ArrayList<>();
+		long bytes = 0;
+		for (Entry entry : entries) {
+			long size = entry.content != null ? entry.content.length : entry.previous != null ? 0 : entry.file.length();
+			if (!batch.isEmpty() && (batch.size() >= BATCH_ENTRIES || bytes + size > BATCH_BYTES)) {
+				batches.add(batch);
+				batch = new ArrayList<>();
+				bytes = 0;
+			}
+			batch.add(entry);
+			bytes += size;
+		}
+		if (!batch.isEmpty())
+			batches.add(batch);
+		return batches;
+	}
+
+	private ForkJoinTask<?> compress(ForkJoinPool pool, List<Entry> batch, Map<ZipIndex, FileChannel> channels) throws IOException {
+		CompressTask task = new CompressTask(batch, 0, batch.size(), Math.max(1, batch.size() / (parallelism * 4)), channels);
+		if (pool == null) {
+			task.compress();
+			return null;
+		}
+		return pool.submit(task);
+	}
+
+	private static void join(ForkJoinTask<?> task) throws IOException {
+		if (task == null)
+			return;
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			task.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing jar entries");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException)
+				throw ((UncheckedIOException) cause).getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Compresses a range of entries of a batch, splitting it until the range
+	 * is at most the threshold. Each leaf reuses one {@link Deflater} for all
+	 * of its entries.
+	 */
+	private class CompressTask extends RecursiveAction {
+		private static final long serialVersionUID = 2967412385734021853L;
+
+		private final List<Entry> batch;
+		private final int from;
+		private final int to;
+		private final int threshold;
+		private final Map<ZipIndex, FileChannel> channels;
+
+		CompressTask(List<Entry> batch, int from, int to, int threshold, Map<ZipIndex, FileChannel> channels) {
+			this.batch = batch;
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+			this.channels = channels;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				try {
+					compress();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new CompressTask(batch, from, mid, threshold, channels), new CompressTask(batch, mid, to, threshold, channels));
+		}
+
+		void compress() throws IOException {
+			Deflater deflater = new Deflater(level, true);
+			try {
+				for (int i = from; i < to; i++) {
+					Entry entry = batch.get(i);
+					entry.compress(deflater, entry.previous == null ? null : channels.get(entry.previous));
+					deflater.reset();
+				}
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	private static class Entry {
+		final String name;
+		final File file;
+		final long time;
+		final byte[] content;
+
+		/**
+		 * The zip file to copy the compressed content from, such as the
+		 * previous jar if the file is unchanged.
+		 */
+		ZipIndex previous;
+
+		// the stamp of the file when it was read
+		long lastModified;
+		long length;
+
+		// set by compress and dropped once written
+		byte[] data;
+		int dataLength;
+		int method;
+		long crc;
+		long size;
+		long offset;
+
+		Entry(String name, File file, byte[] content, ZipIndex previous, long time) {
+			this.name = name;
+			this.file = file;
+			this.content = content;
+			this.previous = previous;
+			this.time = time;
+		}
+
+		void compress(Deflater deflater, FileChannel channel) throws IOException {
+			if (previous != null) {
+				method = previous.getMethod(name);
+				if (method != STORED && method != DEFLATED)
+					throw new ZipException("Unsupported compression method " + method + " of " + name + ": " + previous.getFile());
+				crc = previous.getCrc(name);
+				size = previous.getSize(name);
+				data = previous.readRaw(name, channel);
+				dataLength = data.length;
+				return;
+			}
+
+			if (file != null) {
+				lastModified = file.lastModified();
+				length = file.length();
+			}
+			byte[] input = content != null ? content : Files.readAllBytes(file.toPath());
+			CRC32 crc32 = new CRC32();
+			crc32.update(input);
+			crc = crc32.getValue();
+			size = input.length;
+
+			deflater.setInput(input);
+			deflater.finish();
+			byte[] buf = new byte[Math.max(64, input.length / 2)];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == buf.length) {
+					if (length >= input.length)
+						break; // deflating does not pay off
+					buf = Arrays.copyOf(buf, Math.min(input.length, buf.length * 2));
+				}
+				length += deflater.deflate(buf, length, buf.length - length);
+			}
+
+			if (deflater.finished() && length < input.length) {
+				method = DEFLATED;
+				data = buf;
+				dataLength = length;
+			}
+			else {
+				method = STORED;
+				data = input;
+				dataLength = input.length;
+			}
+		}
+	}
+
+	/**
+	 * Writes the zip records of compressed entries and tracks offsets.
+	 */
+	private static class ZipOutput {
+		private final OutputStream out;
+		private final boolean fixedTime;
+		private final ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+		private long position;
+
+		ZipOutput(OutputStream out, boolean fixedTime) {
+			this.out = out;
+			this.fixedTime = fixedTime;
+		}
+
+		void writeLocal(Entry entry) throws IOException {
+			byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+			long dosTime = dosTime(fixedTime ? 0 : entry.time);
+			entry.offset = position;
+
+			header.clear();
+			header.putInt(LOCAL_HEADER_SIG);
+			header.putShort((short) 20);
+			header.putShort((short) flags(entry.name));
+			header.putShort((short) entry.method);
+			header.putInt((int) dosTime);
+			header.putInt((int) entry.crc);
+			header.putInt(entry.dataLength);
+			header.putInt((int) entry.size);
+			header.putShort((short) name.length);
+			header.putShort((short) 0);
+			writeHeader();
+			write(name, name.length);
+			write(entry.data, entry.dataLength);
+			entry.data = null;
+		}
+
+		void writeCentral(List<Entry> entries) throws IOException {
+			long cdOffset = position;
+			for (Entry entry : entries) {
+				byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+				boolean zip64 = entry.offset >= ZIP64_MAGIC;
+
+				header.clear();
+				header.putInt(CENTRAL_HEADER_SIG);
+				header.putShort((short) (zip64 ? 45 : 20));
+				header.putShort((short) (zip64 ? 45 : 20));
+				header.putShort((short) flags(entry.name));
+				header.putShort((short) entry.method);
+				header.putInt((int) dosTime(fixedTime ? 0 : entry.time));
+				header.putInt((int) entry.crc);
+				header.putInt(entry.dataLength);
+				header.putInt((int) entry.size);
+				header.putShort((short) name.length);
+				header.putShort((short) (zip64 ? 12 : 0));
+				header.putShort((short) 0);
+				header.putShort((short) 0);
+				header.putShort((short) 0);
+				header.putInt(0);
+				header.putInt((int) (zip64 ? ZIP64_MAGIC : entry.offset));
+				writeHeader();
+				write(name, name.length);
+				if (zip64) {
+					header.clear();
+					header.putShort((short) ZIP64_EXTRA_ID);
+					header.putShort((short) 8);
+					header.putLong(entry.offset);
+					writeHeader();
+				}
+			}
+			long cdSize = position - cdOffset;
+
+			int count = entries.size();
+			if (count >= ZIP64_MAGIC_COUNT || cdOffset >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC) {
+				long end64 = position;
+				header.clear();
+				header.putInt(ZIP64_END_SIG);
+				header.putLong(44);
+				header.putShort((short) 45);
+				header.putShort((short) 45);
+				header.putInt(0);
+				header.putInt(0);
+				header.putLong(count);
+				header.putLong(count);
+				header.putLong(cdSize);
+				header.putLong(cdOffset);
+				writeHeader();
+
+				header.clear();
+				header.putInt(ZIP64_LOCATOR_SIG);
+				header.putInt(0);
+				header.putLong(end64);
+				header.putInt(1);
+				writeHeader();
+			}
+
+			header.clear();
+			header.putInt(END_SIG);
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+			header.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+			header.putInt((int) Math.min(cdSize, ZIP64_MAGIC));
+			header.putInt((int) Math.min(cdOffset, ZIP64_MAGIC));
+			header.putShort((short) 0);
+			writeHeader();
+			out.flush();
+		}
+
+		private void writeHeader() throws IOException {
+			write(header.array(), header.position());
+		}
+
+		private void write(byte[] bytes, int length) throws IOException {
+			out.write(bytes, 0, length);
+			position += length;
+		}
+	}
+
+	private static class FileStamp {
+		final String path;
+		final long lastModified;
+		final long length;
+		final long crc;
+
+		FileStamp(String path, long lastModified, long length, long crc) {
+			this.path = path;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.crc = crc;
+		}
+	}
+
+	private static int flags(String name) {
+		for (int i = 0; i < name.length(); i++)
+			if (name.charAt(i) >= 0x80)
+				return UTF8_FLAG;
+		return 0;
+	}
+
+	/**
+	 * @return the MS-DOS date and time of the given Java time, with the date
+	 *         in the upper 16 bits.
+	 */
+	static long dosTime(long time) {
+		if (time == 0)
+			return (1 << 21) | (1 << 16);
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+		return ((long) (year - 1980) << 25) | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16 | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+	}
+}
@@ -0,0 +1,135 @@
+package build.pluto.buildjava.util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Answers the file system queries of a builder about its class path and source
+ * path, for use during a single build in which these paths do not change.
+ *
+ * Each directory is listed at most once, and existence checks of its files
+ * are answered from the listing instead of one <code>stat</code> call per
+ * file. The base path containing a file is found through a trie of path
+ * segments instead of comparing the file with each base path.
+ */
+public class PathIndex {
+
+	private final Map<File, Set<String>> listings = new HashMap<>();
+	private final Map<File, Boolean> isFile = new HashMap<>();
+	private final Map<Collection<File>, Node> tries = new IdentityHashMap<>();
+
+	/**
+	 * @return whether the given file or directory exists.
+	 */
+	public boolean exists(File file) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		return dir != null && listing(dir).contains(file.getName());
+	}
+
+	/**
+	 * @return whether the given path is a file, such as a jar on the class
+	 *         path.
+	 */
+	public boolean isFile(File file) {
+		Boolean result = isFile.get(file);
+		if (result == null) {
+			result = file.isFile();
+			isFile.put(file, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the path of the given file relative to the first of the given
+	 *         base paths that contains it, or <code>null</code> if none does.
+	 *         The base paths must not change between calls.
+	 */
+	public String findRelativePath(File full, Collection<File> bases) {
+		Node trie = tries.get(bases);
+		if (trie == null) {
+			trie = new Node();
+			int index = 0;
+			for (File base : bases) {
+				Node node = trie;
+				for (String segment : segments(base.getAbsolutePath()))
+					node = node.child(segment);
+				if (node.base < 0)
+					node.base = index;
+				index++;
+			}
+			tries.put(bases, trie);
+		}
+
+		String path = full.getAbsolutePath();
+		int bestBase = Integer.MAX_VALUE;
+		int bestEnd = -1;
+		Node node = trie;
+		int start = 0;
+		while (node != null && start <= path.length()) {
+			int end = path.indexOf(File.separatorChar, start);
+			if (end < 0)
+				end = path.length();
+			node = node.children == null ? null : node.children.get(path.substring(start, end));
+			if (node != null && node.base >= 0 && node.base < bestBase && end < path.length()) {
+				bestBase = node.base;
+				bestEnd = end;
+			}
+			start = end + 1;
+		}
+		return bestEnd < 0 ? null : path.substring(bestEnd + 1);
+	}
+
+	/**
+	 * @return the path of the given file relative to the given base path, or
+	 *         <code>null</code> if the base path does not contain the file.
+	 */
+	public static String getRelativePath(File base, File full) {
+		String basePath = base.getAbsolutePath();
+		String path = full.getAbsolutePath();
+		if (basePath.endsWith(File.separator))
+			basePath = basePath.substring(0, basePath.length() - 1);
+		if (path.length() > basePath.length() + 1 && path.startsWith(basePath) && path.charAt(basePath.length()) == File.separatorChar)
+			return path.substring(basePath.length() + 1);
+		return null;
+	}
+
+	private Set<String> listing(File dir) {
+		Set<String> listing = listings.get(dir);
+		if (listing == null) {
+			String[] names = dir.list();
+			listing = names == null ? Collections.<String> emptySet() : new HashSet<>(Arrays.asList(names));
+			listings.put(dir, listing);
+		}
+		return listing;
+	}
+
+	private static String[] segments(String path) {
+		String[] segments = path.split(File.separatorChar == '\\' ? "\\\\" : File.separator, -1);
+		if (segments.length > 1 && segments[segments.length - 1].isEmpty())
+			return Arrays.copyOf(segments, segments.length - 1);
+		return segments;
+	}
+
+	private static class Node {
+		Map<String, Node> children;
+		int base = -1;
+
+		Node child(String segment) {
+			if (children == null)
+				children = new HashMap<>();
+			Node child = children.get(segment);
+			if (child == null) {
+				child = new Node();
+				children.put(segment, child);
+			}
+			return child;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package build.pluto.buildjava.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns paths, such as file paths or jar entry names, as nodes of a trie
+ * with int IDs. Each node stores its parent and its last path segment, so
+ * common prefixes like package directories are stored only once, and each
+ * distinct segment is stored as a single string.
+ *
+ * A path is split at every separator, such that {@link #path(int)} returns
+ * exactly the interned string.
+ */
+public class PathTable implements Serializable {
+	private static final long serialVersionUID = -6307512006318223106L;
+
+	private static final int ROOT = 0;
+
+	private final char separator;
+
+	private final Map<String, Integer> segmentIds = new HashMap<>();
+	private final List<String> segments = new ArrayList<>();
+
+	/**
+	 * Parent and segment of each node. Node 0 is the root, which represents no
+	 * path.
+	 */
+	private int[] parents = new int[16];
+	private int[] nodeSegments = new int[16];
+	private int size = 1;
+
+	/**
+	 * Open-addressing index of the nodes by parent and segment. Since the root
+	 * is nobody's child, 0 marks a free slot.
+	 */
+	private int[] children = new int[32];
+
+	public PathTable(char separator) {
+		this.separator = separator;
+	}
+
+	/**
+	 * @return the number of nodes, including the root and the prefixes of all
+	 *         interned paths.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the ID of the given path, which is added if necessary.
+	 */
+	public int intern(String path) {
+		int node = ROOT;
+		int start = 0;
+		while (true) {
+			int end = path.indexOf(separator, start);
+			String segment = path.substring(start, end < 0 ? path.length() : end);
+			Integer segmentId = segmentIds.get(segment);
+			if (segmentId == null) {
+				segmentId = segments.size();
+				segments.add(segment);
+				segmentIds.put(segment, segmentId);
+			}
+			node = child(node, segmentId, true);
+			if (end < 0)
+				return node;
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * @return the ID of the given path, or -1 if it was not interned.
+	 */
+	public int lookup(String path) {
+		int node = ROOT;
+		int start = 0;
+		while (true) {
+			int end = path.indexOf(separator, start);
+			Integer segmentId = segmentIds.get(path.substring(start, end < 0 ? path.length() : end));
+			if (segmentId == null)
+				return -1;
+			node = child(node, segmentId, false);
+			if (node < 0 || end < 0)
+				return node;
+			start = end + 1;
+		}
+	}
+
+	public String path(int id) {
+		if (id <= ROOT || id >= size)
+			throw new IllegalArgumentException("Unknown path ID " + id);
+		int depth = 0;
+		int length = -1;
+		for (int node = id; node != ROOT; node = parents[node]) {
+			depth++;
+			length += segments.get(nodeSegments[node]).length() + 1;
+		}
+		char[] chars = new char[length];
+		int end = length;
+		for (int node = id; node != ROOT; node = parents[node]) {
+			String segment = segments.get(nodeSegments[node]);
+			end -= segment.length();
+			segment.getChars(0, segment.length(), chars, end);
+			if (--depth > 0)
+				chars[--end] = separator;
+		}
+		return new String(chars);
+	}
+
+	private int child(int parent, int segment, boolean create) {
+		int mask = children.length - 1;
+		int slot = hash(parent, segment) & mask;
+		for (int node = children[slot]; node != 0; node = children[slot]) {
+			if (parents[node] == parent && nodeSegments[node] == segment)
+				return node;
+			slot = (slot + 1) & mask;
+		}
+		if (!create)
+			return -1;
+
+		if (size == parents.length) {
+			parents = Arrays.copyOf(parents, size * 2);
+			nodeSegments = Arrays.copyOf(nodeSegments, size * 2);
+		}
+		int node = size++;
+		parents[node] = parent;
+		nodeSegments[node] = segment;
+		children[slot] = node;
+		if (size * 2 > children.length)
+			rehash();
+		return node;
+	}
+
+	private void rehash() {
+		children = new int[children.length * 2];
+		int mask = children.length - 1;
+		for (int node = 1; node < size; node++) {
+			int slot = hash(parents[node], nodeSegments[node]) & mask;
+			while (children[slot] != 0)
+				slot = (slot + 1) & mask;
+			children[slot] = node;
+		}
+	}
+
+	private static int hash(int parent, int segment) {
+		return IntSet.hash(parent * 31 + segment);
+	}
+}
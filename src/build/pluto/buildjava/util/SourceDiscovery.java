@@ -0,0 +1,147 @@
+package build.pluto.buildjava.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Lists the files below source roots, such as all Java files of a source path.
+ *
+ * Directories are listed in parallel, and their listings are cached as long
+ * as the modification time of the directory is unchanged. Adding, removing, or
+ * renaming an entry of a directory changes its modification time, such that
+ * an unchanged tree is checked by reading the modification time of each
+ * directory instead of listing it. Directories modified shortly before they
+ * were listed are not cached, because another modification within the
+ * resolution of the file system's modification times would go unnoticed.
+ *
+ * Files are returned in a depth-first order in which the entries of each
+ * directory are sorted by name, independent of the order in which the file
+ * system lists them.
+ */
+public class SourceDiscovery {
+
+	public static final SourceDiscovery instance = new SourceDiscovery();
+
+	/**
+	 * How long after its last modification a directory is considered racy, in
+	 * milliseconds.
+	 */
+	private static final long RACY_INTERVAL = 2000;
+
+	private final Map<File, Listing> listings = new ConcurrentHashMap<>();
+	private ForkJoinPool pool;
+
+	/**
+	 * @return the files below the given root directory whose name ends with
+	 *         the given suffix, as children of the root, or an empty list if
+	 *         the root is not a directory.
+	 */
+	public List<File> listFiles(File root, String suffix) {
+		if (!root.isDirectory())
+			return new ArrayList<>();
+		return pool().invoke(new ListTask(root, suffix));
+	}
+
+	/**
+	 * Drops all cached listings.
+	 */
+	public void clear() {
+		listings.clear();
+	}
+
+	private synchronized ForkJoinPool pool() {
+		if (pool == null)
+			pool = new ForkJoinPool();
+		return pool;
+	}
+
+	private Listing listing(File dir) {
+		File key = dir.getAbsoluteFile();
+		long lastModified = key.lastModified();
+		Listing listing = listings.get(key);
+		if (listing != null && listing.lastModified == lastModified)
+			return listing;
+
+		long listed = System.currentTimeMillis();
+		listing = Listing.read(key.toPath(), lastModified);
+		if (lastModified <= listed - RACY_INTERVAL)
+			listings.put(key, listing);
+		else
+			listings.remove(key);
+		return listing;
+	}
+
+	private class ListTask extends RecursiveTask<List<File>> {
+		private static final long serialVersionUID = -5838145826155893087L;
+
+		private final File dir;
+		private final String suffix;
+
+		ListTask(File dir, String suffix) {
+			this.dir = dir;
+			this.suffix = suffix;
+		}
+
+		@Override
+		protected List<File> compute() {
+			Listing listing = listing(dir);
+			List<ListTask> subtasks = new ArrayList<>();
+			for (int i = 0; i < listing.names.length; i++)
+				if (listing.isDir[i])
+					subtasks.add(new ListTask(new File(dir, listing.names[i]), suffix));
+			invokeAll(subtasks);
+
+			List<File> files = new ArrayList<>();
+			int subtask = 0;
+			for (int i = 0; i < listing.names.length; i++)
+				if (listing.isDir[i])
+					files.addAll(subtasks.get(subtask++).join());
+				else if (listing.names[i].endsWith(suffix))
+					files.add(new File(dir, listing.names[i]));
+			return files;
+		}
+	}
+
+	/**
+	 * The sorted entries of a directory.
+	 */
+	private static class Listing {
+		final long lastModified;
+		final String[] names;
+		final boolean[] isDir;
+
+		Listing(long lastModified, String[] names, boolean[] isDir) {
+			this.lastModified = lastModified;
+			this.names = names;
+			this.isDir = isDir;
+		}
+
+		static Listing read(Path dir, long lastModified) {
+			List<String> names = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path entry : stream)
+					names.add(entry.getFileName().toString());
+			} catch (IOException e) {
+				// unreadable directories contain no sources, as with File.listFiles
+				return new Listing(lastModified, new String[0], new boolean[0]);
+			}
+			Collections.sort(names);
+
+			String[] sorted = names.toArray(new String[names.size()]);
+			boolean[] isDir = new boolean[sorted.length];
+			for (int i = 0; i < sorted.length; i++)
+				isDir[i] = Files.isDirectory(dir.resolve(sorted[i]));
+			return new Listing(lastModified, sorted, isDir);
+		}
+	}
+}
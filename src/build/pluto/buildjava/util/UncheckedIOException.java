@@ -0,0 +1,20 @@
+package build.pluto.buildjava.util;
+
+import java.io.IOException;
+
+/**
+ * Carries an {@link IOException} out of a fork/join task, whose
+ * <code>compute</code> method cannot throw checked exceptions.
+ */
+class UncheckedIOException extends RuntimeException {
+	private static final long serialVersionUID = -4018203418920386917L;
+
+	UncheckedIOException(IOException cause) {
+		super(cause);
+	}
+
+	@Override
+	public IOException getCause() {
+		return (IOException) super.getCause();
+	}
+}
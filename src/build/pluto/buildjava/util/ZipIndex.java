@@ -0,0 +1,459 @@
+package build.pluto.buildjava.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * An immutable index of a zip file, built from its central directory. The
+ * central directory is copied onto the heap, such that the index only keeps
+ * the position of each entry's central directory record. Entry contents are
+ * read on demand through a file channel that is closed right after the read,
+ * or through a channel that the caller opens and closes, such that an index
+ * does not keep the zip file open and the file can be replaced or deleted
+ * while it is indexed.
+ *
+ * Entries are additionally grouped by package, i.e., by the directory part of
+ * their name, such that package lookups of a compiler do not need to scan all
+ * entries.
+ *
+ * Instances are obtained from the {@link ZipIndexCache} and can be shared
+ * between threads.
+ */
+public class ZipIndex {
+
+	private static final int LOCAL_HEADER_SIG = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	private static final int END_SIG = 0x06054b50;
+	private static final int ZIP64_END_SIG = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final int END_SIZE = 22;
+	private static final int ZIP64_END_SIZE = 56;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int MAX_COMMENT = 0xFFFF;
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+	private static final int ENCRYPTED_FLAG = 1;
+	private static final int UTF8_FLAG = 1 << 11;
+
+	private static final Charset CP437 = cp437();
+
+	private final File file;
+
+	/**
+	 * The modification time and size of the zip file when it was indexed.
+	 */
+	private final long lastModified;
+	private final long length;
+
+	/**
+	 * The central directory of the zip file.
+	 */
+	private final ByteBuffer directory;
+
+	/**
+	 * Maps entry names to the offset of their central directory record.
+	 */
+	private final Map<String, Integer> entries;
+
+	/**
+	 * Maps slash-separated package names to the names of their entries. The
+	 * default package is the empty string. Packages that only contain
+	 * subpackages are present with an empty list.
+	 */
+	private final Map<String, List<String>> packages;
+
+	private ZipIndex(File file, long lastModified, long length, ByteBuffer directory, Map<String, Integer> entries, Map<String, List<String>> packages) {
+		this.file = file;
+		this.lastModified = lastModified;
+		this.length = length;
+		this.directory = directory;
+		this.entries = entries;
+		this.packages = packages;
+	}
+
+	/**
+	 * Reads the central directory of the given zip file. Prefer
+	 * {@link ZipIndexCache#get(File)}, which shares indexes between
+	 * compilations.
+	 */
+	public static ZipIndex read(File file) throws IOException {
+		ByteBuffer directory;
+		long lastModified = file.lastModified();
+		long size;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			size = channel.size();
+			int tailSize = (int) Math.min(size, ZIP64_LOCATOR_SIZE + END_SIZE + MAX_COMMENT);
+			ByteBuffer tail = read(channel, size - tailSize, tailSize, file);
+
+			int end = findEnd(tail, file);
+			long cdSize = uint32(tail, end + 12);
+			long cdOffset = uint32(tail, end + 16);
+			if (cdOffset == ZIP64_MAGIC || cdSize == ZIP64_MAGIC) {
+				int locator = end - ZIP64_LOCATOR_SIZE;
+				if (locator < 0 || tail.getInt(locator) != ZIP64_LOCATOR_SIG)
+					throw new ZipException("Missing zip64 end of central directory locator: " + file);
+				ByteBuffer end64 = read(channel, checkedOffset(tail.getLong(locator + 8), ZIP64_END_SIZE, size, file), ZIP64_END_SIZE, file);
+				if (end64.getInt(0) != ZIP64_END_SIG)
+					throw new ZipException("Invalid zip64 end of central directory: " + file);
+				cdSize = end64.getLong(40);
+				cdOffset = end64.getLong(48);
+			}
+			if (cdSize > Integer.MAX_VALUE)
+				throw new ZipException("Central directory too large to index: " + file);
+			directory = read(channel, checkedOffset(cdOffset, cdSize, size, file), (int) cdSize, file);
+		}
+
+		Map<String, Integer> entries = new HashMap<>();
+		Map<String, List<String>> packages = new HashMap<>();
+		int pos = 0;
+		while (pos < directory.limit()) {
+			if (pos + CENTRAL_HEADER_SIZE > directory.limit() || directory.getInt(pos) != CENTRAL_HEADER_SIG)
+				throw new ZipException("Invalid central directory header at " + pos + ": " + file);
+			int flags = uint16(directory, pos + 8);
+			int nameLength = uint16(directory, pos + 28);
+			int extraLength = uint16(directory, pos + 30);
+			int commentLength = uint16(directory, pos + 32);
+			if (pos + CENTRAL_HEADER_SIZE + nameLength + extraLength > directory.limit())
+				throw new ZipException("Invalid central directory header at " + pos + ": " + file);
+			String name = string(directory, pos + CENTRAL_HEADER_SIZE, nameLength, (flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8 : CP437);
+
+			if (!entries.containsKey(name)) {
+				entries.put(name, pos);
+				if (!name.endsWith("/"))
+					addToPackage(packages, name);
+			}
+			pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+
+		for (Map.Entry<String, List<String>> e : packages.entrySet())
+			e.setValue(Collections.unmodifiableList(e.getValue()));
+		return new ZipIndex(file, lastModified, size, directory, entries, packages);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public boolean contains(String entry) {
+		return entries.containsKey(entry);
+	}
+
+	public Set<String> getEntryNames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * @return the names of all entries in the order of the central directory.
+	 */
+	public List<String> getEntryNamesInOrder() {
+		final Map<String, Integer> positions = entries;
+		List<String> names = new ArrayList<>(positions.keySet());
+		Collections.sort(names, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return positions.get(a).compareTo(positions.get(b));
+			}
+		});
+		return names;
+	}
+
+	/**
+	 * @param pkg
+	 *            a slash-separated package name, such as <code>java/lang</code>.
+	 */
+	public boolean containsPackage(String pkg) {
+		return packages.containsKey(pkg);
+	}
+
+	/**
+	 * @return the names of the entries directly contained in the given
+	 *         package, or an empty list.
+	 */
+	public List<String> getPackageEntries(String pkg) {
+		List<String> names = packages.get(pkg);
+		return names == null ? Collections.<String>emptyList() : names;
+	}
+
+	/**
+	 * @return the CRC-32 of the uncompressed entry, as recorded in the central
+	 *         directory, or -1 if there is no such entry.
+	 */
+	public long getCrc(String entry) {
+		Integer pos = entries.get(entry);
+		return pos == null ? -1 : uint32(directory, pos + 16);
+	}
+
+	/**
+	 * @return the modification time of the entry in milliseconds, converted
+	 *         from its MS-DOS time in the local time zone, or -1 if there is
+	 *         no such entry.
+	 */
+	public long getTime(String entry) {
+		Integer pos = entries.get(entry);
+		if (pos == null)
+			return -1;
+		long dosTime = uint32(directory, pos + 12);
+		Calendar c = Calendar.getInstance();
+		c.clear();
+		c.set((int) ((dosTime >> 25) & 0x7f) + 1980, (int) ((dosTime >> 21) & 0x0f) - 1, (int) ((dosTime >> 16) & 0x1f),
+				(int) ((dosTime >> 11) & 0x1f), (int) ((dosTime >> 5) & 0x3f), (int) ((dosTime << 1) & 0x3e));
+		return c.getTimeInMillis();
+	}
+
+	/**
+	 * @return the uncompressed size of the entry, or -1 if there is no such
+	 *         entry.
+	 */
+	public long getSize(String entry) throws IOException {
+		Integer pos = entries.get(entry);
+		return pos == null ? -1 : sizes(pos)[1];
+	}
+
+	/**
+	 * @return the uncompressed content of the entry, or <code>null</code> if
+	 *         there is no such entry.
+	 */
+	public byte[] read(String entry) throws IOException {
+		try (FileChannel channel = open()) {
+			return read(entry, channel);
+		}
+	}
+
+	/**
+	 * Like {@link #read(String)}, but reads through a channel obtained from
+	 * {@link #open()}, such that reading many entries does not open the zip
+	 * file for each of them. The channel can be shared between threads.
+	 */
+	public byte[] read(String entry, FileChannel channel) throws IOException {
+		Integer pos = entries.get(entry);
+		if (pos == null)
+			return null;
+
+		int method = uint16(directory, pos + 10);
+		long[] sizes = sizes(pos);
+		byte[] compressed = readRaw(entry, pos, sizes, channel);
+
+		if (method == STORED)
+			return compressed;
+		if (method != DEFLATED)
+			throw new ZipException("Unsupported compression method " + method + " of " + entry + ": " + file);
+
+		if (sizes[1] > Integer.MAX_VALUE)
+			throw new ZipException("Entry " + entry + " too large: " + file);
+		byte[] content = new byte[(int) sizes[1]];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed);
+			int len = 0;
+			while (len < content.length && !inflater.finished()) {
+				int n = inflater.inflate(content, len, content.length - len);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				len += n;
+			}
+			if (len != content.length)
+				throw new ZipException("Invalid size of " + entry + ": " + file);
+		} catch (DataFormatException e) {
+			throw new ZipException("Invalid compressed data of " + entry + " in " + file + ": " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return content;
+	}
+
+	/**
+	 * @return the compression method of the entry, such as
+	 *         {@link java.util.zip.ZipEntry#DEFLATED}, or -1 if there is no
+	 *         such entry.
+	 */
+	public int getMethod(String entry) {
+		Integer pos = entries.get(entry);
+		return pos == null ? -1 : uint16(directory, pos + 10);
+	}
+
+	/**
+	 * @return the content of the entry as stored in the zip file, i.e.,
+	 *         compressed with its {@link #getMethod(String) method}, or
+	 *         <code>null</code> if there is no such entry. This allows copying
+	 *         entries into another zip file without inflating and deflating
+	 *         them.
+	 */
+	public byte[] readRaw(String entry) throws IOException {
+		try (FileChannel channel = open()) {
+			return readRaw(entry, channel);
+		}
+	}
+
+	/**
+	 * Like {@link #readRaw(String)}, but reads through a channel obtained from
+	 * {@link #open()}, such that copying many entries does not open the zip
+	 * file for each of them. The channel can be shared between threads.
+	 */
+	public byte[] readRaw(String entry, FileChannel channel) throws IOException {
+		Integer pos = entries.get(entry);
+		return pos == null ? null : readRaw(entry, pos, sizes(pos), channel);
+	}
+
+	/**
+	 * Opens the zip file for reading entries with
+	 * {@link #read(String, FileChannel)} and
+	 * {@link #readRaw(String, FileChannel)}. The caller closes the channel.
+	 */
+	public FileChannel open() throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Like {@link #open()}, but fails if the modification time or size of the
+	 * zip file differ from when it was indexed, such that a channel kept open
+	 * for many reads does not read the entries of another file at the offsets
+	 * of this index.
+	 */
+	public FileChannel openUnchanged() throws IOException {
+		FileChannel channel = open();
+		if (channel.size() != length || file.lastModified() != lastModified) {
+			channel.close();
+			throw new IOException("Zip file changed since it was indexed: " + file);
+		}
+		return channel;
+	}
+
+	private byte[] readRaw(String entry, int pos, long[] sizes, FileChannel channel) throws IOException {
+		if ((uint16(directory, pos + 8) & ENCRYPTED_FLAG) != 0)
+			throw new ZipException("Encrypted entry " + entry + ": " + file);
+		if (sizes[0] > Integer.MAX_VALUE)
+			throw new ZipException("Entry " + entry + " too large: " + file);
+		if (sizes[0] < 0 || sizes[2] < 0)
+			throw new ZipException("Invalid entry " + entry + ": " + file);
+		ByteBuffer header = read(channel, sizes[2], LOCAL_HEADER_SIZE, file);
+		if (header.getInt(0) != LOCAL_HEADER_SIG)
+			throw new ZipException("Invalid local header for " + entry + ": " + file);
+		long data = sizes[2] + LOCAL_HEADER_SIZE + uint16(header, 26) + uint16(header, 28);
+		return read(channel, data, (int) sizes[0], file).array();
+	}
+
+	/**
+	 * @return compressed size, uncompressed size, and local header offset of
+	 *         the entry whose central directory record starts at pos.
+	 */
+	private long[] sizes(int pos) throws IOException {
+		long[] sizes = { uint32(directory, pos + 20), uint32(directory, pos + 24), uint32(directory, pos + 42) };
+		if (sizes[0] != ZIP64_MAGIC && sizes[1] != ZIP64_MAGIC && sizes[2] != ZIP64_MAGIC)
+			return sizes;
+
+		// the zip64 extra field only contains the values that overflowed, in this order
+		int extra = pos + CENTRAL_HEADER_SIZE + uint16(directory, pos + 28);
+		int extraEnd = extra + uint16(directory, pos + 30);
+		while (extra + 4 <= extraEnd) {
+			int id = uint16(directory, extra);
+			int length = uint16(directory, extra + 2);
+			if (id == ZIP64_EXTRA_ID) {
+				int p = extra + 4;
+				if (sizes[1] == ZIP64_MAGIC) {
+					sizes[1] = directory.getLong(p);
+					p += 8;
+				}
+				if (sizes[0] == ZIP64_MAGIC) {
+					sizes[0] = directory.getLong(p);
+					p += 8;
+				}
+				if (sizes[2] == ZIP64_MAGIC)
+					sizes[2] = directory.getLong(p);
+				return sizes;
+			}
+			extra += 4 + length;
+		}
+		throw new ZipException("Missing zip64 extra field: " + file);
+	}
+
+	private static void addToPackage(Map<String, List<String>> packages, String name) {
+		int sep = name.lastIndexOf('/');
+		String pkg = sep < 0 ? "" : name.substring(0, sep);
+		List<String> names = packages.get(pkg);
+		if (names == null) {
+			names = new ArrayList<>();
+			packages.put(pkg, names);
+			// register enclosing packages, which may not have entries of their own
+			for (int parent = pkg.lastIndexOf('/'); parent > 0 && !packages.containsKey(pkg.substring(0, parent)); parent = pkg.lastIndexOf('/', parent - 1))
+				packages.put(pkg.substring(0, parent), new ArrayList<String>());
+		}
+		names.add(name);
+	}
+
+	private static int findEnd(ByteBuffer buffer, File file) throws ZipException {
+		int min = Math.max(0, buffer.limit() - END_SIZE - MAX_COMMENT);
+		for (int pos = buffer.limit() - END_SIZE; pos >= min; pos--)
+			if (buffer.getInt(pos) == END_SIG)
+				return pos;
+		throw new ZipException("Not a zip file: " + file);
+	}
+
+	private static long checkedOffset(long offset, long length, long size, File file) throws ZipException {
+		if (offset < 0 || length < 0 || offset + length > size)
+			throw new ZipException("Invalid offset " + offset + ": " + file);
+		return offset;
+	}
+
+	/**
+	 * Reads length bytes at the given position of the channel into a
+	 * little-endian heap buffer.
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length, File file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new ZipException("Truncated zip file: " + file);
+		buffer.clear();
+		return buffer;
+	}
+
+	private static int uint16(ByteBuffer buffer, int pos) {
+		return buffer.getShort(pos) & 0xFFFF;
+	}
+
+	private static long uint32(ByteBuffer buffer, int pos) {
+		return buffer.getInt(pos) & 0xFFFFFFFFL;
+	}
+
+	private static String string(ByteBuffer buffer, int pos, int length, Charset charset) {
+		byte[] bytes = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(pos);
+		view.get(bytes);
+		return new String(bytes, charset);
+	}
+
+	private static Charset cp437() {
+		try {
+			return Charset.forName("IBM437");
+		} catch (IllegalArgumentException e) {
+			return StandardCharsets.ISO_8859_1;
+		}
+	}
+}
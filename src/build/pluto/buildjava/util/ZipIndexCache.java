@@ -0,0 +1,116 @@
+package build.pluto.buildjava.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide cache of {@link ZipIndex}es, such that the jars of a class
+ * path are indexed once instead of once per compilation. An index is reused as
+ * long as the jar's path, modification time, and size are unchanged. The least
+ * recently used indexes are evicted once the capacity is exceeded. Cached
+ * indexes only hold a heap copy of the central directory of their jar, they
+ * neither map nor keep open the jar itself.
+ *
+ * The capacity can be configured through the system property
+ * <code>pluto.buildjava.zipIndexCache.capacity</code>.
+ */
+public class ZipIndexCache {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	public static final ZipIndexCache instance = new ZipIndexCache(Integer.getInteger("pluto.buildjava.zipIndexCache.capacity", DEFAULT_CAPACITY));
+
+	private final int capacity;
+	private final Map<File, ZipIndexEntry> cache;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ZipIndexCache(final int capacity) {
+		this.capacity = capacity;
+		this.cache = new LinkedHashMap<File, ZipIndexEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = -5113318468424046802L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<File, ZipIndexEntry> eldest) {
+				return size() > ZipIndexCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return the index of the given zip file, which is read if the file is
+	 *         not cached or has changed since it was cached.
+	 */
+	public ZipIndex get(File zip) throws IOException {
+		File file = zip.getAbsoluteFile();
+		long lastModified = file.lastModified();
+		long length = file.length();
+
+		synchronized (cache) {
+			ZipIndexEntry entry = cache.get(file);
+			if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+				hits.incrementAndGet();
+				return entry.index;
+			}
+		}
+
+		// index outside of the lock, concurrent misses for the same jar are rare
+		misses.incrementAndGet();
+		ZipIndex index = ZipIndex.read(file);
+		synchronized (cache) {
+			cache.put(file, new ZipIndexEntry(index, lastModified, length));
+		}
+		return index;
+	}
+
+	public void invalidate(File zip) {
+		synchronized (cache) {
+			cache.remove(zip.getAbsoluteFile());
+		}
+	}
+
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ZipIndexCache(size=" + size() + ", capacity=" + capacity + ", hits=" + getHits() + ", misses=" + getMisses() + ")";
+	}
+
+	private static class ZipIndexEntry {
+		final ZipIndex index;
+		final long lastModified;
+		final long length;
+
+		ZipIndexEntry(ZipIndex index, long lastModified, long length) {
+			this.index = index;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+}
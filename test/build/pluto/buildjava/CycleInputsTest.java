@@ -0,0 +1,58 @@
+package build.pluto.buildjava;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CycleInputsTest {
+
+	private static final File src = new File("/cycle/src").getAbsoluteFile();
+	private static final File bin = new File("/cycle/bin").getAbsoluteFile();
+	private static final File lib = new File("/cycle/lib.jar").getAbsoluteFile();
+
+	private static File source(int i) {
+		return new File(src, "p" + i % 100 + "/C" + i + ".java").getAbsoluteFile();
+	}
+
+	/**
+	 * A cycle of n members, in which each member also lists the source file of
+	 * its successor, as the inputs of a merged cycle do.
+	 */
+	private static List<JavaCompilerInput> cycle(int n) {
+		List<JavaCompilerInput> inputs = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+			inputs.add(new JavaCompilerInput
+					.Builder()
+					.addInputFiles(source(i), source((i + 1) % n))
+					.addSourcePaths(src)
+					.setTargetDir(bin)
+					.addClassPaths(bin, lib)
+					.get());
+		return inputs;
+	}
+
+	@Test
+	public void testOrder() {
+		CycleInputs merged = new CycleInputs(cycle(3));
+		assertEquals(Arrays.asList(source(0), source(1), source(2)), new ArrayList<>(merged.getSourceFiles()));
+		assertEquals(Arrays.asList(src), new ArrayList<>(merged.getSourcePath()));
+		assertEquals(Arrays.asList(bin, lib), new ArrayList<>(merged.getClassPath()));
+	}
+
+	@Test
+	public void testLargeCycle() {
+		int n = 20000;
+		CycleInputs merged = new CycleInputs(cycle(n));
+		assertEquals(n, merged.getSourceFiles().size());
+		Iterator<File> it = merged.getSourceFiles().iterator();
+		for (int i = 0; i < n; i++)
+			assertEquals(source(i), it.next());
+		assertEquals(2, merged.getClassPath().size());
+	}
+}
@@ -5,12 +5,17 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 import build.pluto.buildjava.test.simple.CyclicFilesTest;
+import build.pluto.buildjava.test.simple.IncrementalBulkBuildTest;
+import build.pluto.buildjava.test.simple.JavaBuildWatcherTest;
+import build.pluto.buildjava.test.simple.JavaJarTest;
 import build.pluto.buildjava.test.simple.MultipleFilesTest;
+import build.pluto.buildjava.test.simple.ParallelBulkBuildTest;
 import build.pluto.buildjava.test.simple.SimpleJavaBuildTest;
+import build.pluto.buildjava.test.simple.SimpleJavaInProcessBuildTest;
 import build.pluto.buildjava.test.simple.TypeShadowingTest;
 
 @RunWith(Suite.class)
-@SuiteClasses({ SimpleJavaBuildTest.class, MultipleFilesTest.class, CyclicFilesTest.class, TypeShadowingTest.class })
+@SuiteClasses({ SimpleJavaBuildTest.class, SimpleJavaInProcessBuildTest.class, MultipleFilesTest.class, CyclicFilesTest.class, TypeShadowingTest.class, ParallelBulkBuildTest.class, IncrementalBulkBuildTest.class, JavaBuildWatcherTest.class, JavaJarTest.class })
 public class BuildJavaTestSuite {
 
 }
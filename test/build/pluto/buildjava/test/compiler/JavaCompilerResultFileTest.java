@@ -0,0 +1,153 @@
+package build.pluto.buildjava.test.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import build.pluto.buildjava.compiler.JavaCompilerResult;
+import build.pluto.buildjava.compiler.JavaCompilerResultFile;
+
+public class JavaCompilerResultFileTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+		file = new File(dir, "compile.java.result");
+	}
+
+	private static File src(String name) {
+		return new File("/src/" + name + ".java");
+	}
+
+	private static File bin(String name) {
+		return new File("/bin/" + name + ".class");
+	}
+
+	private static <T> HashSet<T> set(Collection<T> c) {
+		return new HashSet<>(c);
+	}
+
+	private JavaCompilerResult sample() {
+		JavaCompilerResult result = new JavaCompilerResult();
+		result.addGeneratedFile(src("A"), bin("A"));
+		result.addGeneratedFile(src("A"), bin("A$Inner"));
+		result.addGeneratedFile(src("B"), bin("B"));
+		result.addSourceFile(src("C"));
+		result.addSourceDependency(src("A"), src("B"));
+		result.addSourceDependency(src("C"), src("B"));
+		result.addLoadedClassFile(new File("/lib/L.class"));
+		result.addLoadedFromZippedFile(new File("/lib/x.jar"), "x/X.class");
+		result.addLoadedFromZippedFile(new File("/lib/x.jar"), "x/Y.class");
+		result.addFileStamp(src("A"), "a");
+		result.addFileStamp(src("B"), "b");
+		result.addFileStamp(new File("/lib/gone.jar"), null);
+		return result;
+	}
+
+	@Test
+	public void testQueries() throws IOException {
+		JavaCompilerResultFile.write(sample(), file);
+		JavaCompilerResultFile stored = JavaCompilerResultFile.read(file);
+
+		assertEquals(set(Arrays.asList(src("A"), src("B"), src("C"))), set(stored.getSourceFiles()));
+		assertTrue(stored.isSourceFile(src("C")));
+		assertFalse(stored.isSourceFile(bin("A")));
+		assertFalse(stored.isSourceFile(src("D")));
+
+		assertEquals(set(Arrays.asList(bin("A"), bin("A$Inner"))), set(stored.getGeneratedFiles(src("A"))));
+		assertTrue(stored.getGeneratedFiles(src("C")).isEmpty());
+		assertNull(stored.getGeneratedFiles(src("D")));
+
+		assertEquals(Arrays.asList(src("B")), stored.getSourceDependencies(src("A")));
+		assertTrue(stored.getSourceDependencies(src("B")).isEmpty());
+		assertEquals(set(Arrays.asList(src("A"), src("C"))), set(stored.getSourceDependents(src("B"))));
+		assertTrue(stored.getSourceDependents(src("A")).isEmpty());
+
+		assertTrue(stored.hasFileStamps());
+		assertEquals("a", stored.getFileStamp(src("A")));
+		assertTrue(stored.hasFileStamp(new File("/lib/gone.jar")));
+		assertNull(stored.getFileStamp(new File("/lib/gone.jar")));
+		assertFalse(stored.hasFileStamp(src("C")));
+
+		assertEquals(Arrays.asList(new File("/lib/L.class")), stored.getLoadedClassFiles());
+		Map<File, Collection<String>> zipped = stored.getLoadedFromZippedFile();
+		assertEquals(1, zipped.size());
+		assertEquals(set(Arrays.asList("x/X.class", "x/Y.class")), set(zipped.get(new File("/lib/x.jar"))));
+	}
+
+	@Test
+	public void testToResult() throws IOException {
+		JavaCompilerResult result = sample();
+		JavaCompilerResultFile.write(result, file);
+		JavaCompilerResult read = JavaCompilerResultFile.read(file).toResult();
+
+		assertEquals(result.getSourceTargetFiles(), read.getSourceTargetFiles());
+		assertEquals(result.getSourceDependencies(), read.getSourceDependencies());
+		assertEquals(result.getLoadedClassFiles(), read.getLoadedClassFiles());
+		assertEquals(result.getLoadedFromZippedFile(), read.getLoadedFromZippedFile());
+		assertEquals(result.getFileStamps(), read.getFileStamps());
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		JavaCompilerResultFile.write(new JavaCompilerResult(), file);
+		JavaCompilerResultFile stored = JavaCompilerResultFile.read(file);
+		assertTrue(stored.getSourceFiles().isEmpty());
+		assertFalse(stored.hasFileStamps());
+		assertFalse(stored.isSourceFile(src("A")));
+		assertTrue(stored.getLoadedFromZippedFile().isEmpty());
+	}
+
+	@Test(expected = IOException.class)
+	public void testSerializedResultRejected() throws IOException {
+		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
+			out.writeObject(sample());
+		}
+		JavaCompilerResultFile.read(file);
+	}
+
+	@Test(timeout = 10000)
+	public void testLargeResult() throws IOException {
+		int n = 20000;
+		JavaCompilerResult result = new JavaCompilerResult();
+		for (int i = 0; i < n; i++) {
+			result.addGeneratedFile(src("p" + i % 100 + "/C" + i), bin("p" + i % 100 + "/C" + i));
+			result.addSourceDependency(src("p" + i % 100 + "/C" + i), src("p" + (i + 1) % 100 + "/C" + (i + 1) % n));
+			result.addFileStamp(src("p" + i % 100 + "/C" + i), Integer.toHexString(i));
+		}
+		JavaCompilerResultFile.write(result, file);
+
+		JavaCompilerResultFile stored = JavaCompilerResultFile.read(file);
+		assertEquals(n, stored.getSourceFiles().size());
+		assertEquals(Arrays.asList(src("p0/C0")), stored.getSourceDependents(src("p1/C1")));
+		assertEquals(Integer.toHexString(12345), stored.getFileStamp(src("p45/C12345")));
+
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+			out.writeObject(result);
+		}
+		assertTrue("Compact format not smaller than serialization", file.length() < serialized.size());
+	}
+}
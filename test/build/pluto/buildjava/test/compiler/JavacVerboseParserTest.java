@@ -0,0 +1,84 @@
+package build.pluto.buildjava.test.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import build.pluto.buildjava.compiler.JavaCompilerResult;
+import build.pluto.buildjava.compiler.JavacVerboseParser;
+
+public class JavacVerboseParserTest {
+
+	private static final int FILES = 10000;
+
+	private final File src = new File("/ws/src").getAbsoluteFile();
+	private final File bin = new File("/ws/bin").getAbsoluteFile();
+
+	private JavacVerboseParser parser() {
+		return new JavacVerboseParser(Collections.singletonList(src), bin, new JavaCompilerResult());
+	}
+
+	@Test
+	public void testJDK8Format() {
+		JavacVerboseParser parser = parser();
+		assertTrue(parser.parseLine("[parsing started RegularFileObject[" + new File(src, "a/A.java") + "]]"));
+		assertTrue(parser.parseLine("[loading ZipFileIndexFileObject[/lib/rt.jar(java/lang/Object.class)]]"));
+		assertTrue(parser.parseLine("[loading RegularFileObject[" + new File(bin, "b/B.class") + "]]"));
+		assertTrue(parser.parseLine("[checking a.A]"));
+		assertTrue(parser.parseLine("[wrote RegularFileObject[" + new File(bin, "a/A.class") + "]]"));
+		assertTrue(parser.parseLine("[wrote RegularFileObject[" + new File(bin, "a/A$1.class") + "]]"));
+		assertFalse(parser.parseLine("A.java:3: error: cannot find symbol"));
+
+		JavaCompilerResult result = parser.getResult();
+		Collection<File> generated = result.getSourceTargetFiles().get(new File(src, "a/A.java"));
+		assertEquals(2, generated.size());
+		assertTrue(generated.contains(new File(bin, "a/A$1.class")));
+		assertTrue(result.getLoadedClassFiles().contains(new File(bin, "b/B.class")));
+		assertTrue(result.getLoadedFromZippedFile().get(new File("/lib/rt.jar").getAbsoluteFile()).contains("java/lang/Object.class"));
+	}
+
+	@Test
+	public void testJDK9Format() {
+		JavacVerboseParser parser = parser();
+		assertTrue(parser.parseLine("[parsing started SimpleFileObject[" + new File(src, "A.java") + "]]"));
+		assertTrue(parser.parseLine("[loading /lib/foo.jar(/foo/Foo.class)]"));
+		assertTrue(parser.parseLine("[checking A]"));
+		assertTrue(parser.parseLine("[wrote " + new File(bin, "A.class") + "]"));
+
+		JavaCompilerResult result = parser.getResult();
+		assertTrue(result.getSourceTargetFiles().get(new File(src, "A.java")).contains(new File(bin, "A.class")));
+		assertTrue(result.getLoadedFromZippedFile().get(new File("/lib/foo.jar").getAbsoluteFile()).contains("foo/Foo.class"));
+	}
+
+	/**
+	 * The parser must stay linear in the size of the output; the previous
+	 * implementation scanned the whole output for every file.
+	 */
+	@Test(timeout = 10000)
+	public void testLargeOutput() {
+		JavacVerboseParser parser = parser();
+		for (int i = 0; i < FILES; i++)
+			parser.parseLine("[parsing started SimpleFileObject[" + new File(src, "p" + (i % 100) + "/C" + i + ".java") + "]]");
+		for (int i = 0; i < FILES; i++) {
+			parser.parseLine("[loading /lib/lib.jar(/lib/L" + i + ".class)]");
+			parser.parseLine("[loading " + new File(bin, "q/D" + i + ".class") + "]");
+		}
+		for (int i = 0; i < FILES; i++) {
+			parser.parseLine("[checking p" + (i % 100) + ".C" + i + "]");
+			parser.parseLine("[wrote " + new File(bin, "p" + (i % 100) + "/C" + i + ".class") + "]");
+		}
+
+		JavaCompilerResult result = parser.getResult();
+		assertEquals(FILES, result.getSourceTargetFiles().size());
+		for (Collection<File> generated : result.getSourceTargetFiles().values())
+			assertEquals(1, generated.size());
+		assertEquals(FILES, result.getLoadedClassFiles().size());
+		assertEquals(FILES, result.getLoadedFromZippedFile().get(new File("/lib/lib.jar").getAbsoluteFile()).size());
+	}
+}
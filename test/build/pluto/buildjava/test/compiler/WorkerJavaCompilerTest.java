@@ -0,0 +1,131 @@
+package build.pluto.buildjava.test.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildjava.compiler.InProcessJavacCompiler;
+import build.pluto.buildjava.compiler.JavaCompilerResult;
+import build.pluto.buildjava.compiler.WorkerJavaCompiler;
+
+public class WorkerJavaCompilerTest {
+
+	private static final long IDLE_TIMEOUT = 2000;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+	private WorkerJavaCompiler compiler;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+		System.setProperty("pluto.buildjava.workers.dir", new File(dir, "workers").getAbsolutePath());
+		compiler = new WorkerJavaCompiler(InProcessJavacCompiler.instance, 2, IDLE_TIMEOUT);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		awaitShutdown();
+		System.clearProperty("pluto.buildjava.workers.dir");
+	}
+
+	private void awaitShutdown() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 4 * IDLE_TIMEOUT + 5000;
+		while (compiler.getPortFile().exists() && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+	}
+
+	private JavaCompilerResult compile(String name, String content) throws Exception {
+		File source = new File(dir, "src/" + name + ".java");
+		source.getParentFile().mkdirs();
+		FileCommands.writeToFile(source, content);
+		File target = new File(dir, "bin");
+		return compiler.compile(Collections.singletonList(source), target, Collections.singletonList(source.getParentFile()), Collections.<File> emptyList(), null, null, null);
+	}
+
+	private List<String> address() throws IOException {
+		return Files.readAllLines(compiler.getPortFile().toPath(), StandardCharsets.UTF_8);
+	}
+
+	@Test(timeout = 60000)
+	public void testCompileAndRestartAfterIdleExit() throws Exception {
+		JavaCompilerResult result = compile("A", "public class A { }");
+		File a = new File(dir, "src/A.java").getAbsoluteFile();
+		assertEquals(Collections.singleton(new File(dir, "bin/A.class").getAbsoluteFile()), result.getSourceTargetFiles().get(a));
+		assertTrue(compiler.getPortFile().exists());
+
+		awaitShutdown();
+		assertFalse("worker did not exit when idle", compiler.getPortFile().exists());
+
+		compile("B", "public class B extends A { }");
+		assertTrue(new File(dir, "bin/B.class").exists());
+		assertTrue(compiler.getPortFile().exists());
+	}
+
+	@Test(timeout = 60000)
+	public void testWorkerDyingDuringRequestIsReplaced() throws Exception {
+		try (final ServerSocket dying = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			Thread worker = new Thread() {
+				@Override
+				public void run() {
+					try (Socket socket = dying.accept()) {
+						socket.getInputStream().read();
+					} catch (IOException e) {
+						// closed
+					}
+				}
+			};
+			worker.start();
+			File portFile = compiler.getPortFile();
+			portFile.getParentFile().mkdirs();
+			Files.write(portFile.toPath(), (dying.getLocalPort() + "\ntoken\n").getBytes(StandardCharsets.UTF_8));
+
+			compile("A", "public class A { }");
+			assertTrue(new File(dir, "bin/A.class").exists());
+			assertNotEquals(Integer.toString(dying.getLocalPort()), address().get(0));
+			worker.join();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testWrongTokenIsRejected() throws Exception {
+		compile("A", "public class A { }");
+		List<String> address = address();
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(address.get(0)))) {
+			new DataOutputStream(socket.getOutputStream()).writeUTF("not" + address.get(1));
+			assertEquals(-1, socket.getInputStream().read());
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testStalledClientDoesNotKeepWorkerAlive() throws Exception {
+		compile("A", "public class A { }");
+		List<String> address = address();
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(address.get(0)))) {
+			awaitShutdown();
+			assertFalse("stalled client kept worker alive", compiler.getPortFile().exists());
+			assertEquals(-1, socket.getInputStream().read());
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package build.pluto.buildjava.test.simple;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.builder.BuildRequest;
+import build.pluto.buildjava.JavaBulkCompiler;
+import build.pluto.buildjava.JavaCompilerInput;
+import build.pluto.buildjava.compiler.JavacCompiler;
+import build.pluto.test.build.ScopedBuildTest;
+import build.pluto.test.build.ScopedPath;
+import build.pluto.test.build.TrackingBuildManager;
+
+public class IncrementalBulkBuildTest extends ScopedBuildTest {
+
+	/**
+	 * Modification time of class files that were not written again.
+	 */
+	private static final long UNTOUCHED = (System.currentTimeMillis() / 1000 + 3600) * 1000;
+
+	@ScopedPath(value = "")
+	private File sourcePath;
+
+	@ScopedPath(value = "D.java")
+	private File classDsource;
+
+	@ScopedPath(value = "E.java")
+	private File classEsource;
+
+	@ScopedPath(value = "C.java")
+	private File classCsource;
+
+	@ScopedPath(value = "P.java")
+	private File classPsource;
+
+	@ScopedPath(value = "bin/")
+	private File targetDir;
+
+	private TrackingBuildManager build() throws IOException {
+		TrackingBuildManager manager = new TrackingBuildManager();
+		JavaCompilerInput input = new JavaCompilerInput
+				.Builder()
+				.addSourcePaths(sourcePath)
+				.setTargetDir(targetDir)
+				.setCompiler(JavacCompiler.instance)
+				.setIncremental(true)
+				.get();
+		manager.require(new BuildRequest<>(JavaBulkCompiler.factory, input));
+		return manager;
+	}
+
+	private void markClassFiles() {
+		for (File file : targetDir.listFiles())
+			if (file.getName().endsWith(".class"))
+				file.setLastModified(UNTOUCHED);
+	}
+
+	private Set<String> compiledClasses() {
+		Set<String> compiled = new HashSet<>();
+		for (File file : targetDir.listFiles())
+			if (file.getName().endsWith(".class") && file.lastModified() != UNTOUCHED)
+				compiled.add(FileCommands.dropExtension(file.getName()));
+		return compiled;
+	}
+
+	private Object call(String className, String methodName) throws Exception {
+		try (URLClassLoader loader = new URLClassLoader(new URL[] { targetDir.toURI().toURL() }, null)) {
+			Class<?> cl = loader.loadClass(className);
+			Constructor<?> constructor = cl.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			Method method = cl.getDeclaredMethod(methodName);
+			method.setAccessible(true);
+			return method.invoke(constructor.newInstance());
+		}
+	}
+
+	private static Set<String> set(String... names) {
+		Set<String> set = new HashSet<>();
+		for (String name : names)
+			set.add(name);
+		return set;
+	}
+
+	@Test
+	public void testBuildClean() throws IOException {
+		TrackingBuildManager manager = build();
+		assertEquals(1, manager.getExecutedInputs().size());
+		assertEquals(set("A", "B", "C", "D", "E", "G", "P", "Q"), compiledClasses());
+	}
+
+	@Test
+	public void testImplementationChange() throws IOException {
+		build();
+		markClassFiles();
+
+		FileCommands.writeToFile(classDsource, "class D { int x() { return 2; } }");
+		build();
+		assertEquals(set("D"), compiledClasses());
+	}
+
+	@Test
+	public void testAbiChange() throws IOException {
+		build();
+		markClassFiles();
+
+		// B depends on D and is compiled again, but its own ABI remains unchanged
+		FileCommands.writeToFile(classDsource, "class D { int x() { return 1; } int w() { return 0; } }");
+		build();
+		assertEquals(set("B", "D"), compiledClasses());
+	}
+
+	@Test
+	public void testConstantChange() throws Exception {
+		build();
+		markClassFiles();
+
+		// G inlines the constant, its class file does not refer to C
+		FileCommands.writeToFile(classCsource, "class C { static final int LIMIT = 20; }");
+		build();
+		assertEquals(set("C", "G"), compiledClasses());
+		assertEquals(20, call("G", "g"));
+	}
+
+	@Test
+	public void testConstantChangeInCycle() throws Exception {
+		build();
+		markClassFiles();
+
+		// Q inlines P.X into Q.Y, which P inlines in turn: P needs to be compiled again after Q
+		FileCommands.writeToFile(classPsource, "class P { static final int X = 2; int f() { return Q.Y; } }");
+		build();
+		assertEquals(set("P", "Q"), compiledClasses());
+		assertEquals(4, call("P", "f"));
+	}
+
+	@Test
+	public void testRemovedSource() throws IOException {
+		build();
+		markClassFiles();
+
+		FileCommands.delete(classEsource);
+		build();
+		assertFalse("Class file of removed source not deleted", new File(targetDir, "E.class").exists());
+		assertEquals(set(), compiledClasses());
+	}
+
+	@Test
+	public void testAddedSource() throws IOException {
+		build();
+		markClassFiles();
+
+		FileCommands.writeToFile(new File(sourcePath, "F.java"), "class F { D d; }");
+		build();
+		assertTrue("No class file for F generated", new File(targetDir, "F.class").exists());
+		assertEquals(set("F"), compiledClasses());
+	}
+}
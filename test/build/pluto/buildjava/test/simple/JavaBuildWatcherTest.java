@@ -0,0 +1,210 @@
+package build.pluto.buildjava.test.simple;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import build.pluto.builder.BuildRequest;
+import build.pluto.buildjava.JavaBuildWatcher;
+import build.pluto.buildjava.JavaBulkCompiler;
+import build.pluto.buildjava.JavaCompilerInput;
+import build.pluto.buildjava.compiler.IJavaCompiler;
+import build.pluto.buildjava.compiler.JavaCompilerResult;
+import build.pluto.buildjava.compiler.JavacCompiler;
+import build.pluto.test.build.ScopedBuildTest;
+import build.pluto.test.build.ScopedPath;
+
+public class JavaBuildWatcherTest extends ScopedBuildTest {
+
+	/**
+	 * Counts its compilations and blocks the next compilation until it is
+	 * interrupted if requested.
+	 */
+	private static class CountingCompiler implements IJavaCompiler {
+		private static final long serialVersionUID = 6907214460281738651L;
+
+		static final AtomicInteger compilations = new AtomicInteger();
+		static final AtomicInteger blocking = new AtomicInteger();
+		static final AtomicInteger interrupted = new AtomicInteger();
+		static final AtomicBoolean blockNext = new AtomicBoolean();
+
+		@Override
+		public JavaCompilerResult compile(Collection<File> sourceFiles, File targetDir, Collection<File> sourcePath, Collection<File> classPath, String sourceRelease,
+				String targetRelease, Collection<String> additionalArguments) throws Exception {
+			compilations.incrementAndGet();
+			if (blockNext.compareAndSet(true, false)) {
+				blocking.incrementAndGet();
+				try {
+					while (true)
+						Thread.sleep(10);
+				} catch (InterruptedException e) {
+					interrupted.incrementAndGet();
+					throw e;
+				}
+			}
+			return JavacCompiler.instance.compile(sourceFiles, targetDir, sourcePath, classPath, sourceRelease, targetRelease, additionalArguments);
+		}
+	}
+
+	@ScopedPath(value = "")
+	private File sourcePath;
+
+	@ScopedPath(value = "B.java")
+	private File classBsource;
+
+	@ScopedPath(value = "bin/")
+	private File targetDir;
+
+	@Before
+	public void resetCompiler() {
+		CountingCompiler.compilations.set(0);
+		CountingCompiler.blocking.set(0);
+		CountingCompiler.interrupted.set(0);
+		CountingCompiler.blockNext.set(false);
+	}
+
+	private static boolean contains(File file, String s) throws IOException {
+		return file.exists() && new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1).contains(s);
+	}
+
+	private static void await(File file, String s) throws IOException, InterruptedException {
+		while (!contains(file, s))
+			Thread.sleep(50);
+	}
+
+	private static void await(AtomicInteger counter, int value) throws InterruptedException {
+		while (counter.get() < value)
+			Thread.sleep(10);
+	}
+
+	private static void writeClassB(File file, String method) throws IOException {
+		Files.write(file.toPath(), ("class B {\n\tint y() {\n\t\treturn 2;\n\t}\n\n\tint " + method + "() {\n\t\treturn 3;\n\t}\n}\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static JavaCompilerInput input(File sourcePath, File targetDir) {
+		return new JavaCompilerInput
+				.Builder()
+				.addSourcePaths(sourcePath)
+				.setTargetDir(targetDir)
+				.setCompiler(new CountingCompiler())
+				.get();
+	}
+
+	private static void watch(JavaBuildWatcher watcher, JavaCompilerInput input) throws IOException {
+		watcher.watch(new BuildRequest<>(JavaBulkCompiler.factory, input), input);
+	}
+
+	private static Thread start(final JavaBuildWatcher watcher) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					watcher.run();
+				} catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	private static void stop(JavaBuildWatcher watcher, Thread thread) throws IOException, InterruptedException {
+		watcher.close();
+		thread.interrupt();
+		thread.join();
+	}
+
+	@Test(timeout = 60000)
+	public void testRebuildOnChange() throws Exception {
+		final JavaBuildWatcher watcher = new JavaBuildWatcher(200);
+		watch(watcher, input(sourcePath, targetDir));
+		Thread thread = start(watcher);
+
+		try {
+			File classB = new File(targetDir, "B.class");
+			await(classB, "y");
+			assertTrue(new File(targetDir, "A.class").exists());
+
+			writeClassB(classBsource, "added");
+			await(classB, "added");
+
+			// changes are debounced into a single rebuild
+			int compilations = CountingCompiler.compilations.get();
+			for (int i = 0; i < 5; i++)
+				writeClassB(classBsource, "added" + i);
+			await(classB, "added4");
+			Thread.sleep(1000);
+			assertEquals(compilations + 1, CountingCompiler.compilations.get());
+		} finally {
+			stop(watcher, thread);
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testWatchWhileRunningFails() throws Exception {
+		final JavaBuildWatcher watcher = new JavaBuildWatcher(50);
+		JavaCompilerInput input = input(sourcePath, targetDir);
+		watch(watcher, input);
+		Thread thread = start(watcher);
+
+		try {
+			await(new File(targetDir, "B.class"), "y");
+			watch(watcher, input);
+			fail("Compilation watched while the watcher runs");
+		} catch (IllegalStateException e) {
+			// expected
+		} finally {
+			stop(watcher, thread);
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testCancelledBuildIsRepeated() throws Exception {
+		File otherDir = Files.createTempDirectory("watcher").toFile();
+		try {
+			File otherSource = new File(otherDir, "src/C.java");
+			File otherTarget = new File(otherDir, "bin");
+			otherSource.getParentFile().mkdirs();
+			Files.write(otherSource.toPath(), "class C { }".getBytes(StandardCharsets.UTF_8));
+
+			final JavaBuildWatcher watcher = new JavaBuildWatcher(50);
+			watch(watcher, input(sourcePath, targetDir));
+			watch(watcher, input(otherSource.getParentFile(), otherTarget));
+			Thread thread = start(watcher);
+
+			try {
+				File classB = new File(targetDir, "B.class");
+				File classC = new File(otherTarget, "C.class");
+				await(classB, "y");
+				await(classC, "C");
+
+				// the rebuild of B blocks until it is cancelled by the change of C
+				CountingCompiler.blockNext.set(true);
+				writeClassB(classBsource, "added");
+				await(CountingCompiler.blocking, 1);
+				Files.write(otherSource.toPath(), "class C { int added; }".getBytes(StandardCharsets.UTF_8));
+
+				await(classC, "added");
+				await(classB, "added");
+				assertEquals(1, CountingCompiler.interrupted.get());
+			} finally {
+				stop(watcher, thread);
+			}
+		} finally {
+			FileUtils.deleteDirectory(otherDir);
+		}
+	}
+}
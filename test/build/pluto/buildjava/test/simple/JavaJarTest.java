@@ -0,0 +1,219 @@
+package build.pluto.buildjava.test.simple;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipException;
+
+import org.junit.Test;
+
+import build.pluto.builder.BuildManagers;
+import build.pluto.builder.BuildRequest;
+import build.pluto.buildjava.JavaJar;
+import build.pluto.buildjava.util.JarWriter;
+import build.pluto.buildjava.util.ZipIndex;
+import build.pluto.test.build.ScopedBuildTest;
+import build.pluto.test.build.ScopedPath;
+import build.pluto.test.build.TrackingBuildManager;
+
+public class JavaJarTest extends ScopedBuildTest {
+
+	private static final long TIME = 1262304000000L;
+
+	@ScopedPath(value = "classes")
+	private File classes;
+
+	@ScopedPath(value = "classes/p/a.txt")
+	private File fileA;
+
+	@ScopedPath(value = "update.MF")
+	private File manifestUpdate;
+
+	@ScopedPath(value = "main.jar")
+	private File jar;
+
+	@ScopedPath(value = "lib.jar")
+	private File lib;
+
+	@ScopedPath(value = "out")
+	private File outDir;
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a jar with the given manifest attributes and entries, without
+	 * the builder.
+	 */
+	private static void writeJar(File file, String[] attributes, String... namesAndContents) throws IOException {
+		JarWriter writer = new JarWriter();
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		for (int i = 0; i < attributes.length; i += 2)
+			manifest.getMainAttributes().putValue(attributes[i], attributes[i + 1]);
+		Attributes section = new Attributes();
+		section.putValue("Implementation-Title", "p");
+		manifest.getEntries().put("p/", section);
+		writer.add("META-INF/", new byte[0], TIME);
+		writer.addManifest(manifest, TIME);
+		for (int i = 0; i < namesAndContents.length; i += 2)
+			writer.add(namesAndContents[i], bytes(namesAndContents[i + 1]), TIME);
+		writer.write(file);
+	}
+
+	private static BuildRequest<?, ?, ?, ?> request(JavaJar.Mode mode, File jar, File manifest, File classpath, File... files) {
+		Map<File, Set<File>> filesMap = new HashMap<>();
+		Set<File> set = new LinkedHashSet<>();
+		Collections.addAll(set, files);
+		filesMap.put(classpath, set);
+		return new BuildRequest<>(JavaJar.factory, new JavaJar.Input(mode, jar, manifest, filesMap, null));
+	}
+
+	private static byte[] read(JarFile zip, String name) throws IOException {
+		JarEntry entry = zip.getJarEntry(name);
+		assertNotNull("Missing entry " + name, entry);
+		byte[] content = new byte[(int) entry.getSize()];
+		try (InputStream in = zip.getInputStream(entry)) {
+			int read = 0;
+			while (read < content.length)
+				read += in.read(content, read, content.length - read);
+		}
+		return content;
+	}
+
+	/**
+	 * Asserts that the manifest is found where the <code>jar</code> tool and
+	 * {@link JarInputStream} expect it.
+	 */
+	private static void assertJarCompatible(File file) throws IOException {
+		try (JarFile zip = new JarFile(file)) {
+			Enumeration<JarEntry> entries = zip.entries();
+			assertEquals("META-INF/", entries.nextElement().getName());
+			assertEquals(JarFile.MANIFEST_NAME, entries.nextElement().getName());
+		}
+		try (JarInputStream in = new JarInputStream(new FileInputStream(file))) {
+			assertNotNull("Manifest not found by JarInputStream", in.getManifest());
+		}
+	}
+
+	@Test
+	public void testUpdate() throws Throwable {
+		writeJar(jar, new String[] { "Main-Class", "p.A", "Implementation-Version", "1" }, "p/a.txt", "old a", "q/b.txt", "b");
+
+		BuildManagers.build(request(JavaJar.Mode.Update, jar, manifestUpdate, classes, fileA));
+		assertJarCompatible(jar);
+
+		try (JarFile zip = new JarFile(jar)) {
+			Manifest manifest = zip.getManifest();
+			Attributes main = manifest.getMainAttributes();
+			assertEquals("p.A", main.getValue(Attributes.Name.MAIN_CLASS));
+			assertEquals("2", main.getValue(Attributes.Name.IMPLEMENTATION_VERSION));
+			assertEquals("lib.jar", main.getValue(Attributes.Name.CLASS_PATH));
+			Attributes section = manifest.getAttributes("p/");
+			assertEquals("p", section.getValue(Attributes.Name.IMPLEMENTATION_TITLE));
+			assertEquals("true", section.getValue(Attributes.Name.SEALED));
+
+			// the replaced entry keeps its position
+			Enumeration<JarEntry> entries = zip.entries();
+			entries.nextElement();
+			entries.nextElement();
+			assertEquals("p/a.txt", entries.nextElement().getName());
+			assertEquals("q/b.txt", entries.nextElement().getName());
+			assertFalse(entries.hasMoreElements());
+
+			assertArrayEquals(bytes("new a"), read(zip, "p/a.txt"));
+			assertArrayEquals(bytes("b"), read(zip, "q/b.txt"));
+		}
+	}
+
+	@Test
+	public void testCreateIsJarCompatible() throws Throwable {
+		BuildManagers.build(request(JavaJar.Mode.Create, jar, manifestUpdate, classes, classes));
+		assertJarCompatible(jar);
+
+		try (JarFile zip = new JarFile(jar)) {
+			assertEquals("lib.jar", zip.getManifest().getMainAttributes().getValue(Attributes.Name.CLASS_PATH));
+			assertArrayEquals(bytes("new a"), read(zip, "p/a.txt"));
+			assertArrayEquals(bytes("c"), read(zip, "p/r/c.txt"));
+		}
+	}
+
+	@Test
+	public void testExtractRejectsEntriesOutsideOfTarget() throws Throwable {
+		writeJar(jar, new String[0], "ok.txt", "ok", "../evil.txt", "evil");
+
+		try {
+			BuildManagers.build(request(JavaJar.Mode.Extract, jar, null, outDir));
+			fail("Entry outside of the target directory was extracted");
+		} catch (Throwable e) {
+			Throwable cause = e;
+			while (cause != null && !(cause instanceof ZipException))
+				cause = cause.getCause();
+			assertNotNull("Unexpected failure: " + e, cause);
+		}
+		assertFalse(new File(outDir.getParentFile(), "evil.txt").exists());
+	}
+
+	@Test
+	public void testExtract() throws Throwable {
+		writeJar(jar, new String[0], "p/a.txt", "a", "q/b.txt", "b");
+
+		BuildManagers.build(request(JavaJar.Mode.Extract, jar, null, outDir));
+		assertArrayEquals(bytes("a"), Files.readAllBytes(new File(outDir, "p/a.txt").toPath()));
+		assertArrayEquals(bytes("b"), Files.readAllBytes(new File(outDir, "q/b.txt").toPath()));
+	}
+
+	@Test
+	public void testGenIndex() throws Throwable {
+		writeJar(lib, new String[0], "q/b.txt", "b");
+		writeJar(jar, new String[] { "Class-Path", "lib.jar" }, "p/a.txt", "a", "p/r/c.txt", "c", "root.txt", "root");
+
+		BuildRequest<?, ?, ?, ?> request = request(JavaJar.Mode.GenIndex, jar, null, classes);
+		BuildManagers.build(request);
+		assertJarCompatible(jar);
+
+		try (JarFile zip = new JarFile(jar)) {
+			String index = new String(read(zip, "META-INF/INDEX.LIST"), StandardCharsets.UTF_8);
+			assertEquals("JarIndex-Version: 1.0\n\nmain.jar\np\np/r\nroot.txt\n\nlib.jar\nq\n\n", index);
+			assertArrayEquals(bytes("c"), read(zip, "p/r/c.txt"));
+		}
+		assertEquals(6, ZipIndex.read(jar).size());
+
+		// writing the index does not invalidate the requirement of the jar
+		TrackingBuildManager manager = new TrackingBuildManager();
+		manager.require(request);
+		assertTrue("Index generated again", manager.getExecutedInputs().isEmpty());
+
+		writeJar(jar, new String[] { "Class-Path", "lib.jar" }, "p/a.txt", "a", "s/d.txt", "d");
+		jar.setLastModified(jar.lastModified() + 2000);
+		manager = new TrackingBuildManager();
+		manager.require(request);
+		assertEquals(1, manager.getExecutedInputs().size());
+		try (JarFile zip = new JarFile(jar)) {
+			String index = new String(read(zip, "META-INF/INDEX.LIST"), StandardCharsets.UTF_8);
+			assertEquals("JarIndex-Version: 1.0\n\nmain.jar\np\ns\n\nlib.jar\nq\n\n", index);
+		}
+	}
+}
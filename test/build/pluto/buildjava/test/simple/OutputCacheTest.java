@@ -0,0 +1,178 @@
+package build.pluto.buildjava.test.simple;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import build.pluto.buildjava.OutputCache;
+import build.pluto.buildjava.compiler.JavaCompilerResult;
+import build.pluto.buildjava.compiler.JavacCompiler;
+
+public class OutputCacheTest {
+
+	private File dir;
+	private File src;
+	private File bin;
+	private File lib;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("outputcache").toFile();
+		src = new File(dir, "src");
+		bin = new File(dir, "bin");
+		lib = new File(dir, "lib");
+		src.mkdirs();
+		bin.mkdirs();
+		lib.mkdirs();
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private static void write(File file, String content) throws IOException {
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private int objects() {
+		int objects = 0;
+		for (File prefix : new File(dir, "cache/objects").listFiles())
+			objects += prefix.list().length;
+		return objects;
+	}
+
+	private String key(File... sources) throws IOException {
+		List<File> classPath = Arrays.asList(bin, lib);
+		return OutputCache.key(Arrays.asList(sources), bin, Collections.singletonList(src), classPath, null, null, Collections.<String> emptyList(), JavacCompiler.instance);
+	}
+
+	/**
+	 * Pretends to compile a source file into a class file that loads a class
+	 * from the library directory.
+	 */
+	private JavaCompilerResult compile(File source, File gen, File loaded) throws IOException {
+		write(gen, "class of " + new String(Files.readAllBytes(source.toPath()), StandardCharsets.UTF_8));
+		JavaCompilerResult result = new JavaCompilerResult();
+		result.addGeneratedFile(source, gen);
+		result.addLoadedClassFile(loaded);
+		return result;
+	}
+
+	@Test
+	public void testKey() throws IOException {
+		File a = new File(src, "p/A.java");
+		write(a, "class A {}");
+		String key = key(a);
+		assertEquals(key, key(a));
+		write(a, "class A { }");
+		assertNotEquals(key, key(a));
+	}
+
+	@Test
+	public void testRestore() throws IOException {
+		OutputCache cache = new OutputCache(new File(dir, "cache"), 1 << 20);
+		File a = new File(src, "p/A.java");
+		File aClass = new File(bin, "p/A.class");
+		File loaded = new File(lib, "q/L.class");
+		write(a, "class A {}");
+		write(loaded, "L");
+
+		String key = key(a);
+		assertNull(cache.restore(key));
+		cache.store(key, compile(a, aClass, loaded));
+		byte[] content = Files.readAllBytes(aClass.toPath());
+		aClass.delete();
+
+		JavaCompilerResult restored = cache.restore(key);
+		assertNotNull(restored);
+		assertArrayEquals(content, Files.readAllBytes(aClass.toPath()));
+		assertEquals(Collections.singleton(aClass), restored.getSourceTargetFiles().get(a));
+		assertTrue(restored.getLoadedClassFiles().contains(loaded));
+
+		// a changed class path file invalidates the entry
+		write(loaded, "L2");
+		assertNull(cache.restore(key));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(1, cache.getStores());
+		assertEquals(1.0 / 3, cache.getHitRate(), 1e-9);
+	}
+
+	@Test
+	public void testChangedSourceFromSourcePath() throws IOException {
+		OutputCache cache = new OutputCache(new File(dir, "cache"), 1 << 20);
+		File a = new File(src, "p/A.java");
+		File b = new File(src, "p/B.java");
+		File loaded = new File(lib, "q/L.class");
+		write(a, "class A { int x = B.X; }");
+		write(b, "class B { static final int X = 1; }");
+		write(loaded, "L");
+
+		// B is read from the source path, but not compiled and not part of the key
+		JavaCompilerResult result = compile(a, new File(bin, "p/A.class"), loaded);
+		result.addSourceFile(b);
+		String key = key(a);
+		cache.store(key, result);
+		assertNotNull(cache.restore(key));
+
+		write(b, "class B { static final int X = 2; }");
+		assertEquals(key, key(a));
+		assertNull(cache.restore(key));
+	}
+
+	@Test
+	public void testSharedObjects() throws IOException {
+		OutputCache cache = new OutputCache(new File(dir, "cache"), 1 << 20);
+		File a = new File(src, "p/A.java");
+		File loaded = new File(lib, "q/L.class");
+		write(a, "class A {}");
+		write(loaded, "L");
+		cache.store(key(a), compile(a, new File(bin, "p/A.class"), loaded));
+
+		// same output under a different key only adds an entry
+		write(loaded, "L2");
+		cache.store(key(a) + "x", compile(a, new File(bin, "p/A.class"), loaded));
+		assertEquals(1, objects());
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		File loaded = new File(lib, "q/L.class");
+		write(loaded, "L");
+		char[] filler = new char[1000];
+		Arrays.fill(filler, 'x');
+
+		OutputCache cache = new OutputCache(new File(dir, "cache"), 10000);
+		String[] keys = new String[20];
+		for (int i = 0; i < keys.length; i++) {
+			File source = new File(src, "p/C" + i + ".java");
+			write(source, "class C" + i + " { /*" + new String(filler) + "*/ }");
+			keys[i] = key(source);
+			cache.store(keys[i], compile(source, new File(bin, "p/C" + i + ".class"), loaded));
+			assertTrue(cache.size() <= cache.getMaxSize());
+		}
+		assertTrue(cache.getEvictions() > 0);
+		assertNotNull(cache.restore(keys[keys.length - 1]));
+		assertNull(cache.restore(keys[0]));
+		assertTrue(objects() < keys.length);
+	}
+}
@@ -0,0 +1,85 @@
+package build.pluto.buildjava.test.simple;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.builder.BuildRequest;
+import build.pluto.buildjava.JavaBulkCompiler;
+import build.pluto.buildjava.JavaCompilerInput;
+import build.pluto.buildjava.compiler.JavacCompiler;
+import build.pluto.test.build.ScopedBuildTest;
+import build.pluto.test.build.ScopedPath;
+import build.pluto.test.build.TrackingBuildManager;
+
+public class ParallelBulkBuildTest extends ScopedBuildTest {
+
+	@ScopedPath(value = "")
+	private File sourcePath;
+
+	@ScopedPath(value = "A.java")
+	private File classAsource;
+
+	@ScopedPath(value = "D.java")
+	private File classDsource;
+
+	@ScopedPath(value = "bin/")
+	private File targetDir;
+
+	private TrackingBuildManager build() throws IOException {
+		TrackingBuildManager manager = new TrackingBuildManager();
+		JavaCompilerInput input = new JavaCompilerInput
+				.Builder()
+				.addSourcePaths(sourcePath)
+				.setTargetDir(targetDir)
+				.setCompiler(JavacCompiler.instance)
+				.setParallelism(4)
+				.get();
+		manager.require(new BuildRequest<>(JavaBulkCompiler.factory, input));
+		return manager;
+	}
+
+	private void checkCorrect() {
+		for (String name : new String[] { "A", "B", "C", "C$CInner", "D", "E", "F" })
+			assertTrue("No class file for " + name + " generated", new File(targetDir, name + ".class").exists());
+		for (File file : targetDir.listFiles())
+			assertTrue("Temporary file left in target directory: " + file, file.isFile());
+	}
+
+	@Test
+	public void testBuildClean() throws IOException {
+		TrackingBuildManager manager = build();
+		assertEquals(1, manager.getExecutedInputs().size());
+		checkCorrect();
+	}
+
+	@Test
+	public void testParallelRebuild() throws IOException {
+		build();
+
+		// the second build compiles based on the dependencies recorded by the first
+		FileCommands.writeToFile(classDsource, "class D { long x; }");
+		TrackingBuildManager manager = build();
+		assertEquals(1, manager.getExecutedInputs().size());
+		checkCorrect();
+	}
+
+	@Test
+	public void testRebuildWithNewDependency() throws IOException {
+		build();
+
+		// C now depends on E, which was compiled concurrently before
+		FileCommands.writeToFile(new File(sourcePath, "C.java"), "class C { class CInner {} E e; }");
+		build();
+		checkCorrect();
+
+		FileCommands.writeToFile(classAsource, "class A { B b; C c; F f; }");
+		build();
+		checkCorrect();
+	}
+}
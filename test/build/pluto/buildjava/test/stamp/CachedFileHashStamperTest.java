@@ -0,0 +1,89 @@
+package build.pluto.buildjava.test.stamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import build.pluto.buildjava.stamp.CachedFileHashStamper;
+
+public class CachedFileHashStamperTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+	}
+
+	private static String sha1(byte[] content) throws NoSuchAlgorithmException {
+		return String.format("%040x", new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(content)));
+	}
+
+	private File write(String name, byte[] content, long lastModified) throws IOException {
+		File file = new File(dir, name);
+		Files.write(file.toPath(), content);
+		file.setLastModified(lastModified);
+		return file;
+	}
+
+	@Test
+	public void testDigest() throws Exception {
+		byte[] small = "class A {}".getBytes(StandardCharsets.UTF_8);
+		byte[] large = new byte[1 << 20];
+		Arrays.fill(large, (byte) 'x');
+		assertEquals(sha1(small), CachedFileHashStamper.digest(write("A.java", small, 1000000)));
+		assertEquals(sha1(large), CachedFileHashStamper.digest(write("L.java", large, 1000000)));
+	}
+
+	@Test
+	public void testUnchangedMetadataHitsCache() throws Exception {
+		File a = write("A.java", "class A {}".getBytes(StandardCharsets.UTF_8), 1000000);
+		String digest = CachedFileHashStamper.digest(a);
+
+		// same size and modification time, the cached digest is used
+		write("A.java", "class B {}".getBytes(StandardCharsets.UTF_8), 1000000);
+		assertEquals(digest, CachedFileHashStamper.digest(a));
+
+		write("A.java", "class B {}".getBytes(StandardCharsets.UTF_8), 2000000);
+		assertEquals(sha1("class B {}".getBytes(StandardCharsets.UTF_8)), CachedFileHashStamper.digest(a));
+	}
+
+	@Test
+	public void testRecentFilesAreNotCached() throws Exception {
+		long now = System.currentTimeMillis();
+		File a = write("A.java", "class A {}".getBytes(StandardCharsets.UTF_8), now);
+		String digest = CachedFileHashStamper.digest(a);
+
+		write("A.java", "class B {}".getBytes(StandardCharsets.UTF_8), now);
+		assertNotEquals(digest, CachedFileHashStamper.digest(a));
+	}
+
+	@Test
+	public void testPrefetch() throws Exception {
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+			files.add(write("C" + i + ".java", ("class C" + i + " {}").getBytes(StandardCharsets.UTF_8), 1000000));
+		CachedFileHashStamper.prefetch(files);
+		CachedFileHashStamper.flush();
+		for (int i = 0; i < files.size(); i++)
+			assertEquals(sha1(("class C" + i + " {}").getBytes(StandardCharsets.UTF_8)), CachedFileHashStamper.digest(files.get(i)));
+	}
+}
@@ -0,0 +1,71 @@
+package build.pluto.buildjava.test.stamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.tools.ToolProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import build.pluto.buildjava.stamp.ClassAbiStamper;
+
+public class ClassAbiStamperTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+	}
+
+	private String abi(String source) throws IOException {
+		File sourceFile = new File(dir, "A.java");
+		Files.write(sourceFile.toPath(), source.getBytes(StandardCharsets.UTF_8));
+		int exit = ToolProvider.getSystemJavaCompiler().run(null, null, null, "-nowarn", "-d", dir.getAbsolutePath(), sourceFile.getAbsolutePath());
+		assertEquals("Compilation failed", 0, exit);
+		return ClassAbiStamper.digest(Files.readAllBytes(new File(dir, "A.class").toPath()));
+	}
+
+	@Test
+	public void testImplementationChanges() throws IOException {
+		String abi = abi("public class A { public int f() { return 1; } private void g() { } }");
+		assertEquals(abi, abi("public class A { public int f() { return 2 + g(); } private int g() { return 3; } }"));
+		assertEquals(abi, abi("public class A {\n\n private int x;\n public synchronized int f() { return x; } }"));
+	}
+
+	@Test
+	public void testMemberOrder() throws IOException {
+		String abi = abi("public class A { public void f() { } public void g() { } }");
+		assertEquals(abi, abi("public class A { public void g() { } public void f() { } }"));
+	}
+
+	@Test
+	public void testInterfaceChanges() throws IOException {
+		String abi = abi("public class A { public int f() { return 1; } }");
+		assertNotEquals(abi, abi("public class A { public long f() { return 1; } }"));
+		assertNotEquals(abi, abi("public class A { protected int f() { return 1; } }"));
+		assertNotEquals(abi, abi("public class A { int f() { return 1; } }"));
+		assertNotEquals(abi, abi("public class A { public int f() { return 1; } public int g; }"));
+		assertNotEquals(abi, abi("public class A implements Runnable { public int f() { return 1; } public void run() { } }"));
+		assertNotEquals(abi, abi("public class A { @Deprecated public int f() { return 1; } }"));
+		assertNotEquals(abi, abi("public class A { public int f() throws Exception { return 1; } }"));
+	}
+
+	@Test
+	public void testConstants() throws IOException {
+		String abi = abi("public class A { public static final int C = 1; public static final String S = \"s\"; }");
+		assertNotEquals(abi, abi("public class A { public static final int C = 2; public static final String S = \"s\"; }"));
+		assertNotEquals(abi, abi("public class A { public static final int C = 1; public static final String S = \"t\"; }"));
+	}
+}
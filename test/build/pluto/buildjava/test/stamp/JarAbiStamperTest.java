@@ -0,0 +1,112 @@
+package build.pluto.buildjava.test.stamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.tools.ToolProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildjava.stamp.JarAbiStamper;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+public class JarAbiStamperTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+	private File jar;
+	private Stamper precise = JarAbiStamper.forEntries(Collections.singleton("p/A.class"));
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+		jar = new File(dir, "lib.jar");
+	}
+
+	/**
+	 * Compiles the given classes of package p into the jar.
+	 */
+	private void writeJar(String... classesAndSources) throws IOException {
+		File src = new File(dir, "src");
+		File bin = new File(dir, "bin");
+		FileCommands.delete(src);
+		FileCommands.delete(bin);
+		src.mkdirs();
+		bin.mkdirs();
+		for (int i = 0; i < classesAndSources.length; i += 2) {
+			File source = new File(src, classesAndSources[i] + ".java");
+			Files.write(source.toPath(), ("package p; " + classesAndSources[i + 1]).getBytes(StandardCharsets.UTF_8));
+			assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, "-nowarn", "-d", bin.getAbsolutePath(), source.getAbsolutePath()));
+		}
+
+		long lastModified = jar.lastModified();
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+			for (int i = 0; i < classesAndSources.length; i += 2) {
+				String name = "p/" + classesAndSources[i] + ".class";
+				out.putNextEntry(new ZipEntry(name));
+				out.write(Files.readAllBytes(new File(bin, name).toPath()));
+				out.closeEntry();
+			}
+		}
+		// make sure the jar is indexed again
+		jar.setLastModified(Math.max(jar.lastModified(), lastModified + 2000));
+	}
+
+	private static Object stamp(Stamper stamper, File file) {
+		return ((ValueStamp<?>) stamper.stampOf(file)).val;
+	}
+
+	@Test
+	public void testImplementationChange() throws IOException {
+		writeJar("A", "public class A { public int f() { return 1; } }");
+		Object crc = stamp(JarAbiStamper.instance, jar);
+		Object abi = stamp(precise, jar);
+
+		writeJar("A", "public class A { public int f() { return 2; } }");
+		assertNotEquals(crc, stamp(JarAbiStamper.instance, jar));
+		assertEquals(abi, stamp(precise, jar));
+
+		writeJar("A", "public class A { public long f() { return 2; } }");
+		assertNotEquals(abi, stamp(precise, jar));
+	}
+
+	@Test
+	public void testUnchangedRebuild() throws IOException {
+		writeJar("A", "public class A { }");
+		Object crc = stamp(JarAbiStamper.instance, jar);
+		writeJar("A", "public class A { }");
+		assertEquals(crc, stamp(JarAbiStamper.instance, jar));
+	}
+
+	@Test
+	public void testNewClassInUsedPackage() throws IOException {
+		writeJar("A", "public class A { }");
+		Object abi = stamp(precise, jar);
+		writeJar("A", "public class A { }", "B", "class B { }");
+		assertNotEquals(abi, stamp(precise, jar));
+	}
+
+	@Test
+	public void testNoZip() throws IOException {
+		Files.write(jar.toPath(), "no zip".getBytes(StandardCharsets.UTF_8));
+		Object abi = stamp(precise, jar);
+		jar.setLastModified(jar.lastModified() + 2000);
+		assertNotEquals(abi, stamp(precise, jar));
+	}
+}
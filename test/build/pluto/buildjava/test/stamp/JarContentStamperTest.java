@@ -0,0 +1,91 @@
+package build.pluto.buildjava.test.stamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import build.pluto.buildjava.stamp.JarContentStamper;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+public class JarContentStamperTest {
+
+	private static final String INDEX = "META-INF/INDEX.LIST";
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+	private File jar;
+	private Stamper stamper = JarContentStamper.excluding(INDEX);
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+		jar = new File(dir, "lib.jar");
+	}
+
+	private void writeJar(String... namesAndContents) throws IOException {
+		long lastModified = jar.lastModified();
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+			for (int i = 0; i < namesAndContents.length; i += 2) {
+				out.putNextEntry(new ZipEntry(namesAndContents[i]));
+				out.write(namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+				out.closeEntry();
+			}
+		}
+		// make sure the jar is indexed again
+		jar.setLastModified(Math.max(jar.lastModified(), lastModified + 2000));
+	}
+
+	private Object stamp() {
+		return ((ValueStamp<?>) stamper.stampOf(jar)).val;
+	}
+
+	@Test
+	public void testExcludedEntryIsIgnored() throws IOException {
+		writeJar("p/A.class", "A", "res.txt", "r");
+		Object stamp = stamp();
+
+		writeJar("p/A.class", "A", INDEX, "JarIndex-Version: 1.0", "res.txt", "r");
+		assertEquals(stamp, stamp());
+
+		writeJar("p/A.class", "A", INDEX, "JarIndex-Version: 2.0", "res.txt", "r");
+		assertEquals(stamp, stamp());
+	}
+
+	@Test
+	public void testContentChange() throws IOException {
+		writeJar("p/A.class", "A", "res.txt", "r");
+		Object stamp = stamp();
+
+		writeJar("p/A.class", "A", "res.txt", "changed");
+		assertNotEquals(stamp, stamp());
+
+		writeJar("p/A.class", "A", "res.txt", "r", "p/B.class", "B");
+		assertNotEquals(stamp, stamp());
+	}
+
+	@Test
+	public void testMissingJar() {
+		assertNull(stamp());
+	}
+
+	@Test
+	public void testEquality() {
+		assertEquals(stamper, JarContentStamper.excluding(INDEX, INDEX));
+		assertNotEquals(stamper, JarContentStamper.excluding());
+	}
+}
@@ -0,0 +1,77 @@
+package build.pluto.buildjava.test.stamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildjava.stamp.JavaPlatformStamper;
+import build.pluto.stamp.ValueStamp;
+
+public class JavaPlatformStamperTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+	}
+
+	private static Object stamp(File file) {
+		return ((ValueStamp<?>) JavaPlatformStamper.instance.stampOf(file)).val;
+	}
+
+	private File file(String rel) throws IOException {
+		File file = new File(dir, rel);
+		file.getParentFile().mkdirs();
+		file.createNewFile();
+		return file;
+	}
+
+	@Test
+	public void testPlatformArchives() throws IOException {
+		File jdk = new File(dir, "jdk");
+		file("jdk/release");
+		File rt = file("jdk/jre/lib/rt.jar");
+		assertEquals(jdk, JavaPlatformStamper.platformHome(rt));
+		assertTrue(JavaPlatformStamper.isPlatformArchive(file("jdk/lib/ct.sym")));
+		assertTrue(JavaPlatformStamper.isPlatformArchive(file("jdk/lib/modules")));
+		assertTrue(JavaPlatformStamper.isPlatformArchive(file("jdk/jmods/java.base.jmod")));
+		assertTrue(JavaPlatformStamper.isPlatformArchive(file("jdk/jre/lib/ext/nashorn.jar")));
+		assertTrue(JavaPlatformStamper.isPlatformArchive(new File(System.getProperty("java.home"), "lib/modules")));
+	}
+
+	@Test
+	public void testOtherArchives() throws IOException {
+		file("jdk/release");
+		assertFalse(JavaPlatformStamper.isPlatformArchive(file("jdk/lib/tools.zip")));
+		assertFalse(JavaPlatformStamper.isPlatformArchive(file("project/lib/rt.jar")));
+		assertFalse(JavaPlatformStamper.isPlatformArchive(file("project/lib/ext/library.jar")));
+		assertNull(stamp(new File(dir, "project/lib/rt.jar")));
+	}
+
+	@Test
+	public void testStampChangesWithJdk() throws IOException {
+		File release = file("jdk/release");
+		File modules = file("jdk/lib/modules");
+		FileCommands.writeToFile(release, "JAVA_VERSION=\"9\"\n");
+		Object stamp = stamp(modules);
+		assertEquals(stamp, stamp(modules));
+
+		FileCommands.writeToFile(release, "JAVA_VERSION=\"9.0.1\"\n");
+		assertNotEquals(stamp, stamp(modules));
+	}
+}
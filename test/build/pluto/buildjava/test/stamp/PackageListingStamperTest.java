@@ -0,0 +1,65 @@
+package build.pluto.buildjava.test.stamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import build.pluto.buildjava.stamp.PackageListingStamper;
+import build.pluto.stamp.ValueStamp;
+
+public class PackageListingStamperTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+	}
+
+	private static Object stamp(PackageListingStamper stamper, File dir) {
+		return ((ValueStamp<?>) stamper.stampOf(dir)).val;
+	}
+
+	@Test
+	public void testShadowingFileAppears() throws IOException {
+		File pkg = new File(dir, "p");
+		PackageListingStamper stamper = PackageListingStamper.forNames(Arrays.asList("Object.class", "String.class"));
+		Object missing = stamp(stamper, pkg);
+
+		pkg.mkdir();
+		assertEquals(missing, stamp(stamper, pkg));
+		new File(pkg, "Other.class").createNewFile();
+		assertEquals(missing, stamp(stamper, pkg));
+
+		new File(pkg, "String.class").createNewFile();
+		Object shadowed = stamp(stamper, pkg);
+		assertNotEquals(missing, shadowed);
+		new File(pkg, "Object.class").createNewFile();
+		assertNotEquals(shadowed, stamp(stamper, pkg));
+	}
+
+	@Test
+	public void testOneRequirementPerPackage() {
+		Map<File, Set<String>> packages = new HashMap<>();
+		PackageListingStamper.addFile(new File(dir, "p/A.class"), packages);
+		PackageListingStamper.addFile(new File(dir, "p/B.class"), packages);
+		PackageListingStamper.addFile(new File(dir, "q/A.java"), packages);
+		assertEquals(2, packages.size());
+		assertEquals(2, packages.get(new File(dir, "p")).size());
+		assertEquals(PackageListingStamper.forNames(Arrays.asList("B.class", "A.class")), PackageListingStamper.forNames(packages.get(new File(dir, "p"))));
+	}
+}
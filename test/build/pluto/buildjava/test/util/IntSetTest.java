@@ -0,0 +1,56 @@
+package build.pluto.buildjava.test.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import build.pluto.buildjava.util.IntMap;
+import build.pluto.buildjava.util.IntSet;
+
+public class IntSetTest {
+
+	@Test
+	public void testAgainstHashSet() {
+		Random random = new Random(42);
+		IntSet set = new IntSet();
+		Set<Integer> expected = new HashSet<>();
+		for (int i = 0; i < 100000; i++) {
+			int value = random.nextInt(5000);
+			if (random.nextInt(3) == 0)
+				assertEquals(expected.remove(value), set.remove(value));
+			else
+				assertEquals(expected.add(value), set.add(value));
+		}
+		assertEquals(expected.size(), set.size());
+		for (int value = 0; value < 5000; value++)
+			assertEquals(expected.contains(value), set.contains(value));
+
+		Set<Integer> iterated = new HashSet<>();
+		for (int slot = 0; slot < set.capacity(); slot++)
+			if (set.get(slot) >= 0)
+				iterated.add(set.get(slot));
+		assertEquals(expected, iterated);
+		assertEquals(expected.size(), set.toArray().length);
+	}
+
+	@Test
+	public void testMap() {
+		IntMap<String> map = new IntMap<>();
+		for (int i = 0; i < 1000; i++)
+			map.put(i * 7, i % 10 == 0 ? null : "v" + i);
+		map.put(7, "seven");
+		assertEquals(1000, map.size());
+		assertEquals("seven", map.get(7));
+		assertNull(map.get(70));
+		assertTrue(map.containsKey(70));
+		assertFalse(map.containsKey(71));
+		assertNull(map.get(-1));
+	}
+}
@@ -0,0 +1,141 @@
+package build.pluto.buildjava.test.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import build.pluto.buildjava.util.JarExtractor;
+import build.pluto.buildjava.util.JarWriter;
+import build.pluto.buildjava.util.ZipIndex;
+
+public class JarExtractorTest {
+
+	private static final long TIME = 1262304000000L;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+	private File jar;
+	private File out;
+	private File stamps;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+		jar = new File(dir, "lib.jar");
+		out = new File(dir, "out");
+		stamps = new File(dir, "lib.jar.stamps");
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void writeJar(String... namesAndContents) throws IOException {
+		JarWriter writer = new JarWriter(6, 1);
+		for (int i = 0; i < namesAndContents.length; i += 2)
+			writer.add(namesAndContents[i], bytes(namesAndContents[i + 1]), TIME);
+		writer.write(jar);
+	}
+
+	private JarExtractor extract(int parallelism) throws IOException {
+		ZipIndex index = ZipIndex.read(jar);
+		JarExtractor extractor = new JarExtractor(index, parallelism);
+		extractor.setStampsFile(stamps);
+		for (String name : index.getEntryNamesInOrder())
+			extractor.add(name, new File(out, name));
+		List<File> files = extractor.extract();
+		assertEquals(index.size(), files.size() + countDirs(index));
+		return extractor;
+	}
+
+	private static int countDirs(ZipIndex index) {
+		int dirs = 0;
+		for (String name : index.getEntryNames())
+			if (name.endsWith("/"))
+				dirs++;
+		return dirs;
+	}
+
+	@Test
+	public void testExtract() throws IOException {
+		writeJar("a/", "", "a/A.class", "A", "a/b/B.class", "B", "C.class", "C");
+		long started = System.currentTimeMillis();
+		JarExtractor extractor = extract(4);
+		assertEquals(3, extractor.getExtracted());
+		assertTrue(new File(out, "a").isDirectory());
+		assertArrayEquals(bytes("B"), Files.readAllBytes(new File(out, "a/b/B.class").toPath()));
+		// files are not backdated to the time of their entry
+		assertTrue(new File(out, "C.class").lastModified() >= started - 2000);
+	}
+
+	@Test
+	public void testSkipUnchanged() throws IOException {
+		writeJar("a/A.class", "A", "a/B.class", "B", "C.class", "C", "D.class", "D");
+		assertEquals(4, extract(4).getExtracted());
+
+		JarExtractor extractor = extract(4);
+		assertEquals(0, extractor.getExtracted());
+		assertEquals(4, extractor.getSkipped());
+
+		writeJar("a/A.class", "A2", "a/B.class", "B", "C.class", "C");
+		File d = new File(out, "D.class");
+		File b = new File(out, "a/B.class");
+		Files.write(b.toPath(), bytes("modified"));
+		extractor = extract(4);
+		assertEquals(Arrays.asList(2, 1, 1), Arrays.asList(extractor.getExtracted(), extractor.getSkipped(), extractor.getDeleted()));
+		assertArrayEquals(bytes("A2"), Files.readAllBytes(new File(out, "a/A.class").toPath()));
+		assertArrayEquals(bytes("B"), Files.readAllBytes(b.toPath()));
+		assertFalse(d.exists());
+	}
+
+	@Test
+	public void testRacyModificationIsNoticed() throws IOException {
+		writeJar("C.class", "C", "D.class", "D");
+		extract(4);
+
+		// a modification within the resolution of modification times
+		File c = new File(out, "C.class");
+		long lastModified = c.lastModified();
+		Files.write(c.toPath(), bytes("X"));
+		c.setLastModified(lastModified);
+
+		JarExtractor extractor = extract(4);
+		assertEquals(1, extractor.getExtracted());
+		assertEquals(1, extractor.getSkipped());
+		assertArrayEquals(bytes("C"), Files.readAllBytes(c.toPath()));
+	}
+
+	@Test
+	public void testSerialAndParallelAgree() throws IOException {
+		String[] entries = new String[2000];
+		for (int i = 0; i < entries.length; i += 2) {
+			entries[i] = "p" + (i % 7) + "/C" + i + ".class";
+			entries[i + 1] = "class C" + i;
+		}
+		writeJar(entries);
+		assertEquals(1000, extract(1).getExtracted());
+		File serial = out;
+		out = new File(dir, "parallel");
+		stamps = new File(dir, "parallel.stamps");
+		assertEquals(1000, extract(4).getExtracted());
+		for (int i = 0; i < entries.length; i += 2) {
+			assertArrayEquals(bytes(entries[i + 1]), Files.readAllBytes(new File(out, entries[i]).toPath()));
+			assertArrayEquals(bytes(entries[i + 1]), Files.readAllBytes(new File(serial, entries[i]).toPath()));
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package build.pluto.buildjava.test.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildjava.util.JarWriter;
+import build.pluto.buildjava.util.ZipIndex;
+
+public class JarWriterTest {
+
+	private static final long TIME = 1262304000000L;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+	}
+
+	private static byte[] content(int i) {
+		StringBuilder b = new StringBuilder();
+		for (int j = 0; j < i % 50; j++)
+			b.append("class C").append(i).append(" extends Object ");
+		return b.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+		try (InputStream in = zip.getInputStream(entry)) {
+			byte[] content = new byte[(int) entry.getSize()];
+			int read = 0;
+			while (read < content.length)
+				read += in.read(content, read, content.length - read);
+			return content;
+		}
+	}
+
+	private File write(int parallelism, int entries, File file) throws IOException {
+		JarWriter writer = new JarWriter(6, parallelism);
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		writer.addManifest(manifest, TIME);
+
+		byte[] random = new byte[10000];
+		new Random(42).nextBytes(random);
+		writer.add("random.bin", random, TIME);
+		if (file != null)
+			writer.add("p/file.txt", file, TIME);
+		for (int i = 0; i < entries; i++)
+			writer.add("p/q/C" + i + ".class", content(i), TIME + i * 1000L);
+
+		File jar = new File(dir, "out" + parallelism + "-" + entries + ".jar");
+		writer.write(jar);
+		return jar;
+	}
+
+	@Test
+	public void testParallelIsByteIdentical() throws IOException {
+		File file = new File(dir, "file.txt");
+		FileCommands.writeToFile(file, "file content");
+
+		File serial = write(1, 10000, file);
+		File parallel = write(4, 10000, file);
+		assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+	}
+
+	@Test
+	public void testReadable() throws IOException {
+		File file = new File(dir, "file.txt");
+		FileCommands.writeToFile(file, "file content");
+		File jar = write(4, 100, file);
+
+		try (JarFile zip = new JarFile(jar)) {
+			assertEquals("1.0", zip.getManifest().getMainAttributes().getValue(Attributes.Name.MANIFEST_VERSION));
+			assertEquals(JarFile.MANIFEST_NAME, zip.entries().nextElement().getName());
+			assertEquals(103, zip.size());
+			assertArrayEquals("file content".getBytes(StandardCharsets.UTF_8), read(zip, zip.getEntry("p/file.txt")));
+			for (int i = 0; i < 100; i++) {
+				ZipEntry entry = zip.getEntry("p/q/C" + i + ".class");
+				assertArrayEquals(content(i), read(zip, entry));
+				assertEquals((TIME + i * 1000L) / 2000, entry.getTime() / 2000);
+			}
+			// incompressible content is stored
+			assertEquals(ZipEntry.STORED, zip.getEntry("random.bin").getMethod());
+			assertEquals(ZipEntry.DEFLATED, zip.getEntry("p/q/C99.class").getMethod());
+		}
+
+		ZipIndex index = ZipIndex.read(jar);
+		assertArrayEquals(content(42), index.read("p/q/C42.class"));
+	}
+
+	@Test
+	public void testZip64EntryCount() throws IOException {
+		File jar = write(4, 70000, null);
+		try (ZipFile zip = new ZipFile(jar)) {
+			assertEquals(70002, zip.size());
+			assertArrayEquals(content(69999), read(zip, zip.getEntry("p/q/C69999.class")));
+		}
+		assertEquals(70002, ZipIndex.read(jar).size());
+	}
+
+	private JarWriter writer(File[] files, File stamps) throws IOException {
+		JarWriter writer = new JarWriter(6, 4);
+		writer.setStampsFile(stamps);
+		for (File file : files)
+			if (file.exists())
+				writer.add("p/" + file.getName(), file, TIME);
+		return writer;
+	}
+
+	@Test
+	public void testReuseUnchangedEntries() throws IOException {
+		long old = System.currentTimeMillis() - 10000;
+		File[] files = new File[20];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = new File(dir, "C" + i + ".class");
+			Files.write(files[i].toPath(), content(i + 1));
+			files[i].setLastModified(old);
+		}
+		File jar = new File(dir, "out.jar");
+		File stamps = new File(dir, "out.jar.stamps");
+
+		JarWriter writer = writer(files, stamps);
+		writer.write(jar);
+		assertEquals(0, writer.getReused());
+		byte[] first = Files.readAllBytes(jar.toPath());
+
+		writer = writer(files, stamps);
+		writer.write(jar);
+		assertEquals(20, writer.getReused());
+		assertArrayEquals(first, Files.readAllBytes(jar.toPath()));
+
+		Files.write(files[3].toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+		files[3].setLastModified(old + 2000);
+		files[7].delete();
+		writer = writer(files, stamps);
+		writer.write(jar);
+		assertEquals(18, writer.getReused());
+		try (ZipFile zip = new ZipFile(jar)) {
+			assertEquals(19, zip.size());
+			assertArrayEquals("changed".getBytes(StandardCharsets.UTF_8), read(zip, zip.getEntry("p/C3.class")));
+			assertArrayEquals(content(5), read(zip, zip.getEntry("p/C4.class")));
+		}
+	}
+
+	@Test
+	public void testNoReuseOfModifiedJarOrRacyFile() throws IOException {
+		File old = new File(dir, "Old.class");
+		File racy = new File(dir, "Racy.class");
+		Files.write(old.toPath(), content(10));
+		Files.write(racy.toPath(), content(11));
+		old.setLastModified(System.currentTimeMillis() - 10000);
+		File[] files = { old, racy };
+		File jar = new File(dir, "out.jar");
+		File stamps = new File(dir, "out.jar.stamps");
+
+		writer(files, stamps).write(jar);
+		JarWriter writer = writer(files, stamps);
+		writer.write(jar);
+		assertEquals(1, writer.getReused());
+
+		jar.setLastModified(jar.lastModified() - 5000);
+		writer = writer(files, stamps);
+		writer.write(jar);
+		assertEquals(0, writer.getReused());
+	}
+
+	private byte[] reproducible(String[] names, String[] sections, long time, String... attributes) throws IOException {
+		JarWriter writer = new JarWriter(6, 4);
+		writer.setReproducible(true);
+		Manifest manifest = new Manifest();
+		for (int i = 0; i < attributes.length; i += 2)
+			manifest.getMainAttributes().putValue(attributes[i], attributes[i + 1]);
+		for (String section : sections) {
+			Attributes sectionAttributes = new Attributes();
+			for (int i = 0; i < attributes.length; i += 2)
+				sectionAttributes.putValue(attributes[i], attributes[i + 1] + " " + section);
+			manifest.getEntries().put(section, sectionAttributes);
+		}
+		writer.addManifest(manifest, time);
+		for (String name : names)
+			writer.add(name, content(name.length()), time);
+		File jar = new File(dir, "reproducible.jar");
+		writer.write(jar);
+		return Files.readAllBytes(jar.toPath());
+	}
+
+	@Test
+	public void testReproducible() throws IOException {
+		String[] sections = new String[12];
+		String[] reversed = new String[sections.length];
+		for (int i = 0; i < sections.length; i++)
+			reversed[sections.length - 1 - i] = sections[i] = "p" + i + "/";
+		// a value longer than a manifest line, with multi-byte characters
+		StringBuilder title = new StringBuilder("\u00e4\u00f6\u00fc");
+		for (int i = 0; i < 20; i++)
+			title.append(" title").append(i);
+
+		byte[] first = reproducible(new String[] { "b/B.class", "a/A.class", "META-INF/x" }, sections, TIME, "Main-Class", "a.A", "Class-Path", "lib.jar", "Implementation-Title", title.toString());
+		byte[] second = reproducible(new String[] { "META-INF/x", "a/A.class", "b/B.class" }, reversed, TIME + 60000, "Implementation-Title", title.toString(), "Class-Path", "lib.jar", "Main-Class", "a.A");
+		assertArrayEquals(first, second);
+
+		try (JarFile zip = new JarFile(new File(dir, "reproducible.jar"))) {
+			Enumeration<JarEntry> entries = zip.entries();
+			for (String name : new String[] { JarFile.MANIFEST_NAME, "META-INF/x", "a/A.class", "b/B.class" })
+				assertEquals(name, entries.nextElement().getName());
+			Manifest manifest = zip.getManifest();
+			assertEquals("a.A", manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS));
+			assertEquals(title.toString(), manifest.getMainAttributes().getValue(Attributes.Name.IMPLEMENTATION_TITLE));
+			assertEquals(sections.length, manifest.getEntries().size());
+			assertEquals(title + " p3/", manifest.getAttributes("p3/").getValue(Attributes.Name.IMPLEMENTATION_TITLE));
+
+			// the main attributes and sections are written in sorted order
+			List<String> lines = new ArrayList<>();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(zip.getInputStream(zip.getJarEntry(JarFile.MANIFEST_NAME)), StandardCharsets.UTF_8))) {
+				for (String line = reader.readLine(); line != null; line = reader.readLine())
+					if (!line.startsWith(" "))
+						lines.add(line);
+			}
+			assertTrue(lines.get(0).startsWith("Manifest-Version: "));
+			assertTrue(lines.get(1).startsWith("Class-Path: "));
+			assertTrue(lines.get(2).startsWith("Implementation-Title: "));
+			assertTrue(lines.get(3).startsWith("Main-Class: "));
+			List<String> names = new ArrayList<>();
+			for (String line : lines)
+				if (line.startsWith("Name: "))
+					names.add(line.substring(6));
+			List<String> sorted = new ArrayList<>(names);
+			Collections.sort(sorted);
+			assertEquals(sorted, names);
+			assertEquals(sections.length, names.size());
+		}
+	}
+
+	@Test
+	public void testUnchangedJarIsNotRewritten() throws IOException {
+		File jar = new File(dir, "out.jar");
+		JarWriter writer = new JarWriter(6, 4);
+		writer.add("a/A.class", content(3), TIME);
+		writer.write(jar);
+		assertFalse(writer.isUnchanged());
+		long old = System.currentTimeMillis() - 10000;
+		jar.setLastModified(old);
+
+		writer.write(jar);
+		assertTrue(writer.isUnchanged());
+		assertEquals(old, jar.lastModified());
+
+		writer.add("b/B.class", content(4), TIME);
+		writer.write(jar);
+		assertFalse(writer.isUnchanged());
+		assertNotEquals(old, jar.lastModified());
+	}
+
+	@Test
+	public void testCopyFromReplacedJar() throws IOException {
+		File jar = write(4, 100, null);
+		ZipIndex previous = ZipIndex.read(jar);
+
+		JarWriter writer = new JarWriter(6, 4);
+		for (String name : previous.getEntryNamesInOrder())
+			if (!name.equals("p/q/C5.class"))
+				writer.addFrom(previous, name);
+		writer.add("p/q/C5.class", "changed".getBytes(StandardCharsets.UTF_8), TIME);
+		writer.write(jar);
+
+		try (ZipFile zip = new ZipFile(jar)) {
+			assertEquals(102, zip.size());
+			assertArrayEquals("changed".getBytes(StandardCharsets.UTF_8), read(zip, zip.getEntry("p/q/C5.class")));
+			assertArrayEquals(content(42), read(zip, zip.getEntry("p/q/C42.class")));
+		}
+	}
+
+	@Test(expected = ZipException.class)
+	public void testDuplicateEntry() throws IOException {
+		JarWriter writer = new JarWriter();
+		writer.add("a", new byte[0], TIME);
+		writer.add("a", new byte[0], TIME);
+	}
+}
@@ -0,0 +1,75 @@
+package build.pluto.buildjava.test.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import build.pluto.buildjava.util.PathIndex;
+
+public class PathIndexTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+	}
+
+	private static String rel(String path) {
+		return path.replace('/', File.separatorChar);
+	}
+
+	@Test
+	public void testFindRelativePath() {
+		File src = new File(dir, "src");
+		File main = new File(dir, "src/main");
+		File gen = new File(dir, "gen");
+		PathIndex index = new PathIndex();
+
+		List<File> bases = Arrays.asList(main, src, gen);
+		assertEquals(rel("p/A.java"), index.findRelativePath(new File(main, "p/A.java"), bases));
+		assertEquals(rel("test/B.java"), index.findRelativePath(new File(src, "test/B.java"), bases));
+		assertEquals("C.java", index.findRelativePath(new File(gen, "C.java"), bases));
+		assertNull(index.findRelativePath(new File(dir, "other/D.java"), bases));
+		assertNull(index.findRelativePath(new File(dir, "generated/E.java"), bases));
+		assertNull(index.findRelativePath(src, bases));
+
+		// the first base path containing the file wins
+		List<File> outerFirst = Arrays.asList(src, main);
+		assertEquals(rel("main/p/A.java"), index.findRelativePath(new File(main, "p/A.java"), outerFirst));
+	}
+
+	@Test
+	public void testGetRelativePath() {
+		assertEquals(rel("p/A.class"), PathIndex.getRelativePath(new File(dir, "bin"), new File(dir, "bin/p/A.class")));
+		assertNull(PathIndex.getRelativePath(new File(dir, "bin"), new File(dir, "binary/A.class")));
+		assertNull(PathIndex.getRelativePath(new File(dir, "bin"), new File(dir, "bin")));
+	}
+
+	@Test
+	public void testExists() throws IOException {
+		new File(dir, "p").mkdir();
+		new File(dir, "p/A.class").createNewFile();
+		PathIndex index = new PathIndex();
+		assertTrue(index.exists(new File(dir, "p")));
+		assertTrue(index.exists(new File(dir, "p/A.class")));
+		assertFalse(index.exists(new File(dir, "p/B.class")));
+		assertFalse(index.exists(new File(dir, "q/A.class")));
+		assertTrue(index.isFile(new File(dir, "p/A.class")));
+		assertFalse(index.isFile(new File(dir, "p")));
+	}
+}
@@ -0,0 +1,68 @@
+package build.pluto.buildjava.test.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+import build.pluto.buildjava.compiler.JavaCompilerResult;
+import build.pluto.buildjava.util.PathTable;
+
+public class PathTableTest {
+
+	@Test
+	public void testRoundTrip() {
+		PathTable table = new PathTable('/');
+		String[] paths = { "/tmp/a/B.class", "/tmp/a/C.class", "/tmp/a", "java/lang/Object.class", "", "/", "//x", "a//b/", "rel" };
+		int[] ids = new int[paths.length];
+		for (int i = 0; i < paths.length; i++)
+			ids[i] = table.intern(paths[i]);
+		for (int i = 0; i < paths.length; i++) {
+			assertEquals(paths[i], table.path(ids[i]));
+			assertEquals(ids[i], table.intern(paths[i]));
+			assertEquals(ids[i], table.lookup(paths[i]));
+		}
+		assertEquals(-1, table.lookup("/tmp/b"));
+		assertEquals(-1, table.lookup("/tmp/a/B"));
+		assertEquals(-1, table.lookup("tmp"));
+	}
+
+	@Test
+	public void testSharedPrefixes() {
+		PathTable table = new PathTable('/');
+		for (int i = 0; i < 1000; i++)
+			table.intern("java/util/concurrent/C" + i + ".class");
+		// root, three package nodes, and one node per class
+		assertEquals(1 + 3 + 1000, table.size());
+	}
+
+	@Test(timeout = 10000)
+	public void testLargeResult() throws IOException, ClassNotFoundException {
+		JavaCompilerResult result = new JavaCompilerResult();
+		File jar = new File("/lib/rt.jar");
+		for (int i = 0; i < 100000; i++) {
+			result.addLoadedFromZippedFile(jar, "java/p" + i % 50 + "/C" + i + ".class");
+			result.addLoadedClassFile(new File("/bin/p" + i % 50 + "/L" + i + ".class"));
+		}
+		assertEquals(100000, result.getLoadedClassFiles().size());
+		assertTrue(result.getLoadedClassFiles().contains(new File("/bin/p7/L12357.class")));
+		assertTrue(result.getLoadedFromZippedFile().get(jar).contains("java/p7/C12357.class"));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(result);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			JavaCompilerResult read = (JavaCompilerResult) in.readObject();
+			assertEquals(result.getLoadedClassFiles(), read.getLoadedClassFiles());
+			assertEquals(result.getLoadedFromZippedFile(), read.getLoadedFromZippedFile());
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package build.pluto.buildjava.test.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import build.pluto.buildjava.util.SourceDiscovery;
+
+public class SourceDiscoveryTest {
+
+	private static final long OLD = 1000000000000L;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File dir;
+	private SourceDiscovery discovery;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = temp.getRoot();
+		discovery = new SourceDiscovery();
+	}
+
+	private File touch(String path) throws IOException {
+		File file = new File(dir, path);
+		file.getParentFile().mkdirs();
+		file.createNewFile();
+		return file;
+	}
+
+	private void age(File root) {
+		for (File file : root.listFiles())
+			if (file.isDirectory())
+				age(file);
+		root.setLastModified(OLD);
+	}
+
+	@Test
+	public void testSortedOrder() throws IOException {
+		List<File> expected = new ArrayList<>();
+		expected.add(touch("a/A.java"));
+		expected.add(touch("a/b/B.java"));
+		expected.add(touch("a/c/C.java"));
+		expected.add(touch("a/c/D.java"));
+		touch("a/c/notes.txt");
+		expected.add(touch("b.java"));
+		expected.add(touch("z/Z.java"));
+		new File(dir, "empty").mkdir();
+		assertEquals(expected, discovery.listFiles(dir, ".java"));
+		assertEquals(Arrays.asList(new File(dir, "a/c/notes.txt")), discovery.listFiles(dir, ".txt"));
+	}
+
+	@Test
+	public void testCachedListings() throws IOException {
+		File a = touch("p/A.java");
+		age(dir);
+		assertEquals(Arrays.asList(a), discovery.listFiles(dir, ".java"));
+
+		// a listing is reused while the modification time of its directory is unchanged
+		File b = touch("p/B.java");
+		new File(dir, "p").setLastModified(OLD);
+		assertEquals(Arrays.asList(a), discovery.listFiles(dir, ".java"));
+
+		new File(dir, "p").setLastModified(OLD + 1000);
+		assertEquals(Arrays.asList(a, b), discovery.listFiles(dir, ".java"));
+	}
+
+	@Test
+	public void testRecentDirectoriesAreNotCached() throws IOException {
+		File a = touch("p/A.java");
+		long now = new File(dir, "p").lastModified();
+		assertEquals(Arrays.asList(a), discovery.listFiles(dir, ".java"));
+
+		File b = touch("p/B.java");
+		new File(dir, "p").setLastModified(now);
+		assertEquals(Arrays.asList(a, b), discovery.listFiles(dir, ".java"));
+	}
+
+	@Test
+	public void testMissingRoot() {
+		assertEquals(new ArrayList<File>(), discovery.listFiles(new File(dir, "missing"), ".java"));
+	}
+}
@@ -0,0 +1,177 @@
+package build.pluto.buildjava.test.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import build.pluto.buildjava.util.ZipIndex;
+import build.pluto.buildjava.util.ZipIndexCache;
+
+public class ZipIndexTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File zip;
+
+	@Before
+	public void setUp() throws IOException {
+		zip = temp.newFile("zipindex.jar");
+	}
+
+	private static void writeZip(File zip, String... namesAndContents) throws IOException {
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+			for (int i = 0; i < namesAndContents.length; i += 2) {
+				byte[] content = namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8);
+				ZipEntry entry = new ZipEntry(namesAndContents[i]);
+				if (i % 4 == 0) {
+					// alternate between stored and deflated entries
+					CRC32 crc = new CRC32();
+					crc.update(content);
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(content.length);
+					entry.setCrc(crc.getValue());
+				}
+				out.putNextEntry(entry);
+				out.write(content);
+				out.closeEntry();
+			}
+		}
+	}
+
+	@Test
+	public void testEntriesAndPackages() throws IOException {
+		char[] large = new char[100000];
+		Arrays.fill(large, 'x');
+		writeZip(zip,
+				"META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n",
+				"a/b/C.class", "class C",
+				"a/b/D.class", new String(large),
+				"Top.class", "top");
+
+		ZipIndex index = ZipIndex.read(zip);
+		assertEquals(4, index.size());
+		assertTrue(index.contains("a/b/C.class"));
+		assertFalse(index.contains("a/b/E.class"));
+		assertTrue(index.containsPackage("a/b"));
+		assertTrue(index.containsPackage("a"));
+		assertTrue(index.containsPackage(""));
+		assertFalse(index.containsPackage("a/c"));
+		assertEquals(Arrays.asList("a/b/C.class", "a/b/D.class"), index.getPackageEntries("a/b"));
+		assertTrue(index.getPackageEntries("a").isEmpty());
+
+		assertArrayEquals("class C".getBytes(StandardCharsets.UTF_8), index.read("a/b/C.class"));
+		assertArrayEquals(new String(large).getBytes(StandardCharsets.UTF_8), index.read("a/b/D.class"));
+		assertEquals(large.length, index.getSize("a/b/D.class"));
+		assertNull(index.read("a/b/E.class"));
+
+		CRC32 crc = new CRC32();
+		crc.update("top".getBytes(StandardCharsets.UTF_8));
+		assertEquals(crc.getValue(), index.getCrc("Top.class"));
+	}
+
+	@Test
+	public void testOrderAndTime() throws IOException {
+		long time = 1262304000000L;
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+			for (String name : new String[] { "z/Z.class", "a/A.class", "m/M.class" }) {
+				ZipEntry entry = new ZipEntry(name);
+				entry.setTime(time);
+				out.putNextEntry(entry);
+				out.write(name.getBytes(StandardCharsets.UTF_8));
+				out.closeEntry();
+			}
+		}
+
+		ZipIndex index = ZipIndex.read(zip);
+		assertEquals(Arrays.asList("z/Z.class", "a/A.class", "m/M.class"), index.getEntryNamesInOrder());
+		assertEquals(time, index.getTime("a/A.class"));
+		assertEquals(-1, index.getTime("b/B.class"));
+		assertEquals(ZipEntry.DEFLATED, index.getMethod("m/M.class"));
+	}
+
+	@Test
+	public void testIndexOutlivesFile() throws IOException {
+		writeZip(zip, "a/A.class", "A", "a/B.class", "B");
+		ZipIndex index = ZipIndex.read(zip);
+		assertArrayEquals("A".getBytes(StandardCharsets.UTF_8), index.read("a/A.class"));
+
+		// the index does not keep the file open or mapped
+		assertTrue(zip.delete());
+		writeZip(zip, "a/A.class", "A");
+		try (RandomAccessFile raf = new RandomAccessFile(zip, "rw")) {
+			raf.setLength(10);
+		}
+		try {
+			index.read("a/B.class");
+			fail("Read of truncated zip file succeeded");
+		} catch (ZipException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testOpenUnchanged() throws IOException {
+		writeZip(zip, "a/A.class", "A", "a/B.class", "B");
+		ZipIndex index = ZipIndex.read(zip);
+		try (FileChannel channel = index.openUnchanged()) {
+			assertArrayEquals("A".getBytes(StandardCharsets.UTF_8), index.read("a/A.class", channel));
+			assertArrayEquals("B".getBytes(StandardCharsets.UTF_8), index.read("a/B.class", channel));
+		}
+
+		writeZip(zip, "a/A.class", "changed");
+		try (FileChannel channel = index.openUnchanged()) {
+			fail("Opened changed zip file");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCache() throws IOException {
+		writeZip(zip, "a/A.class", "A");
+		ZipIndexCache cache = new ZipIndexCache(1);
+
+		ZipIndex first = cache.get(zip);
+		assertEquals(1, cache.getMisses());
+		assertTrue(first == cache.get(zip));
+		assertEquals(1, cache.getHits());
+
+		writeZip(zip, "a/A.class", "A", "a/B.class", "B");
+		zip.setLastModified(zip.lastModified() + 2000);
+		ZipIndex second = cache.get(zip);
+		assertEquals(2, cache.getMisses());
+		assertTrue(second.contains("a/B.class"));
+
+		File other = File.createTempFile("zipindex", ".jar");
+		try {
+			writeZip(other, "b/B.class", "B");
+			cache.get(other);
+			assertEquals(1, cache.size());
+			cache.get(zip);
+			assertEquals(4, cache.getMisses());
+		} finally {
+			other.delete();
+		}
+	}
+}
@@ -0,0 +1,5 @@
+class A {
+	int z() {
+		return new B().y();
+	}
+}
\ No newline at end of file
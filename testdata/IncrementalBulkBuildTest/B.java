@@ -0,0 +1,5 @@
+class B {
+	int y() {
+		return new D().x();
+	}
+}
\ No newline at end of file
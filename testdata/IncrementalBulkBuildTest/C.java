@@ -0,0 +1,3 @@
+class C {
+	static final int LIMIT = 10;
+}
@@ -0,0 +1,5 @@
+class D {
+	int x() {
+		return 1;
+	}
+}
\ No newline at end of file
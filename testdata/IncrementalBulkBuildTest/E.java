@@ -0,0 +1,2 @@
+class E {
+}
\ No newline at end of file
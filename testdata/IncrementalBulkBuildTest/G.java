@@ -0,0 +1,5 @@
+class G {
+	int g() {
+		return C.LIMIT;
+	}
+}
@@ -0,0 +1,7 @@
+class P {
+	static final int X = 1;
+
+	int f() {
+		return Q.Y;
+	}
+}
@@ -0,0 +1,3 @@
+class Q {
+	static final int Y = P.X * 2;
+}
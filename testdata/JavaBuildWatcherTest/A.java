@@ -0,0 +1,5 @@
+class A {
+	int x() {
+		return new B().y();
+	}
+}
@@ -0,0 +1,5 @@
+class B {
+	int y() {
+		return 1;
+	}
+}
@@ -0,0 +1,4 @@
+class A {
+	private B b;
+	private C c;
+}
\ No newline at end of file
@@ -0,0 +1,3 @@
+class B {
+	private D d;
+}
\ No newline at end of file
@@ -0,0 +1,3 @@
+class C {
+	class CInner {}
+}
\ No newline at end of file
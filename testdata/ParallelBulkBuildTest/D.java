@@ -0,0 +1,3 @@
+class D {
+	int x;
+}
\ No newline at end of file
@@ -0,0 +1,3 @@
+class E {
+	private F f;
+}
\ No newline at end of file
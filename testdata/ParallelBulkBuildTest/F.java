@@ -0,0 +1,3 @@
+class F {
+	private E e;
+}
\ No newline at end of file
@@ -0,0 +1,3 @@
+class A {
+	
+}
\ No newline at end of file